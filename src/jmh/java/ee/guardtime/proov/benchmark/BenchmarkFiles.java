@@ -0,0 +1,89 @@
+package ee.guardtime.proov.benchmark;
+
+import ee.guardtime.proov.api.ZipContainerServiceImpl;
+import ee.guardtime.proov.ksi.StubSigner;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Synthetic datafiles and stub signing for benchmarks. Files are generated from fixed seed,
+ * so every run measures the same data. Content is random text, it is deflated roughly to half.
+ *
+ */
+final class BenchmarkFiles {
+
+  private static final byte[] ALPHABET = "abcdefghijklmnopqrstuvwxyz0123456789 \n".getBytes();
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  private BenchmarkFiles() {
+  }
+
+  /**
+   * Parse datafile layout parameter "{count}x{size}"
+   *
+   * @return count and size of datafiles
+   */
+  static long[] parseLayout(String layout) {
+    String[] parts = layout.split("x");
+    return new long[]{Long.parseLong(parts[0]), Long.parseLong(parts[1])};
+  }
+
+  /**
+   * Create temporary directory with datafiles
+   *
+   * @param count number of files
+   * @param size size of each file in bytes
+   * @return created files
+   */
+  static List<File> createFiles(File directory, long count, long size) throws IOException {
+    Random random = new Random(count * 31 + size);
+    byte[] buffer = new byte[BUFFER_SIZE];
+    List<File> files = new ArrayList<>();
+    for (int i = 0; i < count; i++) {
+      File file = new File(directory, "datafile" + i + ".txt");
+      try (OutputStream out = new FileOutputStream(file)) {
+        long remaining = size;
+        while (remaining > 0) {
+          int length = (int) Math.min(buffer.length, remaining);
+          for (int j = 0; j < length; j++) {
+            buffer[j] = ALPHABET[random.nextInt(ALPHABET.length)];
+          }
+          out.write(buffer, 0, length);
+          remaining -= length;
+        }
+      }
+      files.add(file);
+    }
+    return files;
+  }
+
+  static File createDirectory() throws IOException {
+    return Files.createTempDirectory("benchmark_").toFile();
+  }
+
+  static void delete(File file) {
+    File[] children = file.listFiles();
+    if (children != null) {
+      for (File child : children) {
+        delete(child);
+      }
+    }
+    file.delete();
+  }
+
+  /**
+   * Container service which does not call KSI gateway
+   */
+  static ZipContainerServiceImpl createContainerService() {
+    ZipContainerServiceImpl containerService = new ZipContainerServiceImpl();
+    containerService.setSigner(new StubSigner());
+    return containerService;
+  }
+}
@@ -0,0 +1,89 @@
+package ee.guardtime.proov.benchmark;
+
+import ee.guardtime.proov.api.BulkContainerFactory;
+import ee.guardtime.proov.api.ContainerJob;
+import ee.guardtime.proov.api.ContainerJobResult;
+import ee.guardtime.proov.ksi.AggregatingSigner;
+import ee.guardtime.proov.ksi.Signer;
+import ee.guardtime.proov.ksi.StubSigner;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark of creating lots of small containers with BulkContainerFactory. Stub signer simulates
+ * aggregator round trip of 50 ms, with aggregation all containers signed in the same window share
+ * one round trip. Without aggregation every container makes its own round trip, stub signer does not
+ * limit parallel requests like real aggregator does.
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BulkContainerBenchmark {
+
+  private static final int CONTAINERS = 1000;
+
+  @Param({"4", "64"})
+  public int inFlightJobs;
+
+  @Param({"true", "false"})
+  public boolean aggregate;
+
+  private File directory;
+  private List<ContainerJob> jobs;
+  private Signer signer;
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException {
+    directory = BenchmarkFiles.createDirectory();
+    List<File> files = BenchmarkFiles.createFiles(directory, CONTAINERS, 1024);
+    jobs = new ArrayList<>(CONTAINERS);
+    for (int i = 0; i < CONTAINERS; i++) {
+      File output = new File(directory, "container" + i + ".zip");
+      jobs.add(new ContainerJob(output, Collections.singletonList(files.get(i))));
+    }
+    StubSigner stubSigner = new StubSigner(50, TimeUnit.MILLISECONDS);
+    signer = aggregate ? new AggregatingSigner(stubSigner, 10, TimeUnit.MILLISECONDS) : stubSigner;
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    if (signer instanceof AggregatingSigner) {
+      ((AggregatingSigner) signer).close();
+    }
+    BenchmarkFiles.delete(directory);
+  }
+
+  @Benchmark
+  public int createContainers() {
+    BulkContainerFactory factory = new BulkContainerFactory(signer, null, inFlightJobs);
+    int created = 0;
+    for (ContainerJobResult result : factory.createContainers(jobs)) {
+      if (result.isOk()) {
+        created++;
+      }
+    }
+    return created;
+  }
+}
@@ -0,0 +1,124 @@
+package ee.guardtime.proov.benchmark;
+
+import com.guardtime.ksi.hashing.HashAlgorithm;
+import ee.guardtime.proov.api.ZipContainerServiceImpl;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of container create, open, modify and remove paths. Signing is replaced with local stub,
+ * so results do not depend on KSI gateway. Datafile layout is given as "{count}x{size}".
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ContainerBenchmark {
+
+  static final String SIGNATURE_URI = "/META-INF/signature1.ksi";
+
+  @Param({"1x67108864", "100x65536", "10000x1024"})
+  public String datafiles;
+
+  private File directory;
+  private List<File> files;
+  private File signedContainer;
+  private File output;
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException {
+    long[] layout = BenchmarkFiles.parseLayout(datafiles);
+    directory = BenchmarkFiles.createDirectory();
+    files = BenchmarkFiles.createFiles(directory, layout[0], layout[1]);
+    output = new File(directory, "output.zip");
+
+    // all datafiles under first signature, one more file under second signature
+    signedContainer = new File(directory, "signed.zip");
+    ZipContainerServiceImpl containerService = BenchmarkFiles.createContainerService();
+    containerService.initialize(null, signedContainer);
+    containerService.addFilesAndSign(HashAlgorithm.SHA2_256, files);
+    containerService.addFileAndSign(HashAlgorithm.SHA2_256, new ByteArrayInputStream("extra".getBytes()), "extra.txt");
+    containerService.finish();
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    BenchmarkFiles.delete(directory);
+  }
+
+  /**
+   * Copy of signed container for benchmarks which modify container
+   */
+  @State(Scope.Thread)
+  public static class WorkContainer {
+    File file;
+
+    @Setup(Level.Invocation)
+    public void copy(ContainerBenchmark benchmark) throws IOException {
+      file = new File(benchmark.directory, "work.zip");
+      Files.copy(benchmark.signedContainer.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+  }
+
+  @Benchmark
+  public long addFilesAndSign() {
+    ZipContainerServiceImpl containerService = BenchmarkFiles.createContainerService();
+    containerService.initialize(null, output);
+    containerService.addFilesAndSign(HashAlgorithm.SHA2_256, files);
+    containerService.finish();
+    return output.length();
+  }
+
+  @Benchmark
+  public long addFileAndSign() throws IOException {
+    ZipContainerServiceImpl containerService = BenchmarkFiles.createContainerService();
+    containerService.initialize(null, output);
+    for (File file : files) {
+      try (FileInputStream fis = new FileInputStream(file)) {
+        containerService.addFileAndSign(HashAlgorithm.SHA2_256, fis, file.getName());
+      }
+    }
+    containerService.finish();
+    return output.length();
+  }
+
+  @Benchmark
+  public long openAndFinish(WorkContainer workContainer) {
+    ZipContainerServiceImpl containerService = BenchmarkFiles.createContainerService();
+    containerService.initializeFromExisting(null, workContainer.file);
+    containerService.finish();
+    return workContainer.file.length();
+  }
+
+  @Benchmark
+  public long removeSignature(WorkContainer workContainer) {
+    ZipContainerServiceImpl containerService = BenchmarkFiles.createContainerService();
+    containerService.initializeFromExisting(null, workContainer.file);
+    containerService.removeSignature(SIGNATURE_URI);
+    containerService.finish();
+    return workContainer.file.length();
+  }
+}
@@ -0,0 +1,111 @@
+package ee.guardtime.proov.benchmark;
+
+import com.guardtime.ksi.hashing.DataHash;
+import com.guardtime.ksi.hashing.HashAlgorithm;
+import com.guardtime.ksi.hashing.HashException;
+import com.guardtime.ksi.tlv.TLVParserException;
+import ee.guardtime.proov.api.ContainerIndex;
+import ee.guardtime.proov.api.ZipContainerServiceImpl;
+import ee.guardtime.proov.tlv.TLVService;
+import ee.guardtime.proov.zip.ZipService;
+import ee.guardtime.proov.zip.ZipWriter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of raw entry copy between ZIP archives and datafile hashing. Datafile layout is given
+ * as "{count}x{size}", all entries of signed container are copied.
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ZipBenchmark {
+
+  @Param({"1x67108864", "100x65536", "10000x1024"})
+  public String datafiles;
+
+  private File directory;
+  private List<File> files;
+  private File container;
+  private Collection<String> entriesToCopy;
+  private File output;
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException, TLVParserException {
+    long[] layout = BenchmarkFiles.parseLayout(datafiles);
+    directory = BenchmarkFiles.createDirectory();
+    files = BenchmarkFiles.createFiles(directory, layout[0], layout[1]);
+    output = new File(directory, "output.zip");
+
+    container = new File(directory, "container.zip");
+    ZipContainerServiceImpl containerService = BenchmarkFiles.createContainerService();
+    containerService.initialize(null, container);
+    containerService.addFilesAndSign(HashAlgorithm.SHA2_256, files);
+    containerService.finish();
+
+    try (FileChannel channel = FileChannel.open(container.toPath(), StandardOpenOption.READ)) {
+      entriesToCopy = new ContainerIndex(channel).getEntryNames();
+    }
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    BenchmarkFiles.delete(directory);
+  }
+
+  @Benchmark
+  public long copyEntryFromZip2Zip() throws IOException {
+    try (FileInputStream fis = new FileInputStream(container)) {
+      ZipWriter zipWriter = new ZipWriter(new FileOutputStream(output));
+      new ZipService().copyEntryFromZip2Zip(fis.getChannel(), zipWriter, entriesToCopy);
+      zipWriter.close();
+    }
+    return output.length();
+  }
+
+  @Benchmark
+  public DataHash calculateHashFromStream() throws IOException, HashException {
+    DataHash last = null;
+    for (File file : files) {
+      try (InputStream is = new FileInputStream(file)) {
+        last = new TLVService().calculateHash(HashAlgorithm.SHA2_256, is);
+      }
+    }
+    return last;
+  }
+
+  @Benchmark
+  public DataHash calculateHashFromFile() throws IOException, HashException {
+    DataHash last = null;
+    for (File file : files) {
+      last = new TLVService().calculateHash(HashAlgorithm.SHA2_256, file.toPath());
+    }
+    return last;
+  }
+}
@@ -0,0 +1,21 @@
+package ee.guardtime.proov.api;
+
+import com.guardtime.ksi.hashing.HashAlgorithm;
+
+import java.io.File;
+import java.io.InputStream;
+import java.util.List;
+import java.util.concurrent.Future;
+
+/**
+ * Container service which does not wait for Guardtime service while signing.
+ * Datafiles and manifests are written into container immediately, signatures are
+ * added when signing responses arrive. finish() waits for all outstanding signatures.
+ * Failed signing request is reported only by its Future.
+ */
+public interface AsyncContainerServiceAPI extends ContainerServiceAPI {
+
+  Future<List<String>> addFilesAndSignAsync(HashAlgorithm fileHashingAlgorithm, List<File> files);
+
+  Future<String> addFileAndSignAsync(HashAlgorithm fileHashingAlgorithm, InputStream inputStream, String filename);
+}
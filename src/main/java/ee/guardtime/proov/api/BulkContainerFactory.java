@@ -0,0 +1,180 @@
+package ee.guardtime.proov.api;
+
+import com.guardtime.ksi.hashing.HashAlgorithm;
+import ee.guardtime.proov.ContainerServiceException;
+import ee.guardtime.proov.ksi.Signer;
+import ee.guardtime.proov.zip.CompressionPolicy;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Creates lots of new containers in parallel. Every job gets its own container service on worker
+ * thread, all of them share one signer, metrics and compression policy. Shared AggregatingSigner
+ * collects manifest hashes of all containers signed in the same time window into one signing request,
+ * so throughput grows with number of workers and not with number of aggregator round trips.
+ * Jobs block their worker while waiting for signature, so number of jobs in flight should be well
+ * above number of processors, it is also the largest batch of hashes aggregator can collect.
+ * Failed job does not stop other jobs, it is reported in its result.
+ *
+ */
+public class BulkContainerFactory {
+
+  public static final int DEFAULT_MAX_IN_FLIGHT_JOBS = 64;
+
+  private final Signer signer;
+  private final ExecutorService executor;
+  private final int maxInFlightJobs;
+  private List<HashAlgorithm> hashAlgorithms = Collections.singletonList(HashAlgorithm.SHA2_256);
+  private CompressionPolicy compressionPolicy;
+  private ContainerMetrics metrics = NoopContainerMetrics.INSTANCE;
+
+  /**
+   * Factory with DEFAULT_MAX_IN_FLIGHT_JOBS workers, workers are started for each createContainers call
+   *
+   * @param signer signer shared by all containers
+   */
+  public BulkContainerFactory(Signer signer) {
+    this(signer, null, DEFAULT_MAX_IN_FLIGHT_JOBS);
+  }
+
+  /**
+   * @param signer signer shared by all containers
+   * @param executor workers creating containers, not shut down by factory, null to start worker for
+   *                 every job in flight for each createContainers call
+   * @param maxInFlightJobs maximum number of jobs submitted to executor at once
+   */
+  public BulkContainerFactory(Signer signer, ExecutorService executor, int maxInFlightJobs) {
+    if (signer == null) {
+      throw new ContainerServiceException("Signer of containers not set");
+    }
+    if (maxInFlightJobs < 1) {
+      throw new ContainerServiceException("At least one job has to be in flight");
+    }
+    this.signer = signer;
+    this.executor = executor;
+    this.maxInFlightJobs = maxInFlightJobs;
+  }
+
+  /**
+   * @param hashAlgorithms algorithms datafiles are hashed with, by default SHA2-256
+   */
+  public void setHashAlgorithms(List<HashAlgorithm> hashAlgorithms) {
+    this.hashAlgorithms = hashAlgorithms;
+  }
+
+  /**
+   * @param compressionPolicy policy of datafile compression in all containers, null to deflate all datafiles
+   */
+  public void setCompressionPolicy(CompressionPolicy compressionPolicy) {
+    this.compressionPolicy = compressionPolicy;
+  }
+
+  /**
+   * @param metrics metrics hook shared by all containers, null to not record metrics
+   */
+  public void setMetrics(ContainerMetrics metrics) {
+    this.metrics = metrics == null ? NoopContainerMetrics.INSTANCE : metrics;
+  }
+
+  /**
+   * Create containers of all jobs. Jobs are taken from iterable only when there is room for them,
+   * so jobs can be generated lazily.
+   *
+   * @param jobs containers to create
+   * @return result of every job, in the order of jobs
+   */
+  public List<ContainerJobResult> createContainers(Iterable<ContainerJob> jobs) {
+    ExecutorService workers = executor != null ? executor :
+      Executors.newFixedThreadPool(maxInFlightJobs, new WorkerThreadFactory());
+    final Semaphore inFlightJobs = new Semaphore(maxInFlightJobs);
+    List<Future<ContainerJobResult>> results = new ArrayList<>();
+    try {
+      for (final ContainerJob job : jobs) {
+        inFlightJobs.acquire();
+        try {
+          results.add(workers.submit(new Callable<ContainerJobResult>() {
+            @Override
+            public ContainerJobResult call() {
+              try {
+                return createContainer(job);
+              } finally {
+                inFlightJobs.release();
+              }
+            }
+          }));
+        } catch (RuntimeException e) {
+          inFlightJobs.release();
+          throw e;
+        }
+      }
+
+      List<ContainerJobResult> jobResults = new ArrayList<>(results.size());
+      for (Future<ContainerJobResult> result : results) {
+        jobResults.add(result.get());
+      }
+      return jobResults;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new ContainerServiceException("Interrupted while creating containers", e);
+    } catch (ExecutionException e) {
+      throw new ContainerServiceException("Unable to create containers", e.getCause());
+    } finally {
+      if (workers != executor) {
+        workers.shutdown();
+      }
+    }
+  }
+
+  /**
+   * Create one container on calling thread
+   *
+   * @param job container to create
+   * @return result of job
+   */
+  public ContainerJobResult createContainer(ContainerJob job) {
+    long start = System.nanoTime();
+    try {
+      try (FileOutputStream out = new FileOutputStream(job.getOutput())) {
+        ZipContainerServiceImpl containerService = new ZipContainerServiceImpl();
+        containerService.setSigner(signer);
+        containerService.setCompressionPolicy(compressionPolicy);
+        containerService.setMetrics(metrics);
+        containerService.initialize(null, out);
+        containerService.addFilesAndSign(hashAlgorithms, job.getFiles());
+        containerService.finish();
+        return ContainerJobResult.success(job, containerService.getSignatureUris(), System.nanoTime() - start);
+      }
+    } catch (IOException | RuntimeException e) {
+      job.getOutput().delete();
+      return ContainerJobResult.failure(job, describe(e), System.nanoTime() - start);
+    }
+  }
+
+  private static String describe(Exception e) {
+    if (e.getCause() != null && e.getCause() != e) {
+      return e.getMessage() + ": " + e.getCause().getMessage();
+    }
+    return e.getMessage();
+  }
+
+  private static class WorkerThreadFactory implements ThreadFactory {
+    @Override
+    public Thread newThread(Runnable r) {
+      Thread thread = new Thread(r, "container-factory");
+      thread.setDaemon(true);
+      return thread;
+    }
+  }
+}
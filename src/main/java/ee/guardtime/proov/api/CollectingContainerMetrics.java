@@ -0,0 +1,110 @@
+package ee.guardtime.proov.api;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * ContainerMetrics which sums up counters and timers of every stage in memory and keeps histogram
+ * of signing latencies. getMetrics returns snapshot of all values by metric name, so metrics can be
+ * exported to any monitoring system by polling the snapshot. Histogram buckets are cumulative:
+ * "container.signing.latency.le.50ms" counts signing requests which took at most 50 ms.
+ *
+ */
+public class CollectingContainerMetrics implements ContainerMetrics {
+
+  private static final long[] LATENCY_BUCKETS_MILLIS = {1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000};
+
+  private final AtomicLong hashingBytes = new AtomicLong();
+  private final AtomicLong hashingNanos = new AtomicLong();
+  private final AtomicLong uncompressedBytes = new AtomicLong();
+  private final AtomicLong compressedBytes = new AtomicLong();
+  private final AtomicLong compressionNanos = new AtomicLong();
+  private final AtomicLong signatures = new AtomicLong();
+  private final AtomicLong signingFailures = new AtomicLong();
+  private final AtomicLong signingNanos = new AtomicLong();
+  private final AtomicLongArray signingLatencies = new AtomicLongArray(LATENCY_BUCKETS_MILLIS.length + 1);
+  private final AtomicLong copiedEntries = new AtomicLong();
+  private final AtomicLong copyNanos = new AtomicLong();
+  private final AtomicLong tempBytes = new AtomicLong();
+  private final AtomicLong movedBytes = new AtomicLong();
+  private final AtomicLong moveNanos = new AtomicLong();
+
+  @Override
+  public void recordHashing(long bytes, long nanos) {
+    hashingBytes.addAndGet(bytes);
+    hashingNanos.addAndGet(nanos);
+  }
+
+  @Override
+  public void recordCompression(long uncompressedBytes, long compressedBytes, long nanos) {
+    this.uncompressedBytes.addAndGet(uncompressedBytes);
+    this.compressedBytes.addAndGet(compressedBytes);
+    compressionNanos.addAndGet(nanos);
+  }
+
+  @Override
+  public void recordSigning(long nanos, boolean success) {
+    if (success) {
+      signatures.incrementAndGet();
+    } else {
+      signingFailures.incrementAndGet();
+    }
+    signingNanos.addAndGet(nanos);
+
+    long millis = TimeUnit.NANOSECONDS.toMillis(nanos);
+    int bucket = 0;
+    while (bucket < LATENCY_BUCKETS_MILLIS.length && millis > LATENCY_BUCKETS_MILLIS[bucket]) {
+      bucket++;
+    }
+    signingLatencies.incrementAndGet(bucket);
+  }
+
+  @Override
+  public void recordEntriesCopied(int entries, long nanos) {
+    copiedEntries.addAndGet(entries);
+    copyNanos.addAndGet(nanos);
+  }
+
+  @Override
+  public void recordTempFileWritten(long bytes) {
+    tempBytes.addAndGet(bytes);
+  }
+
+  @Override
+  public void recordMove(long bytes, long nanos) {
+    movedBytes.addAndGet(bytes);
+    moveNanos.addAndGet(nanos);
+  }
+
+  /**
+   * Return current values of all metrics
+   *
+   * @return metric values by metric name, sorted by name
+   */
+  public Map<String, Long> getMetrics() {
+    Map<String, Long> metrics = new TreeMap<>();
+    metrics.put("container.hashing.bytes", hashingBytes.get());
+    metrics.put("container.hashing.nanos", hashingNanos.get());
+    metrics.put("container.compression.bytes.in", uncompressedBytes.get());
+    metrics.put("container.compression.bytes.out", compressedBytes.get());
+    metrics.put("container.compression.nanos", compressionNanos.get());
+    metrics.put("container.signing.count", signatures.get());
+    metrics.put("container.signing.failures", signingFailures.get());
+    metrics.put("container.signing.nanos", signingNanos.get());
+    long cumulative = 0;
+    for (int i = 0; i < LATENCY_BUCKETS_MILLIS.length; i++) {
+      cumulative += signingLatencies.get(i);
+      metrics.put("container.signing.latency.le." + LATENCY_BUCKETS_MILLIS[i] + "ms", cumulative);
+    }
+    metrics.put("container.signing.latency.le.inf", cumulative + signingLatencies.get(LATENCY_BUCKETS_MILLIS.length));
+    metrics.put("container.copy.entries", copiedEntries.get());
+    metrics.put("container.copy.nanos", copyNanos.get());
+    metrics.put("container.temp.bytes", tempBytes.get());
+    metrics.put("container.move.bytes", movedBytes.get());
+    metrics.put("container.move.nanos", moveNanos.get());
+    return metrics;
+  }
+}
@@ -0,0 +1,232 @@
+package ee.guardtime.proov.api;
+
+import com.guardtime.ksi.exceptions.KSIException;
+import com.guardtime.ksi.hashing.DataHash;
+import com.guardtime.ksi.hashing.HashAlgorithm;
+import ee.guardtime.proov.ContainerServiceException;
+import ee.guardtime.proov.tlv.HashingInputStream;
+import ee.guardtime.proov.zip.DeflatedEntry;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Container writer which can be shared between producer threads. Datafiles are hashed and compressed
+ * on calling threads in parallel. Compressed datafiles are handed over to one writer thread, which writes
+ * datafile entries, manifests and signatures into container in order of arrival and numbers signatures,
+ * so container service behind the writer is used by that thread only. Manifests are signed asynchronously
+ * like with addFileAndSignAsync, signing is limited with maxInFlightSignatures of container service.
+ * Compressed datafiles wait for writer thread in memory, so writer is meant for lots of small files.
+ * Datafile can not be longer than DeflatedEntry.MAX_SIZE and number of waiting datafiles is limited,
+ * producers wait when limit is reached.
+ *
+ */
+public class ConcurrentContainerWriter {
+
+  public static final int DEFAULT_MAX_QUEUED_DATAFILES = 256;
+
+  private final ZipContainerServiceImpl containerService;
+  private final Semaphore queuedDatafiles;
+  private final ExecutorService writer = Executors.newSingleThreadExecutor(new WriterThreadFactory());
+  private boolean finished;
+
+  public ConcurrentContainerWriter(ZipContainerServiceImpl containerService) {
+    this(containerService, DEFAULT_MAX_QUEUED_DATAFILES);
+  }
+
+  /**
+   * @param containerService initialized container service, it must not be used by others until writer is finished
+   * @param maxQueuedDatafiles maximum number of compressed datafiles waiting for writer thread
+   */
+  public ConcurrentContainerWriter(ZipContainerServiceImpl containerService, int maxQueuedDatafiles) {
+    if (maxQueuedDatafiles < 1) {
+      throw new ContainerServiceException("At least one datafile has to be queued");
+    }
+    this.containerService = containerService;
+    this.queuedDatafiles = new Semaphore(maxQueuedDatafiles);
+  }
+
+  /**
+   * Add datafile and wait until it is signed
+   *
+   * @return signature URI
+   */
+  public String addFileAndSign(HashAlgorithm fileHashingAlgorithm, InputStream inputStream, String filename) {
+    return addFileAndSign(Collections.singletonList(fileHashingAlgorithm), inputStream, filename);
+  }
+
+  /**
+   * Add datafile with several hashes and wait until it is signed
+   *
+   * @return signature URI
+   */
+  public String addFileAndSign(List<HashAlgorithm> fileHashingAlgorithms, InputStream inputStream, String filename) {
+    Future<String> signatureUri = addFileAndSignAsync(fileHashingAlgorithms, inputStream, filename);
+    try {
+      return signatureUri.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new ContainerServiceException("Interrupted while waiting for signature", e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof ContainerServiceException) {
+        throw (ContainerServiceException) e.getCause();
+      }
+      throw new ContainerServiceException("Unable to add new signature", e.getCause());
+    }
+  }
+
+  public Future<String> addFileAndSignAsync(HashAlgorithm fileHashingAlgorithm, InputStream inputStream,
+                                            String filename) {
+    return addFileAndSignAsync(Collections.singletonList(fileHashingAlgorithm), inputStream, filename);
+  }
+
+  /**
+   * Hash and compress datafile on calling thread and queue it for writer thread. Input stream is read
+   * before method returns, but it is not closed.
+   *
+   * @return future of signature URI, done when manifest of datafile is signed
+   */
+  public Future<String> addFileAndSignAsync(List<HashAlgorithm> fileHashingAlgorithms, InputStream inputStream,
+                                            String filename) {
+    final DeflatedEntry deflatedEntry;
+    final List<DataHash> fileHashes;
+    try {
+      HashingInputStream hashingInputStream = new HashingInputStream(inputStream, fileHashingAlgorithms);
+      long start = System.nanoTime();
+      deflatedEntry = DeflatedEntry.deflate(filename, hashingInputStream, containerService.getCompressionPolicy());
+      fileHashes = hashingInputStream.getHashes();
+
+      ContainerMetrics metrics = containerService.getMetrics();
+      long hashingNanos = hashingInputStream.getHashingNanos();
+      metrics.recordHashing(deflatedEntry.getSize(), hashingNanos);
+      metrics.recordCompression(deflatedEntry.getSize(), deflatedEntry.getCompressedSize(),
+        System.nanoTime() - start - hashingNanos);
+    } catch (KSIException | IOException e) {
+      throw new ContainerServiceException("Unable to add new signature", e);
+    }
+
+    try {
+      queuedDatafiles.acquire();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new ContainerServiceException("Interrupted while waiting for container writer", e);
+    }
+
+    Future<Future<String>> written;
+    synchronized (this) {
+      if (finished) {
+        queuedDatafiles.release();
+        throw new ContainerServiceException("Container writer already finished");
+      }
+      written = writer.submit(new Callable<Future<String>>() {
+        @Override
+        public Future<String> call() {
+          try {
+            return containerService.addDeflatedDatafileAndSignAsync(deflatedEntry, fileHashes);
+          } finally {
+            queuedDatafiles.release();
+          }
+        }
+      });
+    }
+    return new WrittenSignatureFuture(written);
+  }
+
+  /**
+   * Write all queued datafiles and signatures, finish container and stop writer thread
+   *
+   */
+  public void finish() {
+    Future<?> finishing;
+    synchronized (this) {
+      if (finished) {
+        throw new ContainerServiceException("Container writer already finished");
+      }
+      finished = true;
+      finishing = writer.submit(new Runnable() {
+        @Override
+        public void run() {
+          containerService.finish();
+        }
+      });
+      writer.shutdown();
+    }
+
+    try {
+      finishing.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new ContainerServiceException("Interrupted while finishing container", e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof ContainerServiceException) {
+        throw (ContainerServiceException) e.getCause();
+      }
+      throw new ContainerServiceException("Unable to save container", e.getCause());
+    }
+  }
+
+  /**
+   * Future of signature URI, first waits until datafile is written and then until its manifest is signed
+   */
+  private static class WrittenSignatureFuture implements Future<String> {
+    private final Future<Future<String>> written;
+
+    WrittenSignatureFuture(Future<Future<String>> written) {
+      this.written = written;
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+      return false;
+    }
+
+    @Override
+    public boolean isCancelled() {
+      return false;
+    }
+
+    @Override
+    public boolean isDone() {
+      if (!written.isDone()) {
+        return false;
+      }
+      try {
+        return written.get().isDone();
+      } catch (InterruptedException | ExecutionException e) {
+        return true;
+      }
+    }
+
+    @Override
+    public String get() throws InterruptedException, ExecutionException {
+      return written.get().get();
+    }
+
+    @Override
+    public String get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+      long deadline = System.nanoTime() + unit.toNanos(timeout);
+      Future<String> signing = written.get(timeout, unit);
+      return signing.get(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+    }
+  }
+
+  private static class WriterThreadFactory implements ThreadFactory {
+    @Override
+    public Thread newThread(Runnable r) {
+      Thread thread = new Thread(r, "container-writer");
+      thread.setDaemon(true);
+      return thread;
+    }
+  }
+}
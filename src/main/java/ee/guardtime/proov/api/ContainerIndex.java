@@ -0,0 +1,169 @@
+package ee.guardtime.proov.api;
+
+import com.guardtime.ksi.tlv.TLVElement;
+import com.guardtime.ksi.tlv.TLVParserException;
+import ee.guardtime.proov.tlv.LazyManifest;
+import ee.guardtime.proov.zip.CentralDirectoryEntry;
+import ee.guardtime.proov.zip.ZipCentralDirectory;
+import ee.guardtime.proov.zip.ZipService;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Index of existing container. Built from ZIP central directory, only manifest entries
+ * are read. Datafiles are not read, so opening container does not depend on its size.
+ * Manifests are kept as lazy views, datafile URIs and hashes are decoded when they are used.
+ * Segments referenced from segmented manifests are read as well and their datafiles are listed
+ * under signature of the manifest. Segments missing from container are skipped here, verifier
+ * reports them. Manifests and segments are single TLV16 elements, larger entries are rejected before
+ * they are read. Signature URI can be listed in only one manifest.
+ *
+ */
+public class ContainerIndex {
+
+  static final String MANIFEST_PREFIX = "/META-INF/manifest";
+  static final String SEGMENT_PREFIX = "/META-INF/segment";
+  static final int MAX_TLV_ENTRY_SIZE = TLVElement.MAX_TLV16_CONTENT_LENGTH + 4;
+
+  private final Map<String, CentralDirectoryEntry> entries = new LinkedHashMap<>();
+  private final List<LazyManifest> manifests = new ArrayList<>();
+  private final Map<String, LazyManifest> segments = new HashMap<>();
+  private final Map<String, List<String>> signedSegments = new HashMap<>();
+  private final Map<String, List<String>> signedFiles = new HashMap<>();
+  private final Map<String, String> signedManifests = new HashMap<>();
+  private final List<String> signatureUris = new ArrayList<>();
+
+  public ContainerIndex(FileChannel channel) throws IOException, TLVParserException {
+    ZipCentralDirectory centralDirectory = new ZipCentralDirectory(channel);
+    ZipService zipService = new ZipService();
+
+    for (CentralDirectoryEntry entry : centralDirectory.getEntries()) {
+      entries.put(entry.getName(), entry);
+    }
+
+    for (CentralDirectoryEntry entry : centralDirectory.getEntries()) {
+      if (entry.getName().startsWith(MANIFEST_PREFIX)) {
+        LazyManifest manifest = new LazyManifest(zipService.readEntry(channel, entry, MAX_TLV_ENTRY_SIZE));
+        if (signedManifests.containsKey(manifest.getSignatureUri())) {
+          throw new TLVParserException("Signature " + manifest.getSignatureUri()
+            + " is referenced by more than one manifest");
+        }
+
+        signedManifests.put(manifest.getSignatureUri(), entry.getName());
+        if (manifest.isSegmented()) {
+          List<String> datafileUris = new ArrayList<>();
+          List<String> segmentUris = new ArrayList<>();
+          readSegments(channel, zipService, manifest, datafileUris, segmentUris);
+          signedFiles.put(manifest.getSignatureUri(), datafileUris);
+          signedSegments.put(manifest.getSignatureUri(), segmentUris);
+        } else {
+          signedFiles.put(manifest.getSignatureUri(), manifest.getDatafileUris());
+        }
+        signatureUris.add(manifest.getSignatureUri());
+        manifests.add(manifest);
+      }
+    }
+  }
+
+  /**
+   * Collect datafiles and segments of segmented manifest depth first. Segments are walked with
+   * explicit stack, so deep chains of segments can not overflow the call stack.
+   */
+  private void readSegments(FileChannel channel, ZipService zipService, LazyManifest manifest,
+                            List<String> datafileUris, List<String> segmentUris)
+    throws IOException, TLVParserException {
+    datafileUris.addAll(manifest.getDatafileUris());
+    Deque<String> pending = new ArrayDeque<>();
+    pushSegments(manifest, pending);
+    while (!pending.isEmpty()) {
+      String segmentUri = pending.pop();
+      if (segments.containsKey(segmentUri)) {
+        throw new TLVParserException("Manifest segment " + segmentUri + " is referenced more than once");
+      }
+      segmentUris.add(segmentUri);
+
+      CentralDirectoryEntry entry = entries.get(segmentUri);
+      if (entry != null) {
+        LazyManifest segment = new LazyManifest(zipService.readEntry(channel, entry, MAX_TLV_ENTRY_SIZE));
+        segments.put(segmentUri, segment);
+        datafileUris.addAll(segment.getDatafileUris());
+        pushSegments(segment, pending);
+      }
+    }
+  }
+
+  private static void pushSegments(LazyManifest manifest, Deque<String> pending) throws TLVParserException {
+    for (int i = manifest.getSegmentCount() - 1; i >= 0; i--) {
+      pending.push(manifest.getSegmentUri(i));
+    }
+  }
+
+  /**
+   * Return names of all entries in container in central directory order
+   *
+   * @return entry names
+   */
+  public Collection<String> getEntryNames() {
+    return Collections.unmodifiableCollection(entries.keySet());
+  }
+
+  /**
+   * Return central directory entry
+   *
+   * @param name entry name
+   * @return entry or null if container has no such entry
+   */
+  public CentralDirectoryEntry getEntry(String name) {
+    return entries.get(name);
+  }
+
+  /**
+   * Return manifests in central directory order
+   *
+   * @return lazy manifest views
+   */
+  public List<LazyManifest> getManifests() {
+    return manifests;
+  }
+
+  /**
+   * Return manifest segment referenced from segmented manifest
+   *
+   * @param uri segment uri
+   * @return segment view or null if container has no such segment
+   */
+  public LazyManifest getSegment(String uri) {
+    return segments.get(uri);
+  }
+
+  /**
+   * Return URIs of manifest segments by signature URI, only segmented manifests are listed
+   *
+   * @return segment URIs of every segmented manifest
+   */
+  public Map<String, List<String>> getSignedSegments() {
+    return signedSegments;
+  }
+
+  public List<String> getSignatureUris() {
+    return signatureUris;
+  }
+
+  public Map<String, List<String>> getSignedFiles() {
+    return signedFiles;
+  }
+
+  public Map<String, String> getSignedManifests() {
+    return signedManifests;
+  }
+}
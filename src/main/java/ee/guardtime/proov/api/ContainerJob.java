@@ -0,0 +1,39 @@
+package ee.guardtime.proov.api;
+
+import java.io.File;
+import java.util.List;
+
+/**
+ * New container to be created by BulkContainerFactory: output file and datafiles signed into it.
+ *
+ */
+public class ContainerJob {
+
+  private final File output;
+  private final List<File> files;
+
+  /**
+   * @param output container file, it is overwritten if it exists
+   * @param files datafiles, all signed with one manifest
+   */
+  public ContainerJob(File output, List<File> files) {
+    this.output = output;
+    this.files = files;
+  }
+
+  public File getOutput() {
+    return output;
+  }
+
+  public List<File> getFiles() {
+    return files;
+  }
+
+  @Override
+  public String toString() {
+    return "ContainerJob{" +
+      "output=" + output +
+      ", files=" + files.size() +
+      '}';
+  }
+}
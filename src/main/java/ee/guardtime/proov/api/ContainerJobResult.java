@@ -0,0 +1,67 @@
+package ee.guardtime.proov.api;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Result of one container created by BulkContainerFactory. Failed job has error message and no
+ * signatures, its output file is removed.
+ *
+ */
+public class ContainerJobResult {
+
+  private final ContainerJob job;
+  private final List<String> signatureUris;
+  private final String error;
+  private final long nanos;
+
+  private ContainerJobResult(ContainerJob job, List<String> signatureUris, String error, long nanos) {
+    this.job = job;
+    this.signatureUris = signatureUris;
+    this.error = error;
+    this.nanos = nanos;
+  }
+
+  static ContainerJobResult success(ContainerJob job, List<String> signatureUris, long nanos) {
+    return new ContainerJobResult(job, Collections.unmodifiableList(signatureUris), null, nanos);
+  }
+
+  static ContainerJobResult failure(ContainerJob job, String error, long nanos) {
+    return new ContainerJobResult(job, Collections.<String>emptyList(), error, nanos);
+  }
+
+  public ContainerJob getJob() {
+    return job;
+  }
+
+  public boolean isOk() {
+    return error == null;
+  }
+
+  public List<String> getSignatureUris() {
+    return signatureUris;
+  }
+
+  /**
+   * @return error message of failed job, null if container was created
+   */
+  public String getError() {
+    return error;
+  }
+
+  /**
+   * @return time spent in creating container, including waiting for signature
+   */
+  public long getNanos() {
+    return nanos;
+  }
+
+  @Override
+  public String toString() {
+    return "ContainerJobResult{" +
+      "output=" + job.getOutput() +
+      ", signatureUris=" + signatureUris +
+      ", error=" + error +
+      '}';
+  }
+}
@@ -0,0 +1,59 @@
+package ee.guardtime.proov.api;
+
+/**
+ * Metrics hook of container service. Service reports every pipeline stage with amount of data
+ * and time spent in it. Implementations have to be thread safe, datafiles are hashed on hashing
+ * executor and manifests are signed on signing threads.
+ *
+ */
+public interface ContainerMetrics {
+
+  /**
+   * Datafile is hashed
+   *
+   * @param bytes number of hashed bytes
+   * @param nanos time spent in hashing
+   */
+  void recordHashing(long bytes, long nanos);
+
+  /**
+   * Datafile entry is written into container. Time includes reading datafile and compressing it,
+   * but not hashing in single pass ingest.
+   *
+   * @param uncompressedBytes size of datafile
+   * @param compressedBytes size of entry data in container
+   * @param nanos time spent in writing entry
+   */
+  void recordCompression(long uncompressedBytes, long compressedBytes, long nanos);
+
+  /**
+   * Signing request is finished
+   *
+   * @param nanos time spent in signing request
+   * @param success false if signing failed
+   */
+  void recordSigning(long nanos, boolean success);
+
+  /**
+   * Entries of existing container are copied into modified container
+   *
+   * @param entries number of copied entries
+   * @param nanos time spent in copying
+   */
+  void recordEntriesCopied(int entries, long nanos);
+
+  /**
+   * Modified container is written into temporary file
+   *
+   * @param bytes size of temporary file
+   */
+  void recordTempFileWritten(long bytes);
+
+  /**
+   * Temporary file is moved over original container
+   *
+   * @param bytes size of moved file
+   * @param nanos time spent in moving
+   */
+  void recordMove(long bytes, long nanos);
+}
@@ -0,0 +1,380 @@
+package ee.guardtime.proov.api;
+
+import com.guardtime.ksi.exceptions.KSIException;
+import com.guardtime.ksi.hashing.DataHash;
+import com.guardtime.ksi.hashing.HashAlgorithm;
+import com.guardtime.ksi.tlv.TLVElement;
+import com.guardtime.ksi.tlv.TLVParserException;
+import ee.guardtime.proov.ksi.SignatureVerifier;
+import ee.guardtime.proov.tlv.AggregateSignatureStructure;
+import ee.guardtime.proov.tlv.DatafileStructure;
+import ee.guardtime.proov.tlv.HashingInputStream;
+import ee.guardtime.proov.tlv.LazyManifest;
+import ee.guardtime.proov.tlv.TLVService;
+import ee.guardtime.proov.zip.CentralDirectoryEntry;
+import ee.guardtime.proov.zip.ZipService;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+
+/**
+ * Verifies existing containers. Container is opened from central directory index,
+ * every datafile hash is recomputed and every manifest hash is checked against its signature.
+ * Segments of segmented manifests are checked against hashes in referencing manifest.
+ * Datafile which can not be read or decompressed and invalid references in manifest are reported
+ * in report of that signature, they do not stop verification of other datafiles and signatures.
+ * Datafiles, signatures and containers are verified as separate tasks on ForkJoinPool,
+ * so verification scales over available cores. Without digest cache every datafile is read from container.
+ * With digest cache datafile which name, size and CRC are in cache is not read at all, hashes calculated
+ * during verification are put into cache.
+ *
+ */
+public class ContainerVerifier {
+
+  private final SignatureVerifier signatureVerifier;
+  private final ForkJoinPool pool;
+  private final DigestCache digestCache;
+
+  public ContainerVerifier(SignatureVerifier signatureVerifier) {
+    this(signatureVerifier, new ForkJoinPool());
+  }
+
+  public ContainerVerifier(SignatureVerifier signatureVerifier, ForkJoinPool pool) {
+    this(signatureVerifier, pool, null);
+  }
+
+  /**
+   * @param signatureVerifier verifier of KSI signatures
+   * @param pool pool for verification tasks
+   * @param digestCache cache of datafile hashes or null
+   */
+  public ContainerVerifier(SignatureVerifier signatureVerifier, ForkJoinPool pool, DigestCache digestCache) {
+    this.signatureVerifier = signatureVerifier;
+    this.pool = pool;
+    this.digestCache = digestCache;
+  }
+
+  /**
+   * Verify one container
+   *
+   * @param container container file
+   * @return verification report
+   */
+  public VerificationReport verify(File container) {
+    return pool.invoke(new ContainerTask(container));
+  }
+
+  /**
+   * Verify several containers in parallel. Error in one container does not stop verification
+   * of others, it is returned in report of that container.
+   *
+   * @param containers container files
+   * @return verification reports in the same order as containers
+   */
+  public List<VerificationReport> verify(List<File> containers) {
+    return pool.invoke(new ContainersTask(containers));
+  }
+
+  @SuppressWarnings("serial")
+  private class ContainersTask extends RecursiveTask<List<VerificationReport>> {
+    private final List<File> containers;
+
+    ContainersTask(List<File> containers) {
+      this.containers = containers;
+    }
+
+    @Override
+    protected List<VerificationReport> compute() {
+      List<ContainerTask> tasks = new ArrayList<>();
+      for (File container : containers) {
+        tasks.add(new ContainerTask(container));
+      }
+      ForkJoinTask.invokeAll(tasks);
+
+      List<VerificationReport> reports = new ArrayList<>();
+      for (ContainerTask task : tasks) {
+        reports.add(task.join());
+      }
+      return reports;
+    }
+  }
+
+  @SuppressWarnings("serial")
+  private class ContainerTask extends RecursiveTask<VerificationReport> {
+    private final File container;
+
+    ContainerTask(File container) {
+      this.container = container;
+    }
+
+    @Override
+    protected VerificationReport compute() {
+      try (FileChannel channel = FileChannel.open(container.toPath(), StandardOpenOption.READ)) {
+        ContainerIndex containerIndex = new ContainerIndex(channel);
+
+        List<SignatureTask> tasks = new ArrayList<>();
+        for (LazyManifest manifest : containerIndex.getManifests()) {
+          tasks.add(new SignatureTask(channel, containerIndex, manifest));
+        }
+        ForkJoinTask.invokeAll(tasks);
+
+        List<SignatureReport> signatureReports = new ArrayList<>();
+        for (SignatureTask task : tasks) {
+          signatureReports.add(task.join());
+        }
+        return new VerificationReport(container, signatureReports, getUnsignedEntries(containerIndex));
+      } catch (IOException | KSIException | RuntimeException e) {
+        return new VerificationReport(container, e.getMessage());
+      }
+    }
+  }
+
+  @SuppressWarnings("serial")
+  private class SignatureTask extends RecursiveTask<SignatureReport> {
+    private final FileChannel channel;
+    private final ContainerIndex containerIndex;
+    private final LazyManifest manifest;
+
+    SignatureTask(FileChannel channel, ContainerIndex containerIndex, LazyManifest manifest) {
+      this.channel = channel;
+      this.containerIndex = containerIndex;
+      this.manifest = manifest;
+    }
+
+    @Override
+    protected SignatureReport compute() {
+      String signatureUri = manifest.getSignatureUri();
+      String manifestUri = containerIndex.getSignedManifests().get(signatureUri);
+
+      List<LazyManifest> parts = new ArrayList<>();
+      List<String> missingSegments = new ArrayList<>();
+      List<String> invalidSegments = new ArrayList<>();
+      List<String> missingDatafiles = new ArrayList<>();
+      List<DatafileTask> tasks = new ArrayList<>();
+      String manifestError = null;
+      try {
+        collectSegments(manifest, parts, missingSegments, invalidSegments);
+        for (LazyManifest part : parts) {
+          for (int i = 0; i < part.getDatafileCount(); i++) {
+            String datafileUri = part.getDatafileUri(i);
+            CentralDirectoryEntry entry = containerIndex.getEntry(datafileUri);
+            if (entry == null) {
+              missingDatafiles.add(datafileUri);
+            } else {
+              tasks.add(new DatafileTask(channel, entry, part, i));
+            }
+          }
+        }
+      } catch (KSIException e) {
+        manifestError = "Invalid datafile or segment reference in manifest: " + e.getMessage();
+      }
+      for (DatafileTask task : tasks) {
+        task.fork();
+      }
+
+      SignatureReport.Status status = SignatureReport.Status.OK;
+      String message = null;
+      try {
+        CentralDirectoryEntry signatureEntry = containerIndex.getEntry(signatureUri);
+        if (signatureEntry == null) {
+          status = SignatureReport.Status.SIGNATURE_MISSING;
+        } else if (!verifySignature(signatureEntry)) {
+          status = SignatureReport.Status.SIGNATURE_INVALID;
+        }
+      } catch (IOException | KSIException e) {
+        status = SignatureReport.Status.SIGNATURE_INVALID;
+        message = e.getMessage();
+      }
+
+      List<String> invalidDatafiles = new ArrayList<>();
+      Map<String, String> datafileErrors = new LinkedHashMap<>();
+      for (DatafileTask task : tasks) {
+        if (!task.join()) {
+          invalidDatafiles.add(task.entry.getName());
+          if (task.error != null) {
+            datafileErrors.put(task.entry.getName(), task.error);
+          }
+        }
+      }
+
+      if (status == SignatureReport.Status.OK && manifestError != null) {
+        status = SignatureReport.Status.MANIFEST_INVALID;
+        message = manifestError;
+      } else if (status == SignatureReport.Status.OK && !missingSegments.isEmpty()) {
+        status = SignatureReport.Status.SEGMENT_MISSING;
+      } else if (status == SignatureReport.Status.OK && !invalidSegments.isEmpty()) {
+        status = SignatureReport.Status.SEGMENT_HASH_MISMATCH;
+      } else if (status == SignatureReport.Status.OK && !missingDatafiles.isEmpty()) {
+        status = SignatureReport.Status.DATAFILE_MISSING;
+      } else if (status == SignatureReport.Status.OK && !invalidDatafiles.isEmpty()) {
+        status = SignatureReport.Status.DATAFILE_HASH_MISMATCH;
+      }
+      invalidSegments.addAll(missingSegments);
+      return new SignatureReport(signatureUri, manifestUri, status, missingDatafiles, invalidDatafiles,
+        invalidSegments, datafileErrors, message);
+    }
+
+    /**
+     * Walk manifest and its segments depth first, checking every segment against hash in referencing manifest.
+     * Segment references are walked with explicit stack, so deep chains of segments can not overflow the call stack.
+     */
+    private void collectSegments(LazyManifest part, List<LazyManifest> parts, List<String> missingSegments,
+                                 List<String> invalidSegments) throws KSIException {
+      parts.add(part);
+      Deque<SegmentReference> pending = new ArrayDeque<>();
+      pushSegments(part, pending);
+      while (!pending.isEmpty()) {
+        SegmentReference reference = pending.pop();
+        String segmentUri = reference.part.getSegmentUri(reference.index);
+        LazyManifest segment = containerIndex.getSegment(segmentUri);
+        if (segment == null) {
+          missingSegments.add(segmentUri);
+          continue;
+        }
+        DataHash expected = reference.part.getSegmentHash(reference.index);
+        if (!expected.equals(segment.getHash(expected.getAlgorithm()))) {
+          invalidSegments.add(segmentUri);
+        }
+        parts.add(segment);
+        pushSegments(segment, pending);
+      }
+    }
+
+    private void pushSegments(LazyManifest part, Deque<SegmentReference> pending) {
+      for (int i = part.getSegmentCount() - 1; i >= 0; i--) {
+        pending.push(new SegmentReference(part, i));
+      }
+    }
+
+    private boolean verifySignature(CentralDirectoryEntry signatureEntry) throws IOException, KSIException {
+      byte[] signature = new ZipService().readEntry(channel, signatureEntry, ContainerIndex.MAX_TLV_ENTRY_SIZE);
+
+      DataHash signedHash = manifest.getHash(HashAlgorithm.SHA2_256);
+      TLVElement signatureElement = TLVElement.create(signature);
+      if (AggregateSignatureStructure.isAggregateSignature(signatureElement)) {
+        AggregateSignatureStructure aggregateSignature = new AggregateSignatureStructure(signatureElement);
+        signedHash = aggregateSignature.getRootHash(signedHash);
+        signature = aggregateSignature.getKsiSignature();
+      }
+      return signatureVerifier.verify(signature, signedHash);
+    }
+  }
+
+  @SuppressWarnings("serial")
+  private class DatafileTask extends RecursiveTask<Boolean> {
+    private final FileChannel channel;
+    private final CentralDirectoryEntry entry;
+    private final LazyManifest manifest;
+    private final int index;
+    private String error;
+
+    DatafileTask(FileChannel channel, CentralDirectoryEntry entry, LazyManifest manifest, int index) {
+      this.channel = channel;
+      this.entry = entry;
+      this.manifest = manifest;
+      this.index = index;
+    }
+
+    @Override
+    protected Boolean compute() {
+      try {
+        DatafileStructure datafileStructure = manifest.getDatafile(index);
+        List<DataHash> expected = datafileStructure.getHashes();
+        List<HashAlgorithm> hashAlgorithms = new ArrayList<>();
+        for (DataHash dataHash : expected) {
+          hashAlgorithms.add(dataHash.getAlgorithm());
+        }
+
+        List<DataHash> actual;
+        if (digestCache != null) {
+          actual = calculateHashesWithCache(hashAlgorithms);
+        } else {
+          try (InputStream is = new ZipService().getEntryInputStream(channel, entry)) {
+            actual = new TLVService().calculateHashes(hashAlgorithms, is);
+          }
+        }
+        return expected.equals(actual);
+      } catch (IOException | KSIException | RuntimeException e) {
+        // error in one datafile is reported under its signature, other datafiles and signatures are still verified
+        error = "Unable to hash datafile " + entry.getName() + ": " + e.getMessage();
+        return false;
+      }
+    }
+
+    /**
+     * Look up hashes by name, size and CRC of entry. On miss entry is hashed and CRC and size of the same
+     * decompressed bytes are calculated in one pass, hashes are put into cache only when they match entry.
+     */
+    private List<DataHash> calculateHashesWithCache(List<HashAlgorithm> hashAlgorithms)
+      throws IOException, KSIException {
+      List<DataHash> cached = digestCache.get(entry, hashAlgorithms);
+      if (cached != null) {
+        return cached;
+      }
+
+      CRC32 crc = new CRC32();
+      try (HashingInputStream in = new HashingInputStream(
+        new CheckedInputStream(new ZipService().getEntryInputStream(channel, entry), crc), hashAlgorithms)) {
+        long size = in.skip(Long.MAX_VALUE);
+        List<DataHash> actual = in.getHashes();
+        if (size == entry.getSize() && crc.getValue() == entry.getCrc()) {
+          digestCache.put(entry, actual);
+        }
+        return actual;
+      }
+    }
+  }
+
+  private static class SegmentReference {
+    private final LazyManifest part;
+    private final int index;
+
+    SegmentReference(LazyManifest part, int index) {
+      this.part = part;
+      this.index = index;
+    }
+  }
+
+  private static List<String> getUnsignedEntries(ContainerIndex containerIndex) throws TLVParserException {
+    Set<String> signed = new HashSet<>();
+    for (LazyManifest manifest : containerIndex.getManifests()) {
+      signed.add(manifest.getSignatureUri());
+      signed.add(containerIndex.getSignedManifests().get(manifest.getSignatureUri()));
+      for (int i = 0; i < manifest.getDatafileCount(); i++) {
+        try {
+          signed.add(manifest.getDatafileUri(i));
+        } catch (TLVParserException e) {
+          // reported in signature report of manifest
+        }
+      }
+      if (manifest.isSegmented()) {
+        signed.addAll(containerIndex.getSignedFiles().get(manifest.getSignatureUri()));
+        signed.addAll(containerIndex.getSignedSegments().get(manifest.getSignatureUri()));
+      }
+    }
+
+    List<String> unsigned = new ArrayList<>();
+    for (String name : containerIndex.getEntryNames()) {
+      if (!signed.contains(name)) {
+        unsigned.add(name);
+      }
+    }
+    return unsigned;
+  }
+}
@@ -0,0 +1,122 @@
+package ee.guardtime.proov.api;
+
+import com.guardtime.ksi.hashing.DataHash;
+import com.guardtime.ksi.hashing.HashAlgorithm;
+import ee.guardtime.proov.zip.CentralDirectoryEntry;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Cache of datafile hashes keyed by entry name, size and CRC of uncompressed data. ZipContainerServiceImpl
+ * fills it when datafiles are added, ContainerVerifier uses it instead of reading entries and fills it with
+ * hashes it calculates. Entries copied into new container by finish() keep their name, size and CRC, so
+ * they keep their hashes in cache. Key is taken from central directory and CRC32 is not collision resistant,
+ * so cache should be shared only with containers whose files are trusted, such as containers written by
+ * the same service. Least recently used hashes are dropped when cache is full. Cache can be shared between
+ * threads.
+ *
+ */
+public class DigestCache {
+
+  public static final int DEFAULT_MAX_ENTRIES = 100000;
+
+  private final Map<Key, Map<HashAlgorithm, DataHash>> hashes;
+
+  public DigestCache() {
+    this(DEFAULT_MAX_ENTRIES);
+  }
+
+  /**
+   * @param maxEntries maximum number of entries kept in cache
+   */
+  public DigestCache(final int maxEntries) {
+    this.hashes = new LinkedHashMap<Key, Map<HashAlgorithm, DataHash>>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<Key, Map<HashAlgorithm, DataHash>> eldest) {
+        return size() > maxEntries;
+      }
+    };
+  }
+
+  /**
+   * Remember hashes of entry data. Hashes with other algorithms remembered earlier are kept.
+   *
+   * @param entry entry which size and CRC are calculated from the same bytes as hashes
+   * @param dataHashes hashes of uncompressed entry data
+   */
+  public synchronized void put(CentralDirectoryEntry entry, List<DataHash> dataHashes) {
+    Key key = new Key(entry);
+    Map<HashAlgorithm, DataHash> entryHashes = hashes.get(key);
+    if (entryHashes == null) {
+      entryHashes = new EnumMap<>(HashAlgorithm.class);
+      hashes.put(key, entryHashes);
+    }
+    for (DataHash dataHash : dataHashes) {
+      entryHashes.put(dataHash.getAlgorithm(), dataHash);
+    }
+  }
+
+  /**
+   * Return hashes of entry data
+   *
+   * @param entry entry of central directory
+   * @param hashAlgorithms algorithms of hashes
+   * @return hashes in the same order as algorithms or null if some of them is not in cache
+   */
+  public synchronized List<DataHash> get(CentralDirectoryEntry entry, List<HashAlgorithm> hashAlgorithms) {
+    Map<HashAlgorithm, DataHash> entryHashes = hashes.get(new Key(entry));
+    if (entryHashes == null) {
+      return null;
+    }
+    List<DataHash> result = new ArrayList<>();
+    for (HashAlgorithm hashAlgorithm : hashAlgorithms) {
+      DataHash dataHash = entryHashes.get(hashAlgorithm);
+      if (dataHash == null) {
+        return null;
+      }
+      result.add(dataHash);
+    }
+    return result;
+  }
+
+  public synchronized int size() {
+    return hashes.size();
+  }
+
+  public synchronized void clear() {
+    hashes.clear();
+  }
+
+  private static class Key {
+    private final String name;
+    private final long size;
+    private final long crc;
+
+    Key(CentralDirectoryEntry entry) {
+      this.name = entry.getName();
+      this.size = entry.getSize();
+      this.crc = entry.getCrc();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (!(o instanceof Key)) {
+        return false;
+      }
+      Key key = (Key) o;
+      return size == key.size && crc == key.crc && name.equals(key.name);
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * (31 * name.hashCode() + (int) (size ^ (size >>> 32))) + (int) crc;
+    }
+  }
+}
@@ -0,0 +1,144 @@
+package ee.guardtime.proov.api;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Table of container entries. Keeps names of entries which stay in container and for every signed
+ * entry (datafile, manifest, manifest segment) signatures which reference it. Number of referencing
+ * signatures is reference count of entry, entry is removed together with its last signature.
+ * Adding, looking up and removing one entry takes constant time, so bookkeeping of containers
+ * with lots of entries stays linear. Table is not thread safe.
+ *
+ */
+class EntryTable {
+
+  private final Set<String> names = new LinkedHashSet<>();
+  private final Map<String, Set<String>> signaturesByEntry = new HashMap<>();
+  private final Map<String, List<String>> entriesBySignature = new HashMap<>();
+
+  /**
+   * Add entry into table
+   *
+   * @param name entry name
+   */
+  void add(String name) {
+    names.add(name);
+  }
+
+  /**
+   * Add entries into table
+   *
+   * @param entryNames entry names
+   */
+  void addAll(Collection<String> entryNames) {
+    names.addAll(entryNames);
+  }
+
+  boolean contains(String name) {
+    return names.contains(name);
+  }
+
+  /**
+   * Register entries signed by signature. Can be called several times for one signature,
+   * entries are added to ones registered earlier.
+   *
+   * @param signatureUri signature URI
+   * @param signedEntries names of entries covered by signature
+   */
+  void addSignature(String signatureUri, Collection<String> signedEntries) {
+    List<String> entries = entriesBySignature.get(signatureUri);
+    if (entries == null) {
+      entries = new ArrayList<>();
+      entriesBySignature.put(signatureUri, entries);
+    }
+    for (String name : signedEntries) {
+      Set<String> signatures = signaturesByEntry.get(name);
+      if (signatures == null) {
+        signatures = new HashSet<>(2);
+        signaturesByEntry.put(name, signatures);
+      }
+      if (signatures.add(signatureUri)) {
+        entries.add(name);
+      }
+    }
+  }
+
+  /**
+   * Return signatures which reference entry
+   *
+   * @param name entry name
+   * @return signature URIs, empty if entry is not signed
+   */
+  Set<String> getSignatures(String name) {
+    Set<String> signatures = signaturesByEntry.get(name);
+    return signatures == null ? Collections.<String>emptySet() : Collections.unmodifiableSet(signatures);
+  }
+
+  /**
+   * Return number of signatures which reference entry
+   *
+   * @param name entry name
+   * @return reference count
+   */
+  int getReferenceCount(String name) {
+    Set<String> signatures = signaturesByEntry.get(name);
+    return signatures == null ? 0 : signatures.size();
+  }
+
+  /**
+   * Remove signature entry and release entries signed by it. Entries which are not referenced
+   * by any other signature are removed from table.
+   *
+   * @param signatureUri signature URI
+   * @return names of removed entries
+   */
+  List<String> removeSignature(String signatureUri) {
+    List<String> removed = new ArrayList<>();
+    if (names.remove(signatureUri)) {
+      removed.add(signatureUri);
+    }
+
+    List<String> entries = entriesBySignature.remove(signatureUri);
+    if (entries == null) {
+      return removed;
+    }
+    for (String name : entries) {
+      Set<String> signatures = signaturesByEntry.get(name);
+      signatures.remove(signatureUri);
+      if (signatures.isEmpty()) {
+        signaturesByEntry.remove(name);
+        if (names.remove(name)) {
+          removed.add(name);
+        }
+      }
+    }
+    return removed;
+  }
+
+  /**
+   * Return names of entries in the order they were added
+   *
+   * @return unmodifiable view of entry names
+   */
+  Set<String> getNames() {
+    return Collections.unmodifiableSet(names);
+  }
+
+  int size() {
+    return names.size();
+  }
+
+  void clear() {
+    names.clear();
+    signaturesByEntry.clear();
+    entriesBySignature.clear();
+  }
+}
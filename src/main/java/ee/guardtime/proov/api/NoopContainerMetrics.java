@@ -0,0 +1,35 @@
+package ee.guardtime.proov.api;
+
+/**
+ * ContainerMetrics which ignores everything. Used by container service when no metrics are set,
+ * can be extended to receive only some of the stages.
+ *
+ */
+public class NoopContainerMetrics implements ContainerMetrics {
+
+  public static final NoopContainerMetrics INSTANCE = new NoopContainerMetrics();
+
+  @Override
+  public void recordHashing(long bytes, long nanos) {
+  }
+
+  @Override
+  public void recordCompression(long uncompressedBytes, long compressedBytes, long nanos) {
+  }
+
+  @Override
+  public void recordSigning(long nanos, boolean success) {
+  }
+
+  @Override
+  public void recordEntriesCopied(int entries, long nanos) {
+  }
+
+  @Override
+  public void recordTempFileWritten(long bytes) {
+  }
+
+  @Override
+  public void recordMove(long bytes, long nanos) {
+  }
+}
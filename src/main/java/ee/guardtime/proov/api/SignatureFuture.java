@@ -0,0 +1,49 @@
+package ee.guardtime.proov.api;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Future returned to caller of asynchronous signing. Completes when signing request is finished
+ * and returns result known already at submit time (signature URIs).
+ *
+ */
+class SignatureFuture<T> implements Future<T> {
+
+  private final Future<?> signing;
+  private final T result;
+
+  SignatureFuture(Future<?> signing, T result) {
+    this.signing = signing;
+    this.result = result;
+  }
+
+  @Override
+  public boolean cancel(boolean mayInterruptIfRunning) {
+    return false;
+  }
+
+  @Override
+  public boolean isCancelled() {
+    return false;
+  }
+
+  @Override
+  public boolean isDone() {
+    return signing.isDone();
+  }
+
+  @Override
+  public T get() throws InterruptedException, ExecutionException {
+    signing.get();
+    return result;
+  }
+
+  @Override
+  public T get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+    signing.get(timeout, unit);
+    return result;
+  }
+}
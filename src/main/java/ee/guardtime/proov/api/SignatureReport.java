@@ -0,0 +1,119 @@
+package ee.guardtime.proov.api;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Verification result of one signature in container
+ *
+ */
+public class SignatureReport {
+
+  public enum Status {
+    OK,
+    SIGNATURE_MISSING,
+    SIGNATURE_INVALID,
+    MANIFEST_INVALID,
+    SEGMENT_MISSING,
+    SEGMENT_HASH_MISMATCH,
+    DATAFILE_MISSING,
+    DATAFILE_HASH_MISMATCH
+  }
+
+  private final String signatureUri;
+  private final String manifestUri;
+  private final Status status;
+  private final List<String> missingDatafiles;
+  private final List<String> invalidDatafiles;
+  private final List<String> invalidSegments;
+  private final Map<String, String> datafileErrors;
+  private final String message;
+
+  SignatureReport(String signatureUri, String manifestUri, Status status, List<String> missingDatafiles,
+                  List<String> invalidDatafiles, List<String> invalidSegments, Map<String, String> datafileErrors,
+                  String message) {
+    this.signatureUri = signatureUri;
+    this.manifestUri = manifestUri;
+    this.status = status;
+    this.missingDatafiles = Collections.unmodifiableList(missingDatafiles);
+    this.invalidDatafiles = Collections.unmodifiableList(invalidDatafiles);
+    this.invalidSegments = Collections.unmodifiableList(invalidSegments);
+    this.datafileErrors = Collections.unmodifiableMap(datafileErrors);
+    this.message = message;
+  }
+
+  public String getSignatureUri() {
+    return signatureUri;
+  }
+
+  public String getManifestUri() {
+    return manifestUri;
+  }
+
+  public Status getStatus() {
+    return status;
+  }
+
+  public boolean isOk() {
+    return status == Status.OK;
+  }
+
+  /**
+   * Return datafiles listed in manifest but not found in container
+   *
+   * @return datafile URIs
+   */
+  public List<String> getMissingDatafiles() {
+    return missingDatafiles;
+  }
+
+  /**
+   * Return datafiles which content does not match hashes in manifest or can not be read
+   *
+   * @return datafile URIs
+   */
+  public List<String> getInvalidDatafiles() {
+    return invalidDatafiles;
+  }
+
+  /**
+   * Return manifest segments which are missing or do not match hashes in manifest
+   *
+   * @return segment URIs
+   */
+  public List<String> getInvalidSegments() {
+    return invalidSegments;
+  }
+
+  /**
+   * Return reasons why datafiles could not be read or hashed
+   *
+   * @return error messages by datafile URI
+   */
+  public Map<String, String> getDatafileErrors() {
+    return datafileErrors;
+  }
+
+  /**
+   * Return error message of signature verification or of invalid manifest
+   *
+   * @return message or null
+   */
+  public String getMessage() {
+    return message;
+  }
+
+  @Override
+  public String toString() {
+    return "SignatureReport{" +
+      "signatureUri='" + signatureUri + '\'' +
+      ", status=" + status +
+      (missingDatafiles.isEmpty() ? "" : ", missingDatafiles=" + missingDatafiles) +
+      (invalidDatafiles.isEmpty() ? "" : ", invalidDatafiles=" + invalidDatafiles) +
+      (invalidSegments.isEmpty() ? "" : ", invalidSegments=" + invalidSegments) +
+      (datafileErrors.isEmpty() ? "" : ", datafileErrors=" + datafileErrors) +
+      (message == null ? "" : ", message='" + message + '\'') +
+      '}';
+  }
+}
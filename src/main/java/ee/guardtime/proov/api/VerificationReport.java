@@ -0,0 +1,91 @@
+package ee.guardtime.proov.api;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Verification result of one container
+ *
+ */
+public class VerificationReport {
+
+  private final File container;
+  private final List<SignatureReport> signatureReports;
+  private final List<String> unsignedEntries;
+  private final String error;
+
+  VerificationReport(File container, List<SignatureReport> signatureReports, List<String> unsignedEntries) {
+    this(container, signatureReports, unsignedEntries, null);
+  }
+
+  VerificationReport(File container, String error) {
+    this(container, Collections.<SignatureReport>emptyList(), Collections.<String>emptyList(), error);
+  }
+
+  private VerificationReport(File container, List<SignatureReport> signatureReports, List<String> unsignedEntries,
+                             String error) {
+    this.container = container;
+    this.signatureReports = Collections.unmodifiableList(signatureReports);
+    this.unsignedEntries = Collections.unmodifiableList(unsignedEntries);
+    this.error = error;
+  }
+
+  public File getContainer() {
+    return container;
+  }
+
+  /**
+   * Return reports of signatures in the same order as manifests are in container
+   *
+   * @return signature reports
+   */
+  public List<SignatureReport> getSignatureReports() {
+    return signatureReports;
+  }
+
+  /**
+   * Return container entries which are not signed by any manifest
+   *
+   * @return entry names
+   */
+  public List<String> getUnsignedEntries() {
+    return unsignedEntries;
+  }
+
+  /**
+   * Return error which prevented reading container
+   *
+   * @return error message or null
+   */
+  public String getError() {
+    return error;
+  }
+
+  /**
+   * Container is valid when it could be read and all signatures are valid
+   *
+   * @return true if container is valid
+   */
+  public boolean isOk() {
+    if (error != null) {
+      return false;
+    }
+    for (SignatureReport signatureReport : signatureReports) {
+      if (!signatureReport.isOk()) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  @Override
+  public String toString() {
+    return "VerificationReport{" +
+      "container=" + container +
+      ", signatureReports=" + signatureReports +
+      (unsignedEntries.isEmpty() ? "" : ", unsignedEntries=" + unsignedEntries) +
+      (error == null ? "" : ", error='" + error + '\'') +
+      '}';
+  }
+}
@@ -1,53 +1,83 @@
 package ee.guardtime.proov.api;
 
-import com.guardtime.ksi.KSI;
-import com.guardtime.ksi.KSIBuilder;
 import com.guardtime.ksi.exceptions.KSIException;
 import com.guardtime.ksi.hashing.DataHash;
 import com.guardtime.ksi.hashing.HashAlgorithm;
-import com.guardtime.ksi.hashing.UnknownHashAlgorithmException;
 import com.guardtime.ksi.service.client.http.HttpClientSettings;
-import com.guardtime.ksi.service.http.simple.SimpleHttpClient;
 import com.guardtime.ksi.tlv.TLVElement;
 import com.guardtime.ksi.tlv.TLVParserException;
-import com.guardtime.ksi.trust.X509CertificateSubjectRdnSelector;
-import com.guardtime.ksi.unisignature.KSISignature;
 import ee.guardtime.proov.ContainerServiceException;
-import ee.guardtime.proov.tlv.DatafileStructure;
-import ee.guardtime.proov.tlv.ManifestStructure;
+import ee.guardtime.proov.ksi.KsiSigner;
+import ee.guardtime.proov.ksi.LocalAggregationTree;
+import ee.guardtime.proov.ksi.Signer;
+import ee.guardtime.proov.tlv.AggregateSignatureStructure;
+import ee.guardtime.proov.tlv.HashingInputStream;
+import ee.guardtime.proov.tlv.ManifestWriter;
 import ee.guardtime.proov.tlv.TLVService;
-import ee.guardtime.proov.zip.FileReference;
+import ee.guardtime.proov.zip.CentralDirectoryEntry;
+import ee.guardtime.proov.zip.CompressionPolicy;
+import ee.guardtime.proov.zip.DeflatedEntry;
 import ee.guardtime.proov.zip.ZipService;
+import ee.guardtime.proov.zip.ZipWriter;
 
 import java.io.*;
+import java.nio.channels.FileChannel;
 import java.nio.file.*;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipInputStream;
-import java.util.zip.ZipOutputStream;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
 
 /**
  * This is implementation of ContainerService based on ZIP format.
  *
  */
-public class ZipContainerServiceImpl implements ContainerServiceAPI {
+public class ZipContainerServiceImpl implements AsyncContainerServiceAPI {
 
 
-  private List<ManifestStructure> manifestStructures = new ArrayList<>();
   private Map<String, List<String>> signedFiles = new HashMap<>();
   private Map<String, String> signedManifests = new HashMap<>();
+  private Map<String, List<String>> signedSegments = new HashMap<>();
   private List<String> signatureUris = new ArrayList<>();
-  private ZipOutputStream newZipOutputStream;
+  private ZipWriter zipWriter;
   private int counter;
   private HttpClientSettings httpClientSettings;
   private File originalZipFile = null;
   private File tempZipFile = null;
-
-
-  private List<String> zipEntryNames = new ArrayList<>();
+  private boolean appendInPlace;
+  private boolean batchSigning;
+  private int maxInFlightSignatures = DEFAULT_MAX_IN_FLIGHT_SIGNATURES;
+  private Semaphore inFlightSignatures;
+  private ExecutorService signingExecutor;
+  private List<PendingSignatures> pendingSignatures = new ArrayList<>();
+  private ExecutorService hashingExecutor;
+  private ExecutorService deflateExecutor;
+  private int hashingLookahead = DEFAULT_HASHING_LOOKAHEAD;
+  private boolean segmentedManifests;
+  private CompressionPolicy compressionPolicy;
+  private Signer signer;
+  private ContainerMetrics metrics = NoopContainerMetrics.INSTANCE;
+  private DigestCache digestCache;
+
+  public static final int DEFAULT_MAX_IN_FLIGHT_SIGNATURES = 16;
+  public static final int DEFAULT_HASHING_LOOKAHEAD = 8;
+  public static final String APPEND_JOURNAL_SUFFIX = ".journal";
+  private static final Pattern MANIFEST_URI_PATTERN = Pattern.compile("/META-INF/manifest(\\d+)\\.tlv");
+
+
+  private final EntryTable entryTable = new EntryTable();
 
   /**
    * Return list on signatures
@@ -77,55 +107,205 @@ public class ZipContainerServiceImpl implements ContainerServiceAPI {
     return signedManifests;
   }
 
+  /**
+   * Return collection of signatures and manifest segments of segmented manifests in container
+   *
+   * @return collection of signed manifest segments
+   */
+  public Map<String, List<String>> getSignedSegments() {
+    return signedSegments;
+  }
+
+  /**
+   * Set policy which chooses compression of datafiles, for example ContentAwareCompressionPolicy
+   * stores already compressed files instead of deflating them again. Manifests and signatures are
+   * always deflated.
+   *
+   * @param compressionPolicy compression policy, null to deflate all datafiles with default level
+   */
+  public void setCompressionPolicy(CompressionPolicy compressionPolicy) {
+    this.compressionPolicy = compressionPolicy;
+  }
+
+  /**
+   * Set signer of manifests, for example StubSigner for load testing without KSI gateway or
+   * RecordingSigner around other signer. By default manifests are signed with shared KsiSigner
+   * built from HttpClientSettings given at initialization.
+   *
+   * @param signer signer, null to use KsiSigner
+   */
+  public void setSigner(Signer signer) {
+    this.signer = signer;
+  }
+
+  /**
+   * Set metrics hook which receives amount of data and time of every pipeline stage:
+   * hashing, writing datafile entries, signing, copying entries of existing container and
+   * replacing container with modified copy.
+   *
+   * @param metrics metrics hook, null to not record metrics
+   */
+  public void setMetrics(ContainerMetrics metrics) {
+    this.metrics = metrics == null ? NoopContainerMetrics.INSTANCE : metrics;
+  }
+
+  /**
+   * Set cache which gets hashes of every datafile added by this service, keyed by entry name, size and CRC.
+   * The same cache given to ContainerVerifier lets it verify these datafiles without reading them.
+   *
+   * @param digestCache cache of datafile hashes, null to not cache hashes
+   */
+  public void setDigestCache(DigestCache digestCache) {
+    this.digestCache = digestCache;
+  }
+
+
+  /**
+   * Enable or disable segmented manifests. By default files which do not fit into one manifest
+   * are split over several manifests, each with its own signature. With segmented manifests
+   * datafiles are listed in manifest segments and one signed manifest references segments by
+   * their hashes, so addFilesAndSign needs one signature for any number of files.
+   * Files which fit into one manifest are still written in single manifest format.
+   *
+   * @param segmentedManifests true to sign all files of one call with one signature
+   */
+  public void setSegmentedManifests(boolean segmentedManifests) {
+    this.segmentedManifests = segmentedManifests;
+  }
+
+  /**
+   * Enable or disable batch signing. In batch signing mode all manifests created by one
+   * addFilesAndSign call are signed with one KSI signature. Local hash tree is built over
+   * manifest hashes and every signature file contains hash chain from manifest to tree root.
+   *
+   * @param batchSigning true to sign manifests together
+   */
+  public void setBatchSigning(boolean batchSigning) {
+    this.batchSigning = batchSigning;
+  }
+
+  /**
+   * Set how many asynchronous signing requests can be sent to Guardtime service at the same time.
+   * When limit is reached, asynchronous add methods wait until some of the requests are finished.
+   * Has to be set before first asynchronous signing.
+   *
+   * @param maxInFlightSignatures maximum number of outstanding signing requests
+   */
+  public void setMaxInFlightSignatures(int maxInFlightSignatures) {
+    if (signingExecutor != null) {
+      throw new ContainerServiceException("Asynchronous signing already started");
+    }
+    if (maxInFlightSignatures < 1) {
+      throw new ContainerServiceException("At least one signing request has to be allowed");
+    }
+    this.maxInFlightSignatures = maxInFlightSignatures;
+  }
+
+  /**
+   * Set executor for hashing datafiles in addFilesAndSign. Files are hashed on the executor
+   * ahead of the ZIP writer, while entries and manifests are still written in list order.
+   * Every file is read twice then: once for hashing and once for writing into container. CRC and size
+   * of hashed bytes are compared with the written entry, so file changed between the reads fails
+   * instead of being signed with hash of other content.
+   * Without executor file is hashed while it is written. Executor is not shut down by this service.
+   *
+   * @param hashingExecutor executor for hashing tasks, null to hash while writing
+   */
+  public void setHashingExecutor(ExecutorService hashingExecutor) {
+    this.hashingExecutor = hashingExecutor;
+  }
+
+  /**
+   * Set executor for deflating datafiles. Large datafiles are split into blocks which are deflated
+   * on the executor in parallel, container stays standard ZIP archive. Has to be set before container
+   * is initialized. Executor is not shut down by this service.
+   *
+   * @param deflateExecutor executor for deflating blocks, null to deflate on calling thread
+   */
+  public void setDeflateExecutor(ExecutorService deflateExecutor) {
+    if (zipWriter != null) {
+      throw new ContainerServiceException("Already initialized");
+    }
+    this.deflateExecutor = deflateExecutor;
+  }
+
+  /**
+   * Set how many files can be hashed ahead of file currently written into container.
+   *
+   * @param hashingLookahead number of files hashed in advance
+   */
+  public void setHashingLookahead(int hashingLookahead) {
+    if (hashingLookahead < 1) {
+      throw new ContainerServiceException("At least one file has to be hashed ahead");
+    }
+    this.hashingLookahead = hashingLookahead;
+  }
+
   /**
    * Initialize container and open streams for adding new files.
    * This method is used when needed to modify existing container.
    *
    */
   public void initializeFromExisting(HttpClientSettings httpClientSettings, File inputFile)  {
-    if(this.newZipOutputStream != null){
+    if(this.zipWriter != null){
       throw  new ContainerServiceException("Already initialized");
     }
 
     try {
+      ZipWriter.recoverAppend(inputFile, getAppendJournal(inputFile));
+      readExistingContainer(inputFile);
+
       this.tempZipFile = File.createTempFile("zip_", ".zip");
       this.originalZipFile = inputFile;
+      this.zipWriter = new ZipWriter(new FileOutputStream(tempZipFile));
+      this.zipWriter.setDeflateExecutor(deflateExecutor);
+      this.httpClientSettings = httpClientSettings;
+    } catch (IOException ioe){
+      throw new ContainerServiceException("Unable to initialize container! Some IO exception", ioe);
+    } catch (TLVParserException tpe) {
+      throw new ContainerServiceException("Unable to initialize container! Some proble with TLV implementation", tpe);
+    }
+  }
 
-      ZipInputStream zis = new ZipInputStream(new FileInputStream(originalZipFile));
-      ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(tempZipFile));
-
-      ZipEntry entry;
-      while ((entry = zis.getNextEntry()) != null) {
-
-        if (entry.getName().startsWith("/META-INF/manifest")) {
-
-          ZipService zipService = new ZipService();
-          FileReference fileReference = zipService.unzipOneEntry(zis, entry);
-          ManifestStructure manifestStructure = new ManifestStructure(TLVElement.create(fileReference.getContent()));
-
-          List<String> datafileUris = getSignedFilesList(manifestStructure);
-
-          signedManifests.put(manifestStructure.getSignatureUri(), entry.getName());
-          signedFiles.put(manifestStructure.getSignatureUri(), datafileUris);
-          signatureUris.add(manifestStructure.getSignatureUri());
-
-          manifestStructures.add(manifestStructure);
-        }
+  /**
+   * Initialize existing container for adding new files in place. New entries and new central directory
+   * are written over old central directory, container is not copied. Signatures cannot be removed in this mode.
+   * Old central directory is kept in journal file next to container until finish() is done. If process fails
+   * before finish(), container is restored from journal when it is opened next time with initializeForAppend
+   * or initializeFromExisting.
+   *
+   */
+  public void initializeForAppend(HttpClientSettings httpClientSettings, File inputFile) {
+    if(this.zipWriter != null){
+      throw  new ContainerServiceException("Already initialized");
+    }
 
-        zipEntryNames.add(entry.getName());
+    try {
+      File journal = getAppendJournal(inputFile);
+      ZipWriter.recoverAppend(inputFile, journal);
+      readExistingContainer(inputFile);
+
+      RandomAccessFile randomAccessFile = new RandomAccessFile(inputFile, "rw");
+      try {
+        this.zipWriter = new ZipWriter(randomAccessFile.getChannel(), journal);
+        this.zipWriter.setDeflateExecutor(deflateExecutor);
+      } catch (IOException e) {
+        randomAccessFile.close();
+        throw e;
       }
-
-      zis.close();
-      this.counter = manifestStructures.size() + 1;
-      this.newZipOutputStream = zos;
+      this.appendInPlace = true;
       this.httpClientSettings = httpClientSettings;
     } catch (IOException ioe){
       throw new ContainerServiceException("Unable to initialize container! Some IO exception", ioe);
-    } catch (TLVParserException | UnknownHashAlgorithmException tpe) {
+    } catch (TLVParserException tpe) {
       throw new ContainerServiceException("Unable to initialize container! Some proble with TLV implementation", tpe);
     }
   }
 
+  private static File getAppendJournal(File container) {
+    return new File(container.getPath() + APPEND_JOURNAL_SUFFIX);
+  }
+
   /**
    * Initialize container and open streams for adding new files.
    * Output goes directly to speicifed file in filesystem.
@@ -146,11 +326,12 @@ public class ZipContainerServiceImpl implements ContainerServiceAPI {
    *
    */
   public void initialize(HttpClientSettings httpClientSettings, OutputStream outputStream) {
-    if(this.newZipOutputStream != null){
+    if(this.zipWriter != null){
       throw  new ContainerServiceException("Already initialized");
     }
     this.counter = 1;
-    this.newZipOutputStream = new ZipOutputStream(outputStream);
+    this.zipWriter = new ZipWriter(outputStream);
+    this.zipWriter.setDeflateExecutor(deflateExecutor);
     this.httpClientSettings = httpClientSettings;
   }
 
@@ -159,22 +340,38 @@ public class ZipContainerServiceImpl implements ContainerServiceAPI {
    *
    */
   public void finish(){
-    if(newZipOutputStream == null) {
+    if(zipWriter == null) {
       throw new ContainerServiceException("Container service not initialized");
     }
 
     try {
-      if (originalZipFile != null) {
-        ZipInputStream originalInputStream = new ZipInputStream(new FileInputStream(originalZipFile));
-        ZipService zipService = new ZipService();
-        zipService.copyEntryFromZip2Zip(originalInputStream, newZipOutputStream, zipEntryNames);
+      try {
+        writeSignatures(true);
+
+        if (originalZipFile != null) {
+          try (FileInputStream originalInputStream = new FileInputStream(originalZipFile)) {
+            ZipService zipService = new ZipService();
+            long start = System.nanoTime();
+            int copied = zipService.copyEntryFromZip2Zip(originalInputStream.getChannel(), zipWriter,
+              entryTable.getNames());
+            metrics.recordEntriesCopied(copied, System.nanoTime() - start);
+          }
+        }
+      } finally {
+        if (signingExecutor != null) {
+          signingExecutor.shutdown();
+        }
+        zipWriter.close();
       }
-      newZipOutputStream.close();
 
       if (originalZipFile != null) {
         Path source = tempZipFile.toPath();
         Path target = originalZipFile.toPath();
+        long size = Files.size(source);
+        metrics.recordTempFileWritten(size);
+        long start = System.nanoTime();
         Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+        metrics.recordMove(size, System.nanoTime() - start);
       }
     } catch (IOException ioe){
       throw  new ContainerServiceException("Unable to save container. Some IO exception.", ioe);
@@ -188,43 +385,57 @@ public class ZipContainerServiceImpl implements ContainerServiceAPI {
    * @param files list of files
    */
   public void addFilesAndSign(HashAlgorithm fileHashingAlgorithm, List<File> files) {
-    if(newZipOutputStream == null) {
+    addFilesAndSign(Collections.singletonList(fileHashingAlgorithm), files);
+  }
+
+  /**
+   * Add and sign list of files. Every file is hashed with all given algorithms in one pass,
+   * first algorithm gives main hash of datafile.
+   *
+   * @param fileHashingAlgorithms hash algorithms
+   * @param files list of files
+   */
+  public void addFilesAndSign(List<HashAlgorithm> fileHashingAlgorithms, List<File> files) {
+    if(zipWriter == null) {
       throw new ContainerServiceException("Container service not initialized");
     }
 
     try {
-      String signatureUri = "/META-INF/signature" + counter + ".ksi";
-      TLVService tlvService = new TLVService();
-      ManifestStructure manifestStructure = tlvService.createEmptyManifest(signatureUri);
-      ZipService zipService = new ZipService();
-
-      for (File file : files) {
-
-        DatafileStructure datafileStructure;
-        try (FileInputStream is = new FileInputStream(file)) {
-          datafileStructure = tlvService.getDatafileStructure(fileHashingAlgorithm, is, file.getName());
-        }
-
-
-        if (manifestStructure.getContentLength() + datafileStructure.getContentLength() > TLVElement.MAX_TLV16_CONTENT_LENGTH) {
-          signAndAddManifest(signatureUri, manifestStructure);
-          signatureUri = "/META-INF/signature" + counter + ".ksi";
-          manifestStructure = tlvService.createEmptyManifest(signatureUri);
-        }
-
-        try (FileInputStream is = new FileInputStream(file)) {
-          manifestStructure = tlvService.addDatafile(fileHashingAlgorithm, manifestStructure, is, file.getName());
-        }
-
+      writeSignatures(false);
+      PendingSignatures pending = addDatafilesAndManifests(fileHashingAlgorithms, files);
+      signAndWriteSignatures(pending);
+    } catch (KSIException | IOException e) {
+      throw new ContainerServiceException("Unable to add new signature", e);
+    }
+  }
 
-        try (FileInputStream is = new FileInputStream(file)) {
-          ZipEntry entry = zipService.addFileToZip(newZipOutputStream, is, file.getName());
-          zipEntryNames.add(entry.getName());
-        }
-      }
+  /**
+   * Add list of files and send manifests for signing without waiting for signatures.
+   *
+   * @param files list of files
+   * @return future which returns URIs of signatures when signing is done
+   */
+  public Future<List<String>> addFilesAndSignAsync(HashAlgorithm fileHashingAlgorithm, List<File> files) {
+    return addFilesAndSignAsync(Collections.singletonList(fileHashingAlgorithm), files);
+  }
 
+  /**
+   * Add list of files hashed with several algorithms and send manifests for signing without waiting for signatures.
+   *
+   * @param fileHashingAlgorithms hash algorithms
+   * @param files list of files
+   * @return future which returns URIs of signatures when signing is done
+   */
+  public Future<List<String>> addFilesAndSignAsync(List<HashAlgorithm> fileHashingAlgorithms, List<File> files) {
+    if(zipWriter == null) {
+      throw new ContainerServiceException("Container service not initialized");
+    }
 
-      signAndAddManifest(signatureUri, manifestStructure);
+    try {
+      writeSignatures(false);
+      PendingSignatures pending = addDatafilesAndManifests(fileHashingAlgorithms, files);
+      submitSigning(pending);
+      return new SignatureFuture<>(pending.signatures, pending.signatureUris);
     } catch (KSIException | IOException e) {
       throw new ContainerServiceException("Unable to add new signature", e);
     }
@@ -237,107 +448,635 @@ public class ZipContainerServiceImpl implements ContainerServiceAPI {
    * @param filename new filename
    */
   public void addFileAndSign(HashAlgorithm fileHashingAlgorithm, InputStream inputStream, String filename) {
-    if(newZipOutputStream == null) {
+    addFileAndSign(Collections.singletonList(fileHashingAlgorithm), inputStream, filename);
+  }
+
+  /**
+   * Add new file hashed with several algorithms for signing. Stream is read only once.
+   *
+   * @param fileHashingAlgorithms hash algorithms
+   * @param inputStream new file input stream
+   * @param filename new filename
+   */
+  public void addFileAndSign(List<HashAlgorithm> fileHashingAlgorithms, InputStream inputStream, String filename) {
+    if(zipWriter == null) {
       throw new ContainerServiceException("Container service not initialized");
     }
 
     try {
-      ZipService zipService = new ZipService();
+      writeSignatures(false);
+      PendingSignatures pending = addDatafileAndManifest(fileHashingAlgorithms, inputStream, filename);
+      signAndWriteSignatures(pending);
+    } catch (KSIException | IOException e) {
+      throw new ContainerServiceException("Unable to add new signature", e);
+    }
+  }
 
-      ZipEntry entry = zipService.addFileToZip(newZipOutputStream, inputStream, filename);
-      zipEntryNames.add(entry.getName());
+  /**
+   * Add new file and send manifest for signing without waiting for signature.
+   *
+   * @param inputStream new file input stream
+   * @param filename new filename
+   * @return future which returns URI of signature when signing is done
+   */
+  public Future<String> addFileAndSignAsync(HashAlgorithm fileHashingAlgorithm, InputStream inputStream, String filename) {
+    return addFileAndSignAsync(Collections.singletonList(fileHashingAlgorithm), inputStream, filename);
+  }
 
-      TLVService tlvService = new TLVService();
-      final String signatureUri = "/META-INF/signature" + counter + ".ksi";
-      ManifestStructure manifestStructure = tlvService.createEmptyManifest(signatureUri);
-      manifestStructure = tlvService.addDatafile(fileHashingAlgorithm, manifestStructure, inputStream, filename);
+  /**
+   * Add new file hashed with several algorithms and send manifest for signing without waiting for signature.
+   *
+   * @param fileHashingAlgorithms hash algorithms
+   * @param inputStream new file input stream
+   * @param filename new filename
+   * @return future which returns URI of signature when signing is done
+   */
+  public Future<String> addFileAndSignAsync(List<HashAlgorithm> fileHashingAlgorithms, InputStream inputStream,
+                                            String filename) {
+    if(zipWriter == null) {
+      throw new ContainerServiceException("Container service not initialized");
+    }
+
+    try {
+      writeSignatures(false);
+      PendingSignatures pending = addDatafileAndManifest(fileHashingAlgorithms, inputStream, filename);
+      submitSigning(pending);
+      return new SignatureFuture<>(pending.signatures, pending.signatureUris.get(0));
+    } catch (KSIException | IOException e) {
+      throw new ContainerServiceException("Unable to add new signature", e);
+    }
+  }
+
+  /**
+   * Write datafile which is already hashed and compressed, then sign it asynchronously like
+   * addFileAndSignAsync. Used by ConcurrentContainerWriter from its writer thread.
+   *
+   */
+  Future<String> addDeflatedDatafileAndSignAsync(DeflatedEntry deflatedEntry, List<DataHash> fileHashes) {
+    if(zipWriter == null) {
+      throw new ContainerServiceException("Container service not initialized");
+    }
 
-      signAndAddManifest(signatureUri, manifestStructure);
+    try {
+      writeSignatures(false);
+      ManifestWriter manifest = new ManifestWriter("/META-INF/signature" + counter + ".ksi");
+      CentralDirectoryEntry entry = zipWriter.addDeflatedEntry(deflatedEntry);
+      entryTable.add(entry.getName());
+      cacheHashes(entry, fileHashes);
+      manifest.addDatafile(entry.getName(), fileHashes);
+
+      PendingSignatures pending = new PendingSignatures();
+      pending.add(manifest.getSignatureUri(), addManifest(manifest));
+      submitSigning(pending);
+      return new SignatureFuture<>(pending.signatures, pending.signatureUris.get(0));
     } catch (KSIException | IOException e) {
       throw new ContainerServiceException("Unable to add new signature", e);
     }
   }
 
+  CompressionPolicy getCompressionPolicy() {
+    return compressionPolicy;
+  }
+
+  ContainerMetrics getMetrics() {
+    return metrics;
+  }
+
   /**
-   * Removes signature from container
+   * Removes signature from container. Manifest, segments and datafiles of signature are removed
+   * unless they are referenced by some other signature too.
    *
    * @param signatureUri URI of signature file in container
    */
   public void removeSignature(String signatureUri) {
-    List<String> datafileUris = getSignedFiles().get(signatureUri);
-    String manifestUri = getSignedManifests().get(signatureUri);
+    if (appendInPlace) {
+      throw new ContainerServiceException("Signatures cannot be removed when container is opened for append");
+    }
+    if (!signedManifests.containsKey(signatureUri)) {
+      throw new ContainerServiceException("Signature " + signatureUri + " not found in container");
+    }
+
+    entryTable.removeSignature(signatureUri);
+  }
 
-    zipEntryNames.remove(signatureUri);
 
-    for(String datafileUri : datafileUris){
-      zipEntryNames.remove(datafileUri);
+  private void readExistingContainer(File inputFile) throws IOException, TLVParserException {
+    ContainerIndex containerIndex;
+    try (FileInputStream fis = new FileInputStream(inputFile)) {
+      containerIndex = new ContainerIndex(fis.getChannel());
+    }
+
+    signedManifests.putAll(containerIndex.getSignedManifests());
+    signedFiles.putAll(containerIndex.getSignedFiles());
+    signedSegments.putAll(containerIndex.getSignedSegments());
+    signatureUris.addAll(containerIndex.getSignatureUris());
+    entryTable.addAll(containerIndex.getEntryNames());
+    for (Map.Entry<String, String> signedManifest : signedManifests.entrySet()) {
+      String signatureUri = signedManifest.getKey();
+      entryTable.addSignature(signatureUri, Collections.singletonList(signedManifest.getValue()));
+      entryTable.addSignature(signatureUri, signedFiles.get(signatureUri));
+      List<String> segmentUris = signedSegments.get(signatureUri);
+      if (segmentUris != null) {
+        entryTable.addSignature(signatureUri, segmentUris);
+      }
     }
 
-    zipEntryNames.remove(manifestUri);
+    this.counter = getNextCounter();
   }
 
+  /**
+   * Next free manifest number. Some signatures can be removed earlier, so
+   * manifests are not always numbered continuously.
+   *
+   */
+  private int getNextCounter() {
+    int max = 0;
+    for (String manifestUri : signedManifests.values()) {
+      Matcher matcher = MANIFEST_URI_PATTERN.matcher(manifestUri);
+      if (matcher.matches()) {
+        max = Math.max(max, Integer.parseInt(matcher.group(1)));
+      }
+    }
+    return max + 1;
+  }
+
+  /**
+   * Single pass ingest of datafile. Bytes are hashed while they are written into ZIP entry,
+   * so input stream is read only once.
+   *
+   */
+  private void addDatafile(ManifestWriter manifest, List<HashAlgorithm> fileHashingAlgorithms, InputStream inputStream,
+                           String filename) throws KSIException, IOException {
+    HashingInputStream hashingInputStream = new HashingInputStream(inputStream, fileHashingAlgorithms);
+    long start = System.nanoTime();
+    CentralDirectoryEntry entry = addDatafileEntry(hashingInputStream, filename);
+    long hashingNanos = hashingInputStream.getHashingNanos();
+    metrics.recordHashing(entry.getSize(), hashingNanos);
+    metrics.recordCompression(entry.getSize(), entry.getCompressedSize(), System.nanoTime() - start - hashingNanos);
+
+    List<DataHash> hashes = hashingInputStream.getHashes();
+    cacheHashes(entry, hashes);
+    manifest.addDatafile(filename, hashes);
+  }
 
-  private void signAndAddManifest(String signatureUri, ManifestStructure manifestStructure) throws KSIException, IOException {
-    TLVService tlvService = new TLVService();
+  /**
+   * Size and CRC of entry are calculated from the same bytes as hashes
+   */
+  private void cacheHashes(CentralDirectoryEntry entry, List<DataHash> hashes) {
+    if (digestCache != null) {
+      digestCache.put(entry, hashes);
+    }
+  }
+
+  private CentralDirectoryEntry addDatafileEntry(InputStream inputStream, String filename) throws IOException {
     ZipService zipService = new ZipService();
+    CentralDirectoryEntry entry;
+    if (compressionPolicy == null) {
+      entry = zipService.addFileToZip(zipWriter, inputStream, filename);
+    } else {
+      entry = zipService.addFileToZip(zipWriter, inputStream, filename, compressionPolicy);
+    }
+    entryTable.add(entry.getName());
+    return entry;
+  }
+
+  /**
+   * Add datafile which is hashed elsewhere. With compression policy file is read through its channel,
+   * so stored files are read only once while they are written into container.
+   *
+   */
+  private CentralDirectoryEntry addDatafileEntry(FileInputStream inputStream, String filename) throws IOException {
+    if (compressionPolicy == null) {
+      return addDatafileEntry((InputStream) inputStream, filename);
+    }
+    CentralDirectoryEntry entry = new ZipService().addFileToZip(zipWriter, inputStream.getChannel(), filename,
+      compressionPolicy);
+    entryTable.add(entry.getName());
+    return entry;
+  }
 
-    ByteArrayOutputStream manifestBaos = new ByteArrayOutputStream();
-    manifestStructure.writeTo(manifestBaos);
+  private PendingSignatures addDatafilesAndManifests(List<HashAlgorithm> fileHashingAlgorithms, List<File> files) throws KSIException, IOException {
+    PendingSignatures pending = new PendingSignatures();
+    List<File> fileList = new ArrayList<>(files);
+    List<Future<FileDigest>> hashes = new ArrayList<>();
+
+    String signatureUri = "/META-INF/signature" + counter + ".ksi";
+    SegmentedManifest segmentedManifest = null;
+    ManifestWriter manifest;
+    if (segmentedManifests && !fitsOneManifest(signatureUri, fileHashingAlgorithms, fileList)) {
+      segmentedManifest = new SegmentedManifest(signatureUri);
+      manifest = new ManifestWriter();
+    } else {
+      manifest = new ManifestWriter(signatureUri);
+    }
 
-    final byte[] manifestBytes = manifestBaos.toByteArray();
+    try {
+      for (int i = 0; i < fileList.size(); i++) {
+        File file = fileList.get(i);
+
+        int datafileLength = ManifestWriter.getDatafileLength(file.getName(), fileHashingAlgorithms);
+
+        if (!manifest.isEmpty() &&
+          manifest.getContentLength() + datafileLength > TLVElement.MAX_TLV16_CONTENT_LENGTH) {
+          if (segmentedManifest != null) {
+            segmentedManifest.addSegment(manifest);
+            manifest = new ManifestWriter();
+          } else {
+            pending.add(manifest.getSignatureUri(), addManifest(manifest));
+            manifest = new ManifestWriter("/META-INF/signature" + counter + ".ksi");
+          }
+        }
 
-    final String manifestUri = "/META-INF/manifest" + counter + ".tlv";
-    ZipEntry entry = zipService.addFileToZip(newZipOutputStream, new ByteArrayInputStream(manifestBytes), manifestUri);
-    zipEntryNames.add(entry.getName());
+        if (hashingExecutor == null) {
+          try (FileInputStream is = new FileInputStream(file)) {
+            addDatafile(manifest, fileHashingAlgorithms, is, file.getName());
+          }
+          continue;
+        }
+
+        while (hashes.size() < fileList.size() && hashes.size() <= i + hashingLookahead) {
+          hashes.add(hashingExecutor.submit(new FileHashTask(fileHashingAlgorithms, fileList.get(hashes.size()), metrics)));
+        }
+        CentralDirectoryEntry entry;
+        long start = System.nanoTime();
+        try (FileInputStream is = new FileInputStream(file)) {
+          entry = addDatafileEntry(is, file.getName());
+        }
+        metrics.recordCompression(entry.getSize(), entry.getCompressedSize(), System.nanoTime() - start);
+        FileDigest digest = getDigest(hashes.get(i));
+        hashes.set(i, null);
+        if (digest.size != entry.getSize() || digest.crc != entry.getCrc()) {
+          throw new ContainerServiceException("Datafile " + file.getName() + " changed while it was added to container");
+        }
+        cacheHashes(entry, digest.hashes);
+        manifest.addDatafile(file.getName(), digest.hashes);
+      }
+    } finally {
+      for (Future<FileDigest> hash : hashes) {
+        if (hash != null) {
+          hash.cancel(true);
+        }
+      }
+    }
+
+    if (segmentedManifest != null) {
+      segmentedManifest.addSegment(manifest);
+      pending.add(signatureUri, segmentedManifest.finish());
+    } else {
+      pending.add(manifest.getSignatureUri(), addManifest(manifest));
+    }
+    return pending;
+  }
+
+  private static boolean fitsOneManifest(String signatureUri, List<HashAlgorithm> fileHashingAlgorithms,
+                                         List<File> files) throws IOException {
+    long length = new ManifestWriter(signatureUri).getContentLength();
+    for (File file : files) {
+      length += ManifestWriter.getDatafileLength(file.getName(), fileHashingAlgorithms);
+    }
+    return length <= TLVElement.MAX_TLV16_CONTENT_LENGTH;
+  }
+
+  private FileDigest getDigest(Future<FileDigest> hash) throws KSIException, IOException {
+    try {
+      return hash.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new ContainerServiceException("Interrupted while waiting for datafile hash", e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof KSIException) {
+        throw (KSIException) e.getCause();
+      }
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw new ContainerServiceException("Unable to hash datafile", e.getCause());
+    }
+  }
+
+  private PendingSignatures addDatafileAndManifest(List<HashAlgorithm> fileHashingAlgorithms, InputStream inputStream,
+                                                   String filename) throws KSIException, IOException {
+    ManifestWriter manifest = new ManifestWriter("/META-INF/signature" + counter + ".ksi");
+    addDatafile(manifest, fileHashingAlgorithms, inputStream, filename);
+
+    PendingSignatures pending = new PendingSignatures();
+    pending.add(manifest.getSignatureUri(), addManifest(manifest));
+    return pending;
+  }
+
+  /**
+   * Sign manifests. In batch signing mode local hash tree is built over manifest hashes and only
+   * root of the tree is signed, otherwise every manifest is signed separately.
+   * Does not touch container, so can be called from signing threads.
+   *
+   */
+  private List<byte[]> createSignatures(List<DataHash> manifestHashes) throws KSIException {
+    List<byte[]> signatures = new ArrayList<>();
+    if (!batchSigning || manifestHashes.size() == 1) {
+      for (DataHash manifestHash : manifestHashes) {
+        signatures.add(sign(manifestHash));
+      }
+      return signatures;
+    }
+
+    LocalAggregationTree tree = new LocalAggregationTree(manifestHashes);
+    byte[] rootSignature = sign(tree.getRootHash());
+
+    for (int i = 0; i < manifestHashes.size(); i++) {
+      AggregateSignatureStructure signatureStructure =
+        AggregateSignatureStructure.join(tree.getChain(i), rootSignature);
+      ByteArrayOutputStream signatureBaos = new ByteArrayOutputStream();
+      signatureStructure.writeTo(signatureBaos);
+      signatures.add(signatureBaos.toByteArray());
+    }
+    return signatures;
+  }
 
+  private void submitSigning(final PendingSignatures pending) {
+    if (signingExecutor == null) {
+      inFlightSignatures = new Semaphore(maxInFlightSignatures);
+      signingExecutor = Executors.newFixedThreadPool(maxInFlightSignatures, new SigningThreadFactory());
+    }
 
-    InputStream isFromManifest = new ByteArrayInputStream(manifestBytes);
-    DataHash manifestDataHash = tlvService.calculateHash(HashAlgorithm.SHA2_256, isFromManifest);
+    try {
+      inFlightSignatures.acquire();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new ContainerServiceException("Interrupted while waiting for signing slot", e);
+    }
 
-    byte[] signature = signFile(manifestDataHash);
+    try {
+      pending.signatures = signingExecutor.submit(new Callable<List<byte[]>>() {
+        @Override
+        public List<byte[]> call() throws Exception {
+          try {
+            return createSignatures(pending.manifestHashes);
+          } finally {
+            inFlightSignatures.release();
+          }
+        }
+      });
+    } catch (RuntimeException e) {
+      inFlightSignatures.release();
+      throw e;
+    }
+    pendingSignatures.add(pending);
+  }
 
-    ZipEntry entry1 = zipService.addFileToZip(newZipOutputStream, new ByteArrayInputStream(signature), signatureUri);
-    zipEntryNames.add(entry1.getName());
+  /**
+   * Write signatures of finished asynchronous signing requests into container. Failed request is
+   * reported only through its SignatureFuture, its manifest and datafiles stay in container unsigned.
+   *
+   * @param waitAll wait for requests which are not finished yet
+   */
+  private void writeSignatures(boolean waitAll) throws IOException {
+    Iterator<PendingSignatures> iterator = pendingSignatures.iterator();
+    while (iterator.hasNext()) {
+      PendingSignatures pending = iterator.next();
+      if (!waitAll && !pending.signatures.isDone()) {
+        continue;
+      }
 
-    List<String> datafileUris = getSignedFilesList(manifestStructure);
+      try {
+        writeSignatures(pending.signatureUris, pending.signatures.get());
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new ContainerServiceException("Interrupted while waiting for signatures", e);
+      } catch (ExecutionException e) {
+        discardSignatures(pending.signatureUris);
+      }
+      iterator.remove();
+    }
+  }
 
-    manifestStructures.add(manifestStructure);
-    signedFiles.put(signatureUri, datafileUris);
-    signedManifests.put(signatureUri, manifestUri);
-    signatureUris.add(signatureUri);
+  /**
+   * Sign manifests on calling thread and write signatures into container
+   *
+   */
+  private void signAndWriteSignatures(PendingSignatures pending) throws KSIException, IOException {
+    List<byte[]> signatures;
+    try {
+      signatures = createSignatures(pending.manifestHashes);
+    } catch (KSIException | RuntimeException e) {
+      discardSignatures(pending.signatureUris);
+      throw e;
+    }
+    writeSignatures(pending.signatureUris, signatures);
+  }
+
+  /**
+   * Forget signatures which were not created. Their manifests and datafiles are already written,
+   * they are left in container as unsigned entries.
+   *
+   */
+  private void discardSignatures(List<String> discardedSignatureUris) {
+    for (String signatureUri : discardedSignatureUris) {
+      signatureUris.remove(signatureUri);
+      signedFiles.remove(signatureUri);
+      signedManifests.remove(signatureUri);
+      signedSegments.remove(signatureUri);
+      entryTable.addAll(entryTable.removeSignature(signatureUri));
+    }
+  }
+
+  private void writeSignatures(List<String> pendingSignatureUris, List<byte[]> signatures) throws IOException {
+    for (int i = 0; i < signatures.size(); i++) {
+      addSignature(pendingSignatureUris.get(i), signatures.get(i));
+    }
+  }
+
+  /**
+   * Write manifest into container
+   *
+   * @return hash of manifest which has to be signed
+   */
+  private DataHash addManifest(ManifestWriter manifest) throws KSIException, IOException {
+    final String manifestUri = "/META-INF/manifest" + counter + ".tlv";
+    CentralDirectoryEntry entry = zipWriter.putNextEntry(manifestUri);
+    DataHash manifestDataHash = manifest.writeTo(zipWriter);
+    zipWriter.closeEntry();
+    entryTable.add(entry.getName());
+
+    signedFiles.put(manifest.getSignatureUri(), new ArrayList<>(manifest.getDatafileUris()));
+    signedManifests.put(manifest.getSignatureUri(), manifestUri);
+    signatureUris.add(manifest.getSignatureUri());
+    entryTable.addSignature(manifest.getSignatureUri(), Collections.singletonList(manifestUri));
+    entryTable.addSignature(manifest.getSignatureUri(), manifest.getDatafileUris());
 
     counter++;
+    return manifestDataHash;
+  }
+
+  /**
+   * Signed manifest which lists datafiles in manifest segments. Segments are written into container
+   * as soon as they are full. When manifest is finished, references to segments are written into signed
+   * manifest. If there are too many references for one manifest, they are first packed into index segments.
+   *
+   */
+  private class SegmentedManifest {
+    private final String signatureUri;
+    private final List<String> segmentUris = new ArrayList<>();
+    private final List<String> datafileUris = new ArrayList<>();
+    private List<String> referenceUris = new ArrayList<>();
+    private List<DataHash> referenceHashes = new ArrayList<>();
+
+    SegmentedManifest(String signatureUri) {
+      this.signatureUri = signatureUri;
+    }
+
+    void addSegment(ManifestWriter segment) throws KSIException, IOException {
+      String segmentUri = "/META-INF/segment" + counter + "-" + (segmentUris.size() + 1) + ".tlv";
+      CentralDirectoryEntry entry = zipWriter.putNextEntry(segmentUri);
+      DataHash segmentHash = segment.writeTo(zipWriter);
+      zipWriter.closeEntry();
+      entryTable.add(entry.getName());
+
+      segmentUris.add(segmentUri);
+      datafileUris.addAll(segment.getDatafileUris());
+      referenceUris.add(segmentUri);
+      referenceHashes.add(segmentHash);
+    }
+
+    /**
+     * Write signed manifest into container
+     *
+     * @return hash of manifest which has to be signed
+     */
+    DataHash finish() throws KSIException, IOException {
+      while (!fitsManifest()) {
+        List<String> uris = referenceUris;
+        List<DataHash> hashes = referenceHashes;
+        referenceUris = new ArrayList<>();
+        referenceHashes = new ArrayList<>();
+
+        ManifestWriter index = new ManifestWriter();
+        for (int i = 0; i < uris.size(); i++) {
+          int segmentLength = ManifestWriter.getSegmentLength(uris.get(i), hashes.get(i).getAlgorithm());
+          if (!index.isEmpty() && index.getContentLength() + segmentLength > TLVElement.MAX_TLV16_CONTENT_LENGTH) {
+            addSegment(index);
+            index = new ManifestWriter();
+          }
+          index.addSegment(uris.get(i), hashes.get(i));
+        }
+        addSegment(index);
+      }
+
+      ManifestWriter manifest = new ManifestWriter(signatureUri);
+      for (int i = 0; i < referenceUris.size(); i++) {
+        manifest.addSegment(referenceUris.get(i), referenceHashes.get(i));
+      }
+      DataHash manifestDataHash = addManifest(manifest);
+
+      signedFiles.put(signatureUri, datafileUris);
+      signedSegments.put(signatureUri, segmentUris);
+      entryTable.addSignature(signatureUri, datafileUris);
+      entryTable.addSignature(signatureUri, segmentUris);
+      return manifestDataHash;
+    }
+
+    private boolean fitsManifest() throws IOException {
+      long length = new ManifestWriter(signatureUri).getContentLength();
+      for (int i = 0; i < referenceUris.size(); i++) {
+        length += ManifestWriter.getSegmentLength(referenceUris.get(i), referenceHashes.get(i).getAlgorithm());
+      }
+      return length <= TLVElement.MAX_TLV16_CONTENT_LENGTH;
+    }
   }
 
+  private void addSignature(String signatureUri, byte[] signature) throws IOException {
+    ZipService zipService = new ZipService();
+    CentralDirectoryEntry entry = zipService.addFileToZip(zipWriter, new ByteArrayInputStream(signature), signatureUri);
+    entryTable.add(entry.getName());
+  }
 
-  private List<String> getSignedFilesList(ManifestStructure manifestStructure) {
-    List<DatafileStructure> datafiles = manifestStructure.getDatafiles();
-    List<String> datafileUris = new ArrayList<>();
 
-    for(DatafileStructure datafileStructure: datafiles){
-      datafileUris.add(datafileStructure.getUri());
+  private byte[] sign(DataHash dataHash) throws KSIException {
+    long start = System.nanoTime();
+    boolean success = false;
+    try {
+      byte[] signature = signFile(dataHash);
+      success = true;
+      return signature;
+    } finally {
+      metrics.recordSigning(System.nanoTime() - start, success);
     }
-    return datafileUris;
   }
 
+  /**
+   * Sign manifest hash and return serialized signature. Can be called from several signing threads at once.
+   *
+   */
+  protected byte[] signFile(DataHash manifestDataHash) throws KSIException {
+    if (signer != null) {
+      return signer.sign(manifestDataHash);
+    }
+    return KsiSigner.getInstance(httpClientSettings).sign(manifestDataHash);
+  }
 
-  private byte[] signFile(DataHash manifestDataHash) throws KSIException, IOException {
-    KSI ksi = getKsi();
-    KSISignature sig1 = ksi.sign(manifestDataHash);
-    ByteArrayOutputStream baos = new ByteArrayOutputStream();
-    sig1.writeTo(baos);
-    return baos.toByteArray();
+  /**
+   * Manifests waiting for signatures
+   */
+  private static class PendingSignatures {
+    private final List<String> signatureUris = new ArrayList<>();
+    private final List<DataHash> manifestHashes = new ArrayList<>();
+    private Future<List<byte[]>> signatures;
+
+    private void add(String signatureUri, DataHash manifestHash) {
+      signatureUris.add(signatureUri);
+      manifestHashes.add(manifestHash);
+    }
   }
 
-  private KSI getKsi() throws KSIException {
-    SimpleHttpClient simpleHttpClient = new SimpleHttpClient(httpClientSettings);
+  /**
+   * Hashes of datafile together with size and CRC of the hashed bytes
+   */
+  private static class FileDigest {
+    private final List<DataHash> hashes;
+    private final long size;
+    private final long crc;
+
+    FileDigest(List<DataHash> hashes, long size, long crc) {
+      this.hashes = hashes;
+      this.size = size;
+      this.crc = crc;
+    }
+  }
 
-    return new KSIBuilder()
-      .setKsiProtocolSignerClient(simpleHttpClient)
-      .setKsiProtocolExtenderClient(simpleHttpClient)
-      .setKsiProtocolPublicationsFileClient(simpleHttpClient)
-      .setPublicationsFileTrustedCertSelector(new X509CertificateSubjectRdnSelector("E=test@test.com"))
-      .build();
+  /**
+   * Hash datafile and calculate CRC of the same bytes. Large files are hashed from mapped regions.
+   */
+  private static class FileHashTask implements Callable<FileDigest> {
+    private final List<HashAlgorithm> hashAlgorithms;
+    private final File file;
+    private final ContainerMetrics metrics;
+
+    FileHashTask(List<HashAlgorithm> hashAlgorithms, File file, ContainerMetrics metrics) {
+      this.hashAlgorithms = hashAlgorithms;
+      this.file = file;
+      this.metrics = metrics;
+    }
+
+    @Override
+    public FileDigest call() throws Exception {
+      long start = System.nanoTime();
+      CRC32 crc = new CRC32();
+      try (FileInputStream in = new FileInputStream(file)) {
+        FileChannel channel = in.getChannel();
+        long size = channel.size();
+        List<DataHash> hashes = new TLVService().calculateHashes(hashAlgorithms, channel, size, crc);
+        metrics.recordHashing(size, System.nanoTime() - start);
+        return new FileDigest(hashes, size, crc.getValue());
+      }
+    }
+  }
+
+  private static class SigningThreadFactory implements ThreadFactory {
+    @Override
+    public Thread newThread(Runnable r) {
+      Thread thread = new Thread(r, "container-signing");
+      thread.setDaemon(true);
+      return thread;
+    }
   }
 
-}
+}
\ No newline at end of file
@@ -0,0 +1,239 @@
+package ee.guardtime.proov.ksi;
+
+import com.guardtime.ksi.exceptions.KSIException;
+import com.guardtime.ksi.hashing.DataHash;
+import ee.guardtime.proov.tlv.AggregateSignatureStructure;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Signer which can be shared by many threads and containers. Hashes given to sign in the same time
+ * window are collected into one local aggregation tree and only root of the tree is signed with
+ * delegate signer. Every caller gets aggregate signature with hash chain from its hash to the root,
+ * so number of aggregator round trips does not grow with number of callers. Several batches can be
+ * signed at once, while all batch slots are busy new requests are collected into next batch.
+ *
+ */
+public class AggregatingSigner implements Signer, Closeable {
+
+  public static final int DEFAULT_MAX_BATCH_SIZE = 1024;
+  public static final int DEFAULT_MAX_IN_FLIGHT_BATCHES = 4;
+
+  private final Signer signer;
+  private final long windowNanos;
+  private final int maxBatchSize;
+  private final Semaphore inFlightBatches;
+  private final ExecutorService signingExecutor;
+  private final BlockingQueue<SigningRequest> requests = new LinkedBlockingQueue<>();
+  private final Thread collector;
+  private volatile boolean closed;
+
+  public AggregatingSigner(Signer signer, long window, TimeUnit unit) {
+    this(signer, window, unit, DEFAULT_MAX_BATCH_SIZE, DEFAULT_MAX_IN_FLIGHT_BATCHES);
+  }
+
+  /**
+   * @param signer signer of tree roots
+   * @param window time batch waits for more hashes after first hash
+   * @param unit unit of window
+   * @param maxBatchSize maximum number of hashes in one batch, batch is signed when it is full
+   * @param maxInFlightBatches maximum number of batches signed at once
+   */
+  public AggregatingSigner(Signer signer, long window, TimeUnit unit, int maxBatchSize, int maxInFlightBatches) {
+    if (maxBatchSize < 1 || maxInFlightBatches < 1) {
+      throw new IllegalArgumentException("Batch size and number of batches in flight must be positive");
+    }
+    this.signer = signer;
+    this.windowNanos = unit.toNanos(window);
+    this.maxBatchSize = maxBatchSize;
+    this.inFlightBatches = new Semaphore(maxInFlightBatches);
+    this.signingExecutor = Executors.newFixedThreadPool(maxInFlightBatches,
+      new AggregatorThreadFactory("signature-batch"));
+    this.collector = new AggregatorThreadFactory("signature-aggregator").newThread(new Runnable() {
+      @Override
+      public void run() {
+        collect();
+      }
+    });
+    this.collector.start();
+  }
+
+  /**
+   * Queue hash into next batch and wait until batch is signed
+   *
+   * @return aggregate signature of hash, or signature of delegate signer if hash was alone in its batch
+   * @throws KSIException if batch signing failed or signer is closed
+   */
+  @Override
+  public byte[] sign(DataHash dataHash) throws KSIException {
+    if (closed) {
+      throw new KSIException("Aggregating signer closed");
+    }
+    SigningRequest request = new SigningRequest(dataHash);
+    requests.add(request);
+    if (closed) {
+      failQueued();
+    }
+    return request.await();
+  }
+
+  /**
+   * Stop collecting batches. Batches already being signed are finished, queued hashes fail.
+   *
+   */
+  @Override
+  public void close() {
+    closed = true;
+    collector.interrupt();
+    signingExecutor.shutdown();
+    failQueued();
+  }
+
+  private void collect() {
+    List<SigningRequest> batch = new ArrayList<>();
+    try {
+      while (!closed) {
+        inFlightBatches.acquire();
+        batch.add(requests.take());
+        long deadline = System.nanoTime() + windowNanos;
+        while (batch.size() < maxBatchSize) {
+          long remaining = deadline - System.nanoTime();
+          SigningRequest request = remaining > 0 ? requests.poll(remaining, TimeUnit.NANOSECONDS) : null;
+          if (request == null) {
+            break;
+          }
+          batch.add(request);
+        }
+        requests.drainTo(batch, maxBatchSize - batch.size());
+
+        final List<SigningRequest> signed = batch;
+        signingExecutor.execute(new Runnable() {
+          @Override
+          public void run() {
+            try {
+              signBatch(signed);
+            } finally {
+              inFlightBatches.release();
+            }
+          }
+        });
+        batch = new ArrayList<>();
+      }
+    } catch (InterruptedException e) {
+      // closed
+    } catch (RuntimeException e) {
+      closed = true;
+    }
+    for (SigningRequest request : batch) {
+      request.fail(new KSIException("Aggregating signer closed"));
+    }
+    failQueued();
+  }
+
+  private void signBatch(List<SigningRequest> batch) {
+    try {
+      if (batch.size() == 1) {
+        SigningRequest request = batch.get(0);
+        request.complete(signer.sign(request.dataHash));
+        return;
+      }
+
+      List<DataHash> hashes = new ArrayList<>(batch.size());
+      for (SigningRequest request : batch) {
+        hashes.add(request.dataHash);
+      }
+      LocalAggregationTree tree = new LocalAggregationTree(hashes);
+      byte[] rootSignature = signer.sign(tree.getRootHash());
+
+      for (int i = 0; i < batch.size(); i++) {
+        ByteArrayOutputStream signature = new ByteArrayOutputStream();
+        AggregateSignatureStructure.join(tree.getChain(i), rootSignature).writeTo(signature);
+        batch.get(i).complete(signature.toByteArray());
+      }
+    } catch (KSIException e) {
+      for (SigningRequest request : batch) {
+        request.fail(e);
+      }
+    } catch (RuntimeException e) {
+      for (SigningRequest request : batch) {
+        request.fail(new KSIException("Unable to sign batch", e));
+      }
+    }
+  }
+
+  private void failQueued() {
+    SigningRequest request;
+    while ((request = requests.poll()) != null) {
+      request.fail(new KSIException("Aggregating signer closed"));
+    }
+  }
+
+  /**
+   * Hash waiting for its batch to be signed. First result wins, later results are ignored.
+   */
+  private static class SigningRequest {
+    private final DataHash dataHash;
+    private final CountDownLatch done = new CountDownLatch(1);
+    private byte[] signature;
+    private KSIException error;
+
+    SigningRequest(DataHash dataHash) {
+      this.dataHash = dataHash;
+    }
+
+    synchronized void complete(byte[] signature) {
+      if (done.getCount() > 0) {
+        this.signature = signature;
+        done.countDown();
+      }
+    }
+
+    synchronized void fail(KSIException error) {
+      if (done.getCount() > 0) {
+        this.error = error;
+        done.countDown();
+      }
+    }
+
+    byte[] await() throws KSIException {
+      try {
+        done.await();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new KSIException("Signing interrupted", e);
+      }
+      synchronized (this) {
+        if (error != null) {
+          throw error;
+        }
+        return signature;
+      }
+    }
+  }
+
+  private static class AggregatorThreadFactory implements ThreadFactory {
+    private final String name;
+
+    AggregatorThreadFactory(String name) {
+      this.name = name;
+    }
+
+    @Override
+    public Thread newThread(Runnable r) {
+      Thread thread = new Thread(r, name);
+      thread.setDaemon(true);
+      return thread;
+    }
+  }
+}
@@ -0,0 +1,53 @@
+package ee.guardtime.proov.ksi;
+
+import com.guardtime.ksi.KSI;
+import com.guardtime.ksi.exceptions.KSIException;
+import com.guardtime.ksi.hashing.DataHash;
+import com.guardtime.ksi.service.client.http.HttpClientSettings;
+import com.guardtime.ksi.tlv.TLVElement;
+import com.guardtime.ksi.unisignature.KSISignature;
+import com.guardtime.ksi.unisignature.verifier.policies.KeyBasedVerificationPolicy;
+import com.guardtime.ksi.unisignature.verifier.policies.Policy;
+
+/**
+ * SignatureVerifier based on KSI SDK. By default key based verification policy is used.
+ *
+ */
+public class KsiSignatureVerifier implements SignatureVerifier {
+
+  private static final int KSI_SIGNATURE_TYPE = 0x800;
+
+  private final KSI ksi;
+  private final Policy policy;
+
+  /**
+   * Create verifier which uses KSI client of shared signer for given settings
+   *
+   * @param httpClientSettings Guardtime service information and credentials
+   * @throws KSIException
+   */
+  public KsiSignatureVerifier(HttpClientSettings httpClientSettings) throws KSIException {
+    this(KsiSigner.getInstance(httpClientSettings).getKsi());
+  }
+
+  public KsiSignatureVerifier(KSI ksi) {
+    this(ksi, new KeyBasedVerificationPolicy());
+  }
+
+  public KsiSignatureVerifier(KSI ksi, Policy policy) {
+    this.ksi = ksi;
+    this.policy = policy;
+  }
+
+  /**
+   * Signature which is not KSI signature element, e.g. signature of StubSigner, is rejected without parsing it
+   */
+  @Override
+  public boolean verify(byte[] signature, DataHash signedHash) throws KSIException {
+    if (TLVElement.create(signature).getType() != KSI_SIGNATURE_TYPE) {
+      return false;
+    }
+    KSISignature ksiSignature = ksi.read(signature);
+    return ksi.verify(ksiSignature, policy, signedHash).isOk();
+  }
+}
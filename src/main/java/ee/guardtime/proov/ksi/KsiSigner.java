@@ -0,0 +1,189 @@
+package ee.guardtime.proov.ksi;
+
+import com.guardtime.ksi.KSI;
+import com.guardtime.ksi.KSIBuilder;
+import com.guardtime.ksi.exceptions.KSIException;
+import com.guardtime.ksi.hashing.DataHash;
+import com.guardtime.ksi.service.client.ServiceCredentials;
+import com.guardtime.ksi.service.client.http.HttpClientSettings;
+import com.guardtime.ksi.service.http.simple.SimpleHttpClient;
+import com.guardtime.ksi.trust.X509CertificateSubjectRdnSelector;
+import com.guardtime.ksi.unisignature.KSISignature;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Long-lived KSI signer. KSI client is built only once per service URLs, credentials and connection
+ * settings and shared between containers and threads, so signing one manifest costs one aggregator
+ * round trip. HttpClientSettings has no equals, settings are compared by value, so settings built
+ * again for every container still share one client.
+ * SimpleHttpClient is based on HttpURLConnection, which keeps connections to aggregator
+ * alive and reuses them between requests.
+ * Shared signers are used by many callers at once, so close does not close them. Shared clients
+ * are closed all together with shutdown, e.g. when application stops.
+ *
+ */
+public class KsiSigner implements Signer, Closeable {
+
+  private static final ConcurrentMap<SettingsKey, KsiSigner> SIGNERS = new ConcurrentHashMap<>();
+
+  private final SettingsKey settingsKey;
+  private final KSI ksi;
+
+  /**
+   * Return shared signer for given settings. Signer is created on first call.
+   *
+   * @param httpClientSettings Guardtime service information and credentials
+   * @return signer
+   * @throws KSIException
+   */
+  public static KsiSigner getInstance(HttpClientSettings httpClientSettings) throws KSIException {
+    SettingsKey key = new SettingsKey(httpClientSettings);
+    KsiSigner signer = SIGNERS.get(key);
+    if (signer == null) {
+      synchronized (SIGNERS) {
+        signer = SIGNERS.get(key);
+        if (signer == null) {
+          signer = new KsiSigner(key, buildKsi(httpClientSettings));
+          SIGNERS.put(key, signer);
+        }
+      }
+    }
+    return signer;
+  }
+
+  /**
+   * Create signer around already configured KSI instance. Signer created this way is not shared.
+   *
+   * @param ksi KSI instance
+   */
+  public KsiSigner(KSI ksi) {
+    this(null, ksi);
+  }
+
+  private KsiSigner(SettingsKey settingsKey, KSI ksi) {
+    this.settingsKey = settingsKey;
+    this.ksi = ksi;
+  }
+
+  /**
+   * Sign data hash and return serialized KSI signature
+   *
+   * @param dataHash hash to sign
+   * @return signature bytes
+   * @throws KSIException
+   */
+  @Override
+  public byte[] sign(DataHash dataHash) throws KSIException {
+    KSISignature signature = ksi.sign(dataHash);
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    signature.writeTo(baos);
+    return baos.toByteArray();
+  }
+
+  /**
+   * Return underlying KSI client, e.g. for verifying signatures with the same connection settings
+   *
+   * @return KSI instance
+   */
+  public KSI getKsi() {
+    return ksi;
+  }
+
+  /**
+   * Close underlying KSI client of signer created around KSI instance. Shared signer is not closed,
+   * other callers of getInstance can still use it, shared signers are closed with shutdown.
+   *
+   */
+  @Override
+  public void close() throws IOException {
+    if (settingsKey == null) {
+      ksi.close();
+    }
+  }
+
+  /**
+   * Close KSI clients of all shared signers and empty registry. Next getInstance call creates new signer.
+   * Signers returned by getInstance before shutdown can not be used any more.
+   *
+   * @throws IOException if some client could not be closed, other clients are closed anyway
+   */
+  public static void shutdown() throws IOException {
+    IOException error = null;
+    synchronized (SIGNERS) {
+      for (KsiSigner signer : SIGNERS.values()) {
+        try {
+          signer.ksi.close();
+        } catch (IOException e) {
+          error = error == null ? e : error;
+        }
+      }
+      SIGNERS.clear();
+    }
+    if (error != null) {
+      throw error;
+    }
+  }
+
+  private static KSI buildKsi(HttpClientSettings httpClientSettings) throws KSIException {
+    SimpleHttpClient simpleHttpClient = new SimpleHttpClient(httpClientSettings);
+
+    return new KSIBuilder()
+      .setKsiProtocolSignerClient(simpleHttpClient)
+      .setKsiProtocolExtenderClient(simpleHttpClient)
+      .setKsiProtocolPublicationsFileClient(simpleHttpClient)
+      .setPublicationsFileTrustedCertSelector(new X509CertificateSubjectRdnSelector("E=test@test.com"))
+      .build();
+  }
+
+  /**
+   * Registry key with values of HttpClientSettings. URLs are compared as strings, URL.equals resolves host names.
+   */
+  private static final class SettingsKey {
+    private final Object[] values;
+    private final byte[] loginKey;
+
+    SettingsKey(HttpClientSettings settings) {
+      ServiceCredentials credentials = settings.getCredentials();
+      this.values = new Object[]{
+        toString(settings.getSigningUrl()),
+        toString(settings.getExtendingUrl()),
+        toString(settings.getPublicationsFileUrl()),
+        credentials == null ? null : credentials.getLoginId(),
+        toString(settings.getProxyUrl()),
+        settings.getProxyUser(),
+        settings.getProxyPassword(),
+        settings.getConnectionTimeout(),
+        settings.getReadTimeout()
+      };
+      this.loginKey = credentials == null ? null : credentials.getLoginKey();
+    }
+
+    private static String toString(URL url) {
+      return url == null ? null : url.toExternalForm();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (!(o instanceof SettingsKey)) {
+        return false;
+      }
+      SettingsKey other = (SettingsKey) o;
+      return Arrays.equals(values, other.values) && Arrays.equals(loginKey, other.loginKey);
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * Arrays.hashCode(values) + Arrays.hashCode(loginKey);
+    }
+  }
+}
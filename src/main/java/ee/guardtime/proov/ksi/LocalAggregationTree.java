@@ -0,0 +1,81 @@
+package ee.guardtime.proov.ksi;
+
+import com.guardtime.ksi.hashing.DataHash;
+import com.guardtime.ksi.hashing.HashException;
+import ee.guardtime.proov.tlv.HashChainLink;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Local hash tree over manifest hashes. Only root of the tree is sent to KSI aggregator,
+ * each manifest gets hash chain from its leaf to the root. Manifest hashes are hashed into
+ * leaves first, see HashChainLink.
+ * If level has odd number of nodes, last node is moved to next level as is.
+ *
+ */
+public class LocalAggregationTree {
+
+  private final DataHash rootHash;
+  private final List<List<HashChainLink>> chains;
+
+  public LocalAggregationTree(List<DataHash> leaves) throws HashException {
+    if (leaves.isEmpty()) {
+      throw new IllegalArgumentException("Aggregation tree needs at least one leaf");
+    }
+
+    chains = new ArrayList<>(leaves.size());
+    int[] positions = new int[leaves.size()];
+    for (int i = 0; i < leaves.size(); i++) {
+      chains.add(new ArrayList<HashChainLink>());
+      positions[i] = i;
+    }
+
+    List<DataHash> level = new ArrayList<>(leaves.size());
+    for (DataHash leaf : leaves) {
+      level.add(HashChainLink.hashLeaf(leaf));
+    }
+    while (level.size() > 1) {
+      List<DataHash> nextLevel = new ArrayList<>((level.size() + 1) / 2);
+      for (int i = 0; i < level.size(); i += 2) {
+        if (i + 1 < level.size()) {
+          nextLevel.add(HashChainLink.hashNodes(level.get(i), level.get(i + 1)));
+        } else {
+          nextLevel.add(level.get(i));
+        }
+      }
+
+      for (int leaf = 0; leaf < positions.length; leaf++) {
+        int position = positions[leaf];
+        if (position % 2 == 1) {
+          chains.get(leaf).add(new HashChainLink(true, level.get(position - 1)));
+        } else if (position + 1 < level.size()) {
+          chains.get(leaf).add(new HashChainLink(false, level.get(position + 1)));
+        }
+        positions[leaf] = position / 2;
+      }
+
+      level = nextLevel;
+    }
+
+    rootHash = level.get(0);
+  }
+
+  public DataHash getRootHash() {
+    return rootHash;
+  }
+
+  /**
+   * Return hash chain from leaf to root
+   *
+   * @param leafIndex index of leaf in list given to constructor
+   * @return chain links
+   */
+  public List<HashChainLink> getChain(int leafIndex) {
+    return chains.get(leafIndex);
+  }
+
+  public int size() {
+    return chains.size();
+  }
+}
@@ -0,0 +1,89 @@
+package ee.guardtime.proov.ksi;
+
+import com.guardtime.ksi.exceptions.KSIException;
+import com.guardtime.ksi.hashing.DataHash;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Signer decorator which records signed hashes, number of failed requests and time spent in
+ * signing. Can be put around any signer to see how many signing requests container operations
+ * make and how long they wait for signatures.
+ *
+ */
+public class RecordingSigner implements Signer {
+
+  private final Signer signer;
+  private final List<DataHash> signedHashes = new ArrayList<>();
+  private final AtomicInteger failures = new AtomicInteger();
+  private final AtomicLong signingNanos = new AtomicLong();
+  private final AtomicLong maxSigningNanos = new AtomicLong();
+
+  public RecordingSigner(Signer signer) {
+    this.signer = signer;
+  }
+
+  @Override
+  public byte[] sign(DataHash dataHash) throws KSIException {
+    long start = System.nanoTime();
+    try {
+      byte[] signature = signer.sign(dataHash);
+      synchronized (signedHashes) {
+        signedHashes.add(dataHash);
+      }
+      return signature;
+    } catch (KSIException | RuntimeException e) {
+      failures.incrementAndGet();
+      throw e;
+    } finally {
+      long elapsed = System.nanoTime() - start;
+      signingNanos.addAndGet(elapsed);
+      long max;
+      do {
+        max = maxSigningNanos.get();
+      } while (elapsed > max && !maxSigningNanos.compareAndSet(max, elapsed));
+    }
+  }
+
+  /**
+   * Return hashes which were successfully signed, in the order signatures were received
+   *
+   * @return copy of signed hashes
+   */
+  public List<DataHash> getSignedHashes() {
+    synchronized (signedHashes) {
+      return new ArrayList<>(signedHashes);
+    }
+  }
+
+  public int getSignatureCount() {
+    synchronized (signedHashes) {
+      return signedHashes.size();
+    }
+  }
+
+  public int getFailureCount() {
+    return failures.get();
+  }
+
+  /**
+   * Return time spent in signing requests, summed over all threads
+   *
+   * @return signing time in nanoseconds
+   */
+  public long getSigningNanos() {
+    return signingNanos.get();
+  }
+
+  /**
+   * Return time of slowest signing request
+   *
+   * @return signing time in nanoseconds
+   */
+  public long getMaxSigningNanos() {
+    return maxSigningNanos.get();
+  }
+}
@@ -0,0 +1,22 @@
+package ee.guardtime.proov.ksi;
+
+import com.guardtime.ksi.exceptions.KSIException;
+import com.guardtime.ksi.hashing.DataHash;
+
+/**
+ * Verifies serialized KSI signatures. Implementations have to be thread safe,
+ * container verifier calls them from several threads at once.
+ *
+ */
+public interface SignatureVerifier {
+
+  /**
+   * Verify that signature is valid and signs given hash
+   *
+   * @param signature serialized KSI signature
+   * @param signedHash hash which should be signed
+   * @return true if signature is valid
+   * @throws KSIException
+   */
+  boolean verify(byte[] signature, DataHash signedHash) throws KSIException;
+}
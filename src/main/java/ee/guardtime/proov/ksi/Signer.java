@@ -0,0 +1,21 @@
+package ee.guardtime.proov.ksi;
+
+import com.guardtime.ksi.exceptions.KSIException;
+import com.guardtime.ksi.hashing.DataHash;
+
+/**
+ * Signs manifest hashes. Implementations have to be thread safe, container service calls them
+ * from several signing threads at once.
+ *
+ */
+public interface Signer {
+
+  /**
+   * Sign data hash and return serialized signature
+   *
+   * @param dataHash hash to sign
+   * @return signature bytes
+   * @throws KSIException
+   */
+  byte[] sign(DataHash dataHash) throws KSIException;
+}
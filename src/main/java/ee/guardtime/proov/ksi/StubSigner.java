@@ -0,0 +1,56 @@
+package ee.guardtime.proov.ksi;
+
+import com.guardtime.ksi.exceptions.KSIException;
+import com.guardtime.ksi.hashing.DataHash;
+import com.guardtime.ksi.tlv.TLVElement;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * In-process signer for load testing without KSI gateway. Signature is TLV element which contains
+ * signed hash imprint, it is not a KSI signature and proves nothing. Optional latency simulates
+ * aggregator round trip, so throughput of local pipeline can be measured with realistic number of
+ * outstanding requests. Stub signatures are verified by the same class. Stub signature has its own
+ * TLV type, so it is never taken for KSI signature.
+ *
+ */
+public class StubSigner implements Signer, SignatureVerifier {
+
+  private static final int STUB_SIGNATURE_TYPE = 0x1F00;
+
+  private final long latencyNanos;
+
+  public StubSigner() {
+    this(0, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * @param latency time every signing request takes
+   * @param unit unit of latency
+   */
+  public StubSigner(long latency, TimeUnit unit) {
+    this.latencyNanos = unit.toNanos(latency);
+  }
+
+  @Override
+  public byte[] sign(DataHash dataHash) throws KSIException {
+    if (latencyNanos > 0) {
+      try {
+        TimeUnit.NANOSECONDS.sleep(latencyNanos);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new KSIException("Signing interrupted", e);
+      }
+    }
+    TLVElement signature = new TLVElement(false, false, STUB_SIGNATURE_TYPE);
+    signature.setContent(dataHash.getImprint());
+    return signature.getEncoded();
+  }
+
+  @Override
+  public boolean verify(byte[] signature, DataHash signedHash) throws KSIException {
+    TLVElement element = TLVElement.create(signature);
+    return element.getType() == STUB_SIGNATURE_TYPE && Arrays.equals(element.getContent(), signedHash.getImprint());
+  }
+}
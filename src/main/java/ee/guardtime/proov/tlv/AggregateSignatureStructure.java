@@ -0,0 +1,138 @@
+package ee.guardtime.proov.tlv;
+
+import com.guardtime.ksi.hashing.DataHash;
+import com.guardtime.ksi.hashing.HashException;
+import com.guardtime.ksi.tlv.TLVElement;
+import com.guardtime.ksi.tlv.TLVParserException;
+import com.guardtime.ksi.tlv.TLVStructure;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Signature file for manifest which was signed together with other manifests.
+ * Contains local hash chain from manifest hash to root of local hash tree and
+ * KSI signature of that root. Element which is not a chain link is taken as root signature,
+ * its type is checked by signature verifier, so roots signed by other signers can be read as well.
+ *
+ */
+public class AggregateSignatureStructure extends TLVStructure {
+
+  public static final int AGGREGATE_SIGNATURE_TYPE = 0x20;
+  private static final int SIBLING_LEFT_TYPE = 0x1;
+  private static final int SIBLING_RIGHT_TYPE = 0x2;
+  private static final int LEAF_TYPE = 0x3;
+
+  private List<HashChainLink> links = new ArrayList<>();
+  private byte[] ksiSignature;
+
+  public AggregateSignatureStructure(TLVElement rootElement) throws TLVParserException {
+    super(rootElement);
+
+    List<TLVElement> childs = rootElement.getChildElements();
+
+    for (TLVElement element : childs) {
+      switch (element.getType()) {
+        case SIBLING_LEFT_TYPE:
+          this.links.add(new HashChainLink(true, element.getDecodedDataHash()));
+          break;
+        case SIBLING_RIGHT_TYPE:
+          this.links.add(new HashChainLink(false, element.getDecodedDataHash()));
+          break;
+        case LEAF_TYPE:
+          this.links.add(HashChainLink.leaf());
+          break;
+        default:
+          if (this.ksiSignature != null) {
+            throw new TLVParserException("Multiple root signatures in aggregate signature");
+          }
+          this.ksiSignature = element.getEncoded();
+          break;
+      }
+    }
+  }
+
+  public AggregateSignatureStructure(List<HashChainLink> links, byte[] ksiSignature) throws TLVParserException {
+    this.links = links;
+    this.ksiSignature = ksiSignature;
+
+    rootElement = new TLVElement(false, false, AGGREGATE_SIGNATURE_TYPE);
+    for (HashChainLink link : links) {
+      if (link.isLeaf()) {
+        TLVElement leaf = new TLVElement(false, false, LEAF_TYPE);
+        leaf.setContent(new byte[0]);
+        rootElement.addChildElement(leaf);
+        continue;
+      }
+      int type = link.isSiblingLeft() ? SIBLING_LEFT_TYPE : SIBLING_RIGHT_TYPE;
+      rootElement.addChildElement(TLVElement.create(type, link.getSiblingHash()));
+    }
+    rootElement.addChildElement(TLVElement.create(ksiSignature));
+  }
+
+  /**
+   * Create aggregate signature from local hash chain and signature of chain root. If root signature is
+   * aggregate signature itself, chains are joined with leaf link between them, so signature file has always
+   * one level of aggregation.
+   *
+   * @param links hash chain from signed hash to root
+   * @param rootSignature KSI signature or aggregate signature of root
+   * @return aggregate signature
+   * @throws TLVParserException
+   */
+  public static AggregateSignatureStructure join(List<HashChainLink> links, byte[] rootSignature)
+    throws TLVParserException {
+    TLVElement element = TLVElement.create(rootSignature);
+    if (!isAggregateSignature(element)) {
+      return new AggregateSignatureStructure(links, rootSignature);
+    }
+
+    AggregateSignatureStructure root = new AggregateSignatureStructure(element);
+    List<HashChainLink> joined = new ArrayList<>(links.size() + root.getLinks().size() + 1);
+    joined.addAll(links);
+    joined.add(HashChainLink.leaf());
+    joined.addAll(root.getLinks());
+    return new AggregateSignatureStructure(joined, root.getKsiSignature());
+  }
+
+  /**
+   * Check if signature file content is aggregate signature and not plain KSI signature
+   *
+   * @param element signature file root element
+   * @return true if aggregate signature
+   */
+  public static boolean isAggregateSignature(TLVElement element) {
+    return element.getType() == AGGREGATE_SIGNATURE_TYPE;
+  }
+
+  /**
+   * Calculate hash which was signed with KSI signature
+   *
+   * @param manifestHash hash of manifest
+   * @return root hash of local hash tree
+   * @throws HashException
+   */
+  public DataHash getRootHash(DataHash manifestHash) throws HashException {
+    return HashChainLink.calculateRootHash(manifestHash, links);
+  }
+
+  public List<HashChainLink> getLinks() {
+    return links;
+  }
+
+  public byte[] getKsiSignature() {
+    return ksiSignature;
+  }
+
+  @Override
+  public int getElementType() {
+    return AGGREGATE_SIGNATURE_TYPE;
+  }
+
+  @Override
+  public String toString() {
+    return "AggregateSignatureStructure{" +
+      "links=" + links +
+      '}';
+  }
+}
@@ -7,11 +7,15 @@ import com.guardtime.ksi.tlv.TLVElement;
 import com.guardtime.ksi.tlv.TLVParserException;
 import com.guardtime.ksi.tlv.TLVStructure;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 /**
  * This class is for storing metadata about data files. We use TLV format here.
- * Metadata contain following information: datafile URI, datafile Hash and Hashing algorithm
+ * Metadata contain following information: datafile URI, datafile Hash and Hashing algorithm.
+ * Optionally datafile can have additional hashes calculated with other algorithms. They are stored
+ * as non-critical elements, so older readers skip them.
  *
  */
 public class DatafileStructure extends TLVStructure {
@@ -19,11 +23,13 @@ public class DatafileStructure extends TLVStructure {
   private String uri;
   private HashAlgorithm hashAlgorithm;
   private DataHash hash;
+  private List<DataHash> additionalHashes = new ArrayList<>();
 
   public static final int DATAFILE_TYPE = 0x1;
   private static final int DATAFILE_URI_TYPE = 0x2;
   private static final int DATAFILE_HASH_ALGORITHM_TYPE = 0x3;
   private static final int DATAFILE_HASH_TYPE = 0x4;
+  private static final int DATAFILE_ADDITIONAL_HASH_TYPE = 0x5;
 
   public int getContentLength() {
     return rootElement.getContentLength();
@@ -46,6 +52,9 @@ public class DatafileStructure extends TLVStructure {
         case DATAFILE_HASH_TYPE:
           this.hash = this.readOnce(element).getDecodedDataHash();
           break;
+        case DATAFILE_ADDITIONAL_HASH_TYPE:
+          this.additionalHashes.add(element.getDecodedDataHash());
+          break;
       }
     }
   }
@@ -64,6 +73,26 @@ public class DatafileStructure extends TLVStructure {
     rootElement.addChildElement(TLVElement.create(DATAFILE_URI_TYPE, uri));
   }
 
+  /**
+   * Set datafile data with several hashes. First hash is main hash of datafile.
+   *
+   * @param uri datafile uri
+   * @param hashes hashes calculated with different algorithms
+   * @throws TLVParserException
+   */
+  public void addData(String uri, List<DataHash> hashes) throws TLVParserException {
+    DataHash mainHash = hashes.get(0);
+    addData(uri, mainHash.getAlgorithm(), mainHash);
+
+    this.additionalHashes = new ArrayList<>();
+    for (DataHash additionalHash : hashes.subList(1, hashes.size())) {
+      TLVElement element = new TLVElement(true, false, DATAFILE_ADDITIONAL_HASH_TYPE);
+      element.setDataHashContent(additionalHash);
+      rootElement.addChildElement(element);
+      this.additionalHashes.add(additionalHash);
+    }
+  }
+
   public String getUri() {
     return uri;
   }
@@ -76,12 +105,40 @@ public class DatafileStructure extends TLVStructure {
     return hash;
   }
 
+  /**
+   * Return all hashes of datafile, main hash first
+   *
+   * @return list of hashes
+   */
+  public List<DataHash> getHashes() {
+    List<DataHash> hashes = new ArrayList<>();
+    hashes.add(hash);
+    hashes.addAll(additionalHashes);
+    return Collections.unmodifiableList(hashes);
+  }
+
+  /**
+   * Return datafile hash calculated with given algorithm
+   *
+   * @param hashAlgorithm hash algorithm
+   * @return hash or null if datafile has no hash with given algorithm
+   */
+  public DataHash getHash(HashAlgorithm hashAlgorithm) {
+    for (DataHash dataHash : getHashes()) {
+      if (dataHash.getAlgorithm() == hashAlgorithm) {
+        return dataHash;
+      }
+    }
+    return null;
+  }
+
   @Override
   public String toString() {
     return "DatafileStructure{" +
       "uri='" + uri + '\'' +
       ", hashAlgorithm=" + hashAlgorithm.getName() +
       ", hash=" + hash +
+      (additionalHashes.isEmpty() ? "" : ", additionalHashes=" + additionalHashes) +
       '}';
   }
 
@@ -0,0 +1,112 @@
+package ee.guardtime.proov.tlv;
+
+import com.guardtime.ksi.hashing.DataHash;
+import com.guardtime.ksi.hashing.DataHasher;
+import com.guardtime.ksi.hashing.HashAlgorithm;
+import com.guardtime.ksi.hashing.HashException;
+
+import java.util.List;
+
+/**
+ * One step in local hash chain. Contains sibling hash and information on which side
+ * sibling is located. Leaves and parent nodes are hashed with different tag bytes:
+ * leaf is SHA-256(0x00 || imprint) and parent node is SHA-256(0x01 || left imprint || right imprint),
+ * so hash of inner node can not be given as leaf. Leaf link without sibling starts next tree,
+ * when root of one tree is leaf of another.
+ *
+ */
+public class HashChainLink {
+
+  private static final byte LEAF_TAG = 0x00;
+  private static final byte NODE_TAG = 0x01;
+
+  private final boolean siblingLeft;
+  private final DataHash siblingHash;
+
+  public HashChainLink(boolean siblingLeft, DataHash siblingHash) {
+    this.siblingLeft = siblingLeft;
+    this.siblingHash = siblingHash;
+  }
+
+  /**
+   * Create link which hashes current hash as leaf of next tree
+   *
+   * @return leaf link
+   */
+  public static HashChainLink leaf() {
+    return new HashChainLink(false, null);
+  }
+
+  /**
+   * Calculate leaf node hash of signed hash
+   *
+   * @param hash signed hash
+   * @return leaf node hash
+   * @throws HashException
+   */
+  public static DataHash hashLeaf(DataHash hash) throws HashException {
+    return new DataHasher(HashAlgorithm.SHA2_256)
+      .addData(new byte[]{LEAF_TAG})
+      .addData(hash.getImprint())
+      .getHash();
+  }
+
+  /**
+   * Calculate parent node hash of two nodes
+   *
+   * @param left left node
+   * @param right right node
+   * @return parent node hash
+   * @throws HashException
+   */
+  public static DataHash hashNodes(DataHash left, DataHash right) throws HashException {
+    return new DataHasher(HashAlgorithm.SHA2_256)
+      .addData(new byte[]{NODE_TAG})
+      .addData(left.getImprint())
+      .addData(right.getImprint())
+      .getHash();
+  }
+
+  /**
+   * Calculate root hash by hashing input hash as leaf and applying chain links to it
+   *
+   * @param inputHash signed hash
+   * @param links chain from leaf to root
+   * @return root hash
+   * @throws HashException
+   */
+  public static DataHash calculateRootHash(DataHash inputHash, List<HashChainLink> links) throws HashException {
+    DataHash hash = hashLeaf(inputHash);
+    for (HashChainLink link : links) {
+      hash = link.apply(hash);
+    }
+    return hash;
+  }
+
+  public DataHash apply(DataHash hash) throws HashException {
+    if (isLeaf()) {
+      return hashLeaf(hash);
+    }
+    return siblingLeft ? hashNodes(siblingHash, hash) : hashNodes(hash, siblingHash);
+  }
+
+  public boolean isLeaf() {
+    return siblingHash == null;
+  }
+
+  public boolean isSiblingLeft() {
+    return siblingLeft;
+  }
+
+  public DataHash getSiblingHash() {
+    return siblingHash;
+  }
+
+  @Override
+  public String toString() {
+    return "HashChainLink{" +
+      "siblingLeft=" + siblingLeft +
+      ", siblingHash=" + siblingHash +
+      '}';
+  }
+}
@@ -0,0 +1,107 @@
+package ee.guardtime.proov.tlv;
+
+import com.guardtime.ksi.hashing.DataHash;
+import com.guardtime.ksi.hashing.HashAlgorithm;
+import com.guardtime.ksi.hashing.HashException;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Input stream which feeds every byte read through it into one or more DataHashers.
+ * Used for hashing datafile while the same bytes are written into ZIP container,
+ * so datafile have to be read only once.
+ *
+ */
+public class HashingInputStream extends FilterInputStream {
+
+  private final MultiDataHasher dataHasher;
+  private long hashingNanos;
+
+  public HashingInputStream(InputStream in, HashAlgorithm hashAlgorithm) throws HashException {
+    this(in, Collections.singletonList(hashAlgorithm));
+  }
+
+  public HashingInputStream(InputStream in, List<HashAlgorithm> hashAlgorithms) throws HashException {
+    super(in);
+    this.dataHasher = new MultiDataHasher(hashAlgorithms);
+  }
+
+  @Override
+  public int read() throws IOException {
+    int b = super.read();
+    if (b != -1) {
+      update(new byte[]{(byte) b}, 0, 1);
+    }
+    return b;
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException {
+    int n = super.read(b, off, len);
+    if (n > 0) {
+      update(b, off, n);
+    }
+    return n;
+  }
+
+  @Override
+  public long skip(long n) throws IOException {
+    // skipped bytes must be hashed as well, so read them through
+    byte[] buffer = new byte[(int) Math.min(n, 8192)];
+    long skipped = 0;
+    int len;
+    while (skipped < n && (len = read(buffer, 0, (int) Math.min(buffer.length, n - skipped))) > 0) {
+      skipped += len;
+    }
+    return skipped;
+  }
+
+  @Override
+  public boolean markSupported() {
+    return false;
+  }
+
+  /**
+   * Return hash of all bytes read so far, calculated with first hash algorithm
+   *
+   * @return DataHash
+   * @throws HashException
+   */
+  public DataHash getHash() throws HashException {
+    return dataHasher.getHashes().get(0);
+  }
+
+  /**
+   * Return hashes of all bytes read so far, in the same order as hash algorithms were given
+   *
+   * @return list of DataHash
+   * @throws HashException
+   */
+  public List<DataHash> getHashes() throws HashException {
+    return dataHasher.getHashes();
+  }
+
+  /**
+   * Return time spent in hashing bytes read so far, without time of reading them
+   *
+   * @return hashing time in nanoseconds
+   */
+  public long getHashingNanos() {
+    return hashingNanos;
+  }
+
+  private void update(byte[] b, int off, int len) throws IOException {
+    long start = System.nanoTime();
+    try {
+      dataHasher.addData(b, off, len);
+    } catch (HashException e) {
+      throw new IOException("Unable to hash data", e);
+    } finally {
+      hashingNanos += System.nanoTime() - start;
+    }
+  }
+}
@@ -0,0 +1,301 @@
+package ee.guardtime.proov.tlv;
+
+import com.guardtime.ksi.hashing.DataHash;
+import com.guardtime.ksi.hashing.DataHasher;
+import com.guardtime.ksi.hashing.HashAlgorithm;
+import com.guardtime.ksi.hashing.HashException;
+import com.guardtime.ksi.hashing.UnknownHashAlgorithmException;
+import com.guardtime.ksi.tlv.TLVElement;
+import com.guardtime.ksi.tlv.TLVParserException;
+
+import java.nio.charset.Charset;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Lazy view of encoded manifest. Constructor only scans element headers, decodes signature URI
+ * and remembers where datafile elements are. Datafile URIs and hashes are decoded from raw
+ * bytes when they are asked for, so no TLVElement tree is built when manifest is opened.
+ * After construction view is immutable and can be shared between threads.
+ * Manifest can also reference manifest segments, each segment is a manifest without signature URI
+ * stored in its own container entry. Segment references are decoded in the same lazy way and
+ * are allowed only in manifest of segmented manifest type.
+ *
+ */
+public class LazyManifest {
+
+  private static final int MANIFEST_TYPE = 0x0;
+  private static final int SEGMENTED_MANIFEST_TYPE = 0x2;
+  private static final int DATAFILE_TYPE = 0x1;
+  private static final int DATAFILE_URI_TYPE = 0x2;
+  private static final int DATAFILE_HASH_TYPE = 0x4;
+  private static final int SIGNATURE_URI_TYPE = 0x10;
+  private static final int SEGMENT_TYPE = 0x11;
+  private static final int SEGMENT_URI_TYPE = 0x2;
+  private static final int SEGMENT_HASH_TYPE = 0x4;
+
+  private static final int TLV16_FLAG = 0x80;
+  private static final int TYPE_MASK = 0x1F;
+
+  // element header fields
+  private static final int TYPE = 0;
+  private static final int CONTENT_OFFSET = 1;
+  private static final int CONTENT_LENGTH = 2;
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private final byte[] data;
+  private String signatureUri;
+  private int[] datafileOffsets = new int[16];
+  private int datafileCount;
+  private int[] segmentOffsets = new int[0];
+  private int segmentCount;
+
+  public LazyManifest(byte[] data) throws TLVParserException {
+    this.data = data;
+
+    int[] header = readHeader(0, data.length);
+    int manifestType = header[TYPE];
+    if (manifestType != MANIFEST_TYPE && manifestType != SEGMENTED_MANIFEST_TYPE) {
+      throw new TLVParserException("Invalid manifest element type " + header[TYPE]);
+    }
+    if (end(header) != data.length) {
+      throw new TLVParserException("Manifest length does not match content length");
+    }
+
+    int position = header[CONTENT_OFFSET];
+    while (position < data.length) {
+      int elementOffset = position;
+      header = readHeader(position, data.length);
+      position = end(header);
+
+      switch (header[TYPE]) {
+        case SIGNATURE_URI_TYPE:
+          if (signatureUri != null) {
+            throw new TLVParserException("Multiple signature URI elements in manifest");
+          }
+          signatureUri = decodeString(header);
+          break;
+        case DATAFILE_TYPE:
+          if (datafileCount == datafileOffsets.length) {
+            datafileOffsets = Arrays.copyOf(datafileOffsets, datafileCount * 2);
+          }
+          datafileOffsets[datafileCount++] = elementOffset;
+          break;
+        case SEGMENT_TYPE:
+          if (segmentCount == segmentOffsets.length) {
+            segmentOffsets = Arrays.copyOf(segmentOffsets, Math.max(16, segmentCount * 2));
+          }
+          segmentOffsets[segmentCount++] = elementOffset;
+          break;
+      }
+    }
+    if ((manifestType == SEGMENTED_MANIFEST_TYPE) != (segmentCount > 0)) {
+      throw new TLVParserException("Segment references do not match manifest element type " + manifestType);
+    }
+  }
+
+  public String getSignatureUri() {
+    return signatureUri;
+  }
+
+  public int getDatafileCount() {
+    return datafileCount;
+  }
+
+  public int getSegmentCount() {
+    return segmentCount;
+  }
+
+  /**
+   * Manifest is segmented when it references manifest segments
+   *
+   * @return true if manifest has segment references
+   */
+  public boolean isSegmented() {
+    return segmentCount > 0;
+  }
+
+  /**
+   * Decode URI of referenced manifest segment
+   *
+   * @param index segment index in manifest
+   * @return segment URI
+   * @throws TLVParserException
+   */
+  public String getSegmentUri(int index) throws TLVParserException {
+    int[] header = findChild(segmentOffsets, segmentCount, index, SEGMENT_URI_TYPE);
+    if (header == null) {
+      throw new TLVParserException("Segment " + index + " has no URI");
+    }
+    return decodeString(header);
+  }
+
+  /**
+   * Decode hash of referenced manifest segment
+   *
+   * @param index segment index in manifest
+   * @return hash of encoded segment
+   * @throws TLVParserException
+   * @throws HashException
+   */
+  public DataHash getSegmentHash(int index) throws TLVParserException, HashException {
+    int[] header = findChild(segmentOffsets, segmentCount, index, SEGMENT_HASH_TYPE);
+    if (header == null) {
+      throw new TLVParserException("Segment " + index + " has no hash");
+    }
+    return new DataHash(Arrays.copyOfRange(data, header[CONTENT_OFFSET], end(header)));
+  }
+
+  /**
+   * Decode URI of datafile
+   *
+   * @param index datafile index in manifest
+   * @return datafile URI
+   * @throws TLVParserException
+   */
+  public String getDatafileUri(int index) throws TLVParserException {
+    int[] header = findChild(datafileOffsets, datafileCount, index, DATAFILE_URI_TYPE);
+    if (header == null) {
+      throw new TLVParserException("Datafile " + index + " has no URI");
+    }
+    return decodeString(header);
+  }
+
+  /**
+   * Return URIs of all datafiles. URIs are decoded when list elements are read.
+   *
+   * @return datafile URIs
+   */
+  public List<String> getDatafileUris() {
+    return new AbstractList<String>() {
+      @Override
+      public String get(int index) {
+        try {
+          return getDatafileUri(index);
+        } catch (TLVParserException e) {
+          throw new IllegalStateException(e.getMessage(), e);
+        }
+      }
+
+      @Override
+      public int size() {
+        return datafileCount;
+      }
+    };
+  }
+
+  /**
+   * Decode main hash of datafile
+   *
+   * @param index datafile index in manifest
+   * @return datafile hash
+   * @throws TLVParserException
+   * @throws HashException
+   */
+  public DataHash getDatafileHash(int index) throws TLVParserException, HashException {
+    int[] header = findChild(datafileOffsets, datafileCount, index, DATAFILE_HASH_TYPE);
+    if (header == null) {
+      throw new TLVParserException("Datafile " + index + " has no hash");
+    }
+    return new DataHash(Arrays.copyOfRange(data, header[CONTENT_OFFSET], end(header)));
+  }
+
+  /**
+   * Fully decode one datafile element
+   *
+   * @param index datafile index in manifest
+   * @return DatafileStructure
+   * @throws TLVParserException
+   * @throws UnknownHashAlgorithmException
+   */
+  public DatafileStructure getDatafile(int index) throws TLVParserException, UnknownHashAlgorithmException {
+    int[] header = readElementHeader(datafileOffsets, datafileCount, index);
+    return new DatafileStructure(TLVElement.create(Arrays.copyOfRange(data, datafileOffsets[index], end(header))));
+  }
+
+  /**
+   * Calculate hash of encoded manifest
+   *
+   * @param hashAlgorithm hash algorithm
+   * @return hash of manifest bytes
+   * @throws HashException
+   */
+  public DataHash getHash(HashAlgorithm hashAlgorithm) throws HashException {
+    return new DataHasher(hashAlgorithm).addData(data).getHash();
+  }
+
+  /**
+   * Fully decode manifest
+   *
+   * @return ManifestStructure
+   * @throws TLVParserException
+   * @throws UnknownHashAlgorithmException
+   */
+  public ManifestStructure toManifestStructure() throws TLVParserException, UnknownHashAlgorithmException {
+    return new ManifestStructure(TLVElement.create(data));
+  }
+
+  private int[] readElementHeader(int[] offsets, int count, int index) throws TLVParserException {
+    if (index < 0 || index >= count) {
+      throw new IndexOutOfBoundsException("Element index " + index + ", count " + count);
+    }
+    return readHeader(offsets[index], data.length);
+  }
+
+  /**
+   * Find child element of datafile or segment reference
+   *
+   * @return header of child or null if element has no child of given type
+   */
+  private int[] findChild(int[] offsets, int count, int index, int type) throws TLVParserException {
+    int[] parent = readElementHeader(offsets, count, index);
+    int position = parent[CONTENT_OFFSET];
+    while (position < end(parent)) {
+      int[] header = readHeader(position, end(parent));
+      if (header[TYPE] == type) {
+        return header;
+      }
+      position = end(header);
+    }
+    return null;
+  }
+
+  private int[] readHeader(int offset, int limit) throws TLVParserException {
+    if (offset + 2 > limit) {
+      throw new TLVParserException("Truncated TLV header at offset " + offset);
+    }
+    int[] header = new int[3];
+    int first = data[offset] & 0xFF;
+    if ((first & TLV16_FLAG) != 0) {
+      if (offset + 4 > limit) {
+        throw new TLVParserException("Truncated TLV16 header at offset " + offset);
+      }
+      header[TYPE] = ((first & TYPE_MASK) << 8) | (data[offset + 1] & 0xFF);
+      header[CONTENT_LENGTH] = ((data[offset + 2] & 0xFF) << 8) | (data[offset + 3] & 0xFF);
+      header[CONTENT_OFFSET] = offset + 4;
+    } else {
+      header[TYPE] = first & TYPE_MASK;
+      header[CONTENT_LENGTH] = data[offset + 1] & 0xFF;
+      header[CONTENT_OFFSET] = offset + 2;
+    }
+    if (end(header) > limit) {
+      throw new TLVParserException("TLV element at offset " + offset + " exceeds its parent");
+    }
+    return header;
+  }
+
+  private static int end(int[] header) {
+    return header[CONTENT_OFFSET] + header[CONTENT_LENGTH];
+  }
+
+  private String decodeString(int[] header) throws TLVParserException {
+    int offset = header[CONTENT_OFFSET];
+    int length = header[CONTENT_LENGTH];
+    if (length == 0 || data[offset + length - 1] != 0) {
+      throw new TLVParserException("String must be null terminated");
+    }
+    return new String(data, offset, length - 1, UTF8);
+  }
+}
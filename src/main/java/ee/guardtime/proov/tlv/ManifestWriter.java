@@ -0,0 +1,250 @@
+package ee.guardtime.proov.tlv;
+
+import com.guardtime.ksi.hashing.DataHash;
+import com.guardtime.ksi.hashing.DataHasher;
+import com.guardtime.ksi.hashing.HashAlgorithm;
+import com.guardtime.ksi.hashing.HashException;
+import com.guardtime.ksi.tlv.TLVElement;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Streaming encoder of manifest. Produces the same bytes as ManifestStructure, but does not
+ * build TLVElement tree. Every datafile element is encoded when it is added and only encoded
+ * bytes are kept. Manifest content is limited with TLV16 length, so memory used by one manifest
+ * is bounded. writeTo writes manifest into output stream and hashes it in the same pass.
+ * Writer without signature URI produces manifest segment, which is referenced from signed
+ * manifest (or from other segment) by its URI and hash. Manifest with segment references has its
+ * own element type, so readers which do not know segments fail instead of seeing no datafiles.
+ *
+ */
+public class ManifestWriter {
+
+  private static final int MANIFEST_TYPE = 0x0;
+  private static final int SEGMENTED_MANIFEST_TYPE = 0x2;
+  private static final int DATAFILE_TYPE = 0x1;
+  private static final int DATAFILE_URI_TYPE = 0x2;
+  private static final int DATAFILE_HASH_ALGORITHM_TYPE = 0x3;
+  private static final int DATAFILE_HASH_TYPE = 0x4;
+  private static final int DATAFILE_ADDITIONAL_HASH_TYPE = 0x5;
+  private static final int SIGNATURE_URI_TYPE = 0x10;
+  private static final int SEGMENT_TYPE = 0x11;
+  private static final int SEGMENT_URI_TYPE = 0x2;
+  private static final int SEGMENT_HASH_TYPE = 0x4;
+
+  private static final int TLV8_MAX_TYPE = 0x1F;
+  private static final int TLV8_MAX_LENGTH = 0xFF;
+  private static final int TLV16_FLAG = 0x80;
+  private static final int NON_CRITICAL_FLAG = 0x40;
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private final String signatureUri;
+  private final ByteArrayOutputStream content = new ByteArrayOutputStream();
+  private final List<String> datafileUris = new ArrayList<>();
+  private final List<String> segmentUris = new ArrayList<>();
+  private int elementCount;
+
+  /**
+   * Create writer for manifest segment
+   */
+  public ManifestWriter() {
+    this.signatureUri = null;
+  }
+
+  public ManifestWriter(String signatureUri) throws IOException {
+    this.signatureUri = signatureUri;
+    byte[] uri = encodeString(signatureUri);
+    writeHeader(content, false, SIGNATURE_URI_TYPE, uri.length);
+    content.write(uri);
+  }
+
+  /**
+   * Calculate how many bytes datafile element will take in manifest
+   *
+   * @param uri datafile uri
+   * @param hashAlgorithms hash algorithms of datafile, first one is main algorithm
+   * @return length of encoded datafile element (header + content)
+   */
+  public static int getDatafileLength(String uri, List<HashAlgorithm> hashAlgorithms) {
+    HashAlgorithm mainAlgorithm = hashAlgorithms.get(0);
+    int length = getElementLength(DATAFILE_HASH_ALGORITHM_TYPE, encodeString(mainAlgorithm.getName()).length)
+      + getElementLength(DATAFILE_HASH_TYPE, mainAlgorithm.getLength() + 1)
+      + getElementLength(DATAFILE_URI_TYPE, encodeString(uri).length);
+    for (HashAlgorithm hashAlgorithm : hashAlgorithms.subList(1, hashAlgorithms.size())) {
+      length += getElementLength(DATAFILE_ADDITIONAL_HASH_TYPE, hashAlgorithm.getLength() + 1);
+    }
+    return getElementLength(DATAFILE_TYPE, length);
+  }
+
+  /**
+   * Calculate how many bytes segment reference will take in manifest
+   *
+   * @param uri segment uri
+   * @param hashAlgorithm hash algorithm of segment hash
+   * @return length of encoded segment element (header + content)
+   */
+  public static int getSegmentLength(String uri, HashAlgorithm hashAlgorithm) {
+    return getElementLength(SEGMENT_TYPE, getElementLength(SEGMENT_URI_TYPE, encodeString(uri).length)
+      + getElementLength(SEGMENT_HASH_TYPE, hashAlgorithm.getLength() + 1));
+  }
+
+  /**
+   * Encode datafile element and append it to manifest
+   *
+   * @param uri datafile uri
+   * @param hashes datafile hashes, first one is main hash
+   * @throws IOException
+   */
+  public void addDatafile(String uri, List<DataHash> hashes) throws IOException {
+    DataHash mainHash = hashes.get(0);
+    ByteArrayOutputStream datafile = new ByteArrayOutputStream();
+    writeElement(datafile, false, DATAFILE_HASH_ALGORITHM_TYPE, encodeString(mainHash.getAlgorithm().getName()));
+    writeElement(datafile, false, DATAFILE_HASH_TYPE, mainHash.getImprint());
+    writeElement(datafile, false, DATAFILE_URI_TYPE, encodeString(uri));
+    for (DataHash additionalHash : hashes.subList(1, hashes.size())) {
+      writeElement(datafile, true, DATAFILE_ADDITIONAL_HASH_TYPE, additionalHash.getImprint());
+    }
+
+    if (content.size() + getElementLength(DATAFILE_TYPE, datafile.size()) > TLVElement.MAX_TLV16_CONTENT_LENGTH) {
+      throw new IllegalStateException("Datafile " + uri + " does not fit into manifest");
+    }
+    writeElement(content, false, DATAFILE_TYPE, datafile.toByteArray());
+    datafileUris.add(uri);
+    elementCount++;
+  }
+
+  /**
+   * Encode reference to manifest segment and append it to manifest
+   *
+   * @param uri segment uri in container
+   * @param hash hash of encoded segment
+   * @throws IOException
+   */
+  public void addSegment(String uri, DataHash hash) throws IOException {
+    ByteArrayOutputStream segment = new ByteArrayOutputStream();
+    writeElement(segment, false, SEGMENT_URI_TYPE, encodeString(uri));
+    writeElement(segment, false, SEGMENT_HASH_TYPE, hash.getImprint());
+
+    if (content.size() + getElementLength(SEGMENT_TYPE, segment.size()) > TLVElement.MAX_TLV16_CONTENT_LENGTH) {
+      throw new IllegalStateException("Segment " + uri + " does not fit into manifest");
+    }
+    writeElement(content, false, SEGMENT_TYPE, segment.toByteArray());
+    segmentUris.add(uri);
+    elementCount++;
+  }
+
+  public String getSignatureUri() {
+    return signatureUri;
+  }
+
+  public List<String> getDatafileUris() {
+    return Collections.unmodifiableList(datafileUris);
+  }
+
+  public List<String> getSegmentUris() {
+    return Collections.unmodifiableList(segmentUris);
+  }
+
+  /**
+   * Manifest is empty when it has no datafiles and no segment references
+   *
+   * @return true if manifest is empty
+   */
+  public boolean isEmpty() {
+    return elementCount == 0;
+  }
+
+  /**
+   * Return length of manifest content without manifest header
+   *
+   * @return content length
+   */
+  public int getContentLength() {
+    return content.size();
+  }
+
+  /**
+   * Write encoded manifest into output stream. Output stream is not closed.
+   *
+   * @param out output stream
+   * @return SHA-256 hash of written manifest
+   * @throws IOException
+   * @throws HashException
+   */
+  public DataHash writeTo(OutputStream out) throws IOException, HashException {
+    DataHasher dataHasher = new DataHasher(HashAlgorithm.SHA2_256);
+    HashingOutputStream hashingOut = new HashingOutputStream(out, dataHasher);
+    writeHeader(hashingOut, false, segmentUris.isEmpty() ? MANIFEST_TYPE : SEGMENTED_MANIFEST_TYPE, content.size());
+    content.writeTo(hashingOut);
+    return dataHasher.getHash();
+  }
+
+  private static void writeElement(ByteArrayOutputStream out, boolean nonCritical, int type, byte[] value)
+    throws IOException {
+    writeHeader(out, nonCritical, type, value.length);
+    out.write(value);
+  }
+
+  private static void writeHeader(OutputStream out, boolean nonCritical, int type, int length) throws IOException {
+    int flags = nonCritical ? NON_CRITICAL_FLAG : 0;
+    if (isTlv16(type, length)) {
+      out.write(TLV16_FLAG | flags | (type >>> 8));
+      out.write(type & 0xFF);
+      out.write(length >>> 8);
+      out.write(length & 0xFF);
+    } else {
+      out.write(flags | type);
+      out.write(length);
+    }
+  }
+
+  private static int getElementLength(int type, int contentLength) {
+    return (isTlv16(type, contentLength) ? 4 : 2) + contentLength;
+  }
+
+  private static boolean isTlv16(int type, int length) {
+    return type > TLV8_MAX_TYPE || length > TLV8_MAX_LENGTH;
+  }
+
+  private static byte[] encodeString(String value) {
+    byte[] bytes = value.getBytes(UTF8);
+    byte[] encoded = new byte[bytes.length + 1];
+    System.arraycopy(bytes, 0, encoded, 0, bytes.length);
+    return encoded;
+  }
+
+  /**
+   * Feeds every byte written through it into DataHasher, so manifest content is not copied
+   */
+  private static class HashingOutputStream extends FilterOutputStream {
+    private final DataHasher dataHasher;
+
+    HashingOutputStream(OutputStream out, DataHasher dataHasher) {
+      super(out);
+      this.dataHasher = dataHasher;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      try {
+        dataHasher.addData(b, off, len);
+      } catch (HashException e) {
+        throw new IOException("Unable to hash manifest", e);
+      }
+      out.write(b, off, len);
+    }
+  }
+}
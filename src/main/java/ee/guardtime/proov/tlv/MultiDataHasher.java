@@ -0,0 +1,76 @@
+package ee.guardtime.proov.tlv;
+
+import com.guardtime.ksi.hashing.DataHash;
+import com.guardtime.ksi.hashing.DataHasher;
+import com.guardtime.ksi.hashing.HashAlgorithm;
+import com.guardtime.ksi.hashing.HashException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Hasher which feeds the same data into several DataHashers, so data can be hashed
+ * with multiple algorithms while it is read only once.
+ *
+ */
+public class MultiDataHasher {
+
+  private static final int BUFFER_SIZE = 8192;
+
+  private final List<DataHasher> dataHashers = new ArrayList<>();
+
+  public MultiDataHasher(List<HashAlgorithm> hashAlgorithms) throws HashException {
+    if (hashAlgorithms.isEmpty()) {
+      throw new IllegalArgumentException("At least one hash algorithm is required");
+    }
+    Set<HashAlgorithm> unique = new HashSet<>(hashAlgorithms);
+    if (unique.size() != hashAlgorithms.size()) {
+      throw new IllegalArgumentException("Hash algorithms must be different: " + hashAlgorithms);
+    }
+    for (HashAlgorithm hashAlgorithm : hashAlgorithms) {
+      dataHashers.add(new DataHasher(hashAlgorithm));
+    }
+  }
+
+  public MultiDataHasher addData(byte[] data, int offset, int length) throws HashException {
+    for (DataHasher dataHasher : dataHashers) {
+      dataHasher.addData(data, offset, length);
+    }
+    return this;
+  }
+
+  /**
+   * Read stream until end and add all bytes to every hasher
+   *
+   * @param inputStream stream
+   * @return this hasher
+   * @throws HashException
+   * @throws IOException
+   */
+  public MultiDataHasher addData(InputStream inputStream) throws HashException, IOException {
+    byte[] buffer = new byte[BUFFER_SIZE];
+    int len;
+    while ((len = inputStream.read(buffer)) != -1) {
+      addData(buffer, 0, len);
+    }
+    return this;
+  }
+
+  /**
+   * Return hashes in the same order as algorithms were given
+   *
+   * @return list of DataHash
+   * @throws HashException
+   */
+  public List<DataHash> getHashes() throws HashException {
+    List<DataHash> hashes = new ArrayList<>();
+    for (DataHasher dataHasher : dataHashers) {
+      hashes.add(dataHasher.getHash());
+    }
+    return hashes;
+  }
+}
@@ -6,7 +6,23 @@ import com.guardtime.ksi.hashing.HashAlgorithm;
 import com.guardtime.ksi.hashing.HashException;
 import com.guardtime.ksi.tlv.TLVParserException;
 
+import ee.guardtime.proov.zip.ByteBufferCrc;
+
+import java.io.EOFException;
+import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.zip.CRC32;
 
 /**
  * TLVService class is used for managing all operations with manifest files.
@@ -15,6 +31,9 @@ import java.io.InputStream;
  */
 public class TLVService {
 
+  private static final long MAPPED_HASHING_THRESHOLD = 1024 * 1024;
+  private static final long MAPPED_REGION_SIZE = 64 * 1024 * 1024;
+  private static final int CHANNEL_BUFFER_SIZE = 64 * 1024;
 
   /**
    * Calculate DataHas for inputstream
@@ -30,6 +49,153 @@ public class TLVService {
     return dataHasher.getHash();
   }
 
+  /**
+   * Calculate DataHashes for inputstream with several algorithms, stream is read only once
+   *
+   * @param hashAlgorithms hash algorithms used
+   * @param inputStream stream
+   * @return list of DataHash in the same order as algorithms
+   * @throws HashException
+   * @throws IOException
+   */
+  public List<DataHash> calculateHashes(List<HashAlgorithm> hashAlgorithms, InputStream inputStream)
+    throws HashException, IOException {
+    return new MultiDataHasher(hashAlgorithms).addData(inputStream).getHashes();
+  }
+
+  /**
+   * Calculate DataHash for file
+   *
+   * @param hashAlgorithm hash algorithm used
+   * @param path file to hash
+   * @return DataHash
+   * @throws HashException
+   * @throws IOException
+   */
+  public DataHash calculateHash(HashAlgorithm hashAlgorithm, Path path) throws HashException, IOException {
+    return calculateHashes(Collections.singletonList(hashAlgorithm), path).get(0);
+  }
+
+  /**
+   * Calculate DataHashes for file with several algorithms, file is read only once
+   *
+   * @param hashAlgorithms hash algorithms used
+   * @param path file to hash
+   * @return list of DataHash in the same order as algorithms
+   * @throws HashException
+   * @throws IOException
+   */
+  public List<DataHash> calculateHashes(List<HashAlgorithm> hashAlgorithms, Path path) throws HashException, IOException {
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+      return calculateHashes(hashAlgorithms, channel);
+    }
+  }
+
+  /**
+   * Calculate DataHash for whole file behind the channel. Large files are hashed from memory mapped
+   * regions, so content is not copied through heap buffers. Algorithms missing from default JCE
+   * providers are hashed with DataHasher. Channel position is not changed.
+   *
+   * @param hashAlgorithm hash algorithm used
+   * @param channel file channel
+   * @return DataHash
+   * @throws HashException
+   * @throws IOException
+   */
+  public DataHash calculateHash(HashAlgorithm hashAlgorithm, FileChannel channel) throws HashException, IOException {
+    return calculateHashes(Collections.singletonList(hashAlgorithm), channel).get(0);
+  }
+
+  /**
+   * Calculate DataHashes for whole file behind the channel with several algorithms.
+   * Every mapped region is fed to all digests before next region is mapped.
+   *
+   * @param hashAlgorithms hash algorithms used
+   * @param channel file channel
+   * @return list of DataHash in the same order as algorithms
+   * @throws HashException
+   * @throws IOException
+   */
+  public List<DataHash> calculateHashes(List<HashAlgorithm> hashAlgorithms, FileChannel channel)
+    throws HashException, IOException {
+    return calculateHashes(hashAlgorithms, channel, channel.size(), null);
+  }
+
+  /**
+   * Calculate DataHashes and CRC32 for first bytes of file behind the channel, file is read only once.
+   * Every mapped region is fed to all digests and to CRC before next region is mapped.
+   *
+   * @param hashAlgorithms hash algorithms used
+   * @param channel file channel
+   * @param size number of bytes to hash
+   * @param crc CRC to update with hashed bytes, or null
+   * @return list of DataHash in the same order as algorithms
+   * @throws HashException
+   * @throws IOException also when file is shorter than size
+   */
+  public List<DataHash> calculateHashes(List<HashAlgorithm> hashAlgorithms, FileChannel channel, long size,
+                                        CRC32 crc) throws HashException, IOException {
+    if (channel.size() < size) {
+      throw new EOFException("File is shorter than " + size + " bytes");
+    }
+    List<MessageDigest> messageDigests = getMessageDigests(hashAlgorithms);
+
+    if (messageDigests == null || size < MAPPED_HASHING_THRESHOLD) {
+      MultiDataHasher dataHasher = new MultiDataHasher(hashAlgorithms);
+      ByteBuffer buffer = ByteBuffer.allocate(CHANNEL_BUFFER_SIZE);
+      long position = 0;
+      while (position < size) {
+        buffer.limit((int) Math.min(buffer.capacity(), size - position));
+        int len = channel.read(buffer, position);
+        if (len <= 0) {
+          throw new EOFException("File is shorter than " + size + " bytes");
+        }
+        dataHasher.addData(buffer.array(), 0, len);
+        if (crc != null) {
+          crc.update(buffer.array(), 0, len);
+        }
+        position += len;
+        buffer.clear();
+      }
+      return dataHasher.getHashes();
+    }
+
+    for (long position = 0; position < size; position += MAPPED_REGION_SIZE) {
+      MappedByteBuffer region = channel.map(FileChannel.MapMode.READ_ONLY, position,
+        Math.min(MAPPED_REGION_SIZE, size - position));
+      for (MessageDigest messageDigest : messageDigests) {
+        messageDigest.update(region.duplicate());
+      }
+      if (crc != null) {
+        ByteBufferCrc.update(crc, region.duplicate());
+      }
+    }
+    List<DataHash> hashes = new ArrayList<>();
+    for (int i = 0; i < hashAlgorithms.size(); i++) {
+      hashes.add(new DataHash(hashAlgorithms.get(i), messageDigests.get(i).digest()));
+    }
+    return hashes;
+  }
+
+  private List<MessageDigest> getMessageDigests(List<HashAlgorithm> hashAlgorithms) {
+    if (hashAlgorithms.isEmpty() || new HashSet<>(hashAlgorithms).size() != hashAlgorithms.size()) {
+      // let MultiDataHasher report invalid input
+      return null;
+    }
+    List<MessageDigest> messageDigests = new ArrayList<>();
+    for (HashAlgorithm hashAlgorithm : hashAlgorithms) {
+      if (hashAlgorithm.getStatus() == HashAlgorithm.Status.NOT_IMPLEMENTED) {
+        return null;
+      }
+      try {
+        messageDigests.add(MessageDigest.getInstance(hashAlgorithm.getName()));
+      } catch (NoSuchAlgorithmException e) {
+        return null;
+      }
+    }
+    return messageDigests;
+  }
+
 
   /**
    * Add new datafile into existinf manifest
@@ -80,13 +246,37 @@ public class TLVService {
     return manifestStructure;
   }
 
-  DatafileStructure combineDatafileStructure(String uri, HashAlgorithm hashAlgorithm,
-                                             DataHash hash) throws TLVParserException {
+  /**
+   * Create DatafileStructure from already calculated hash
+   *
+   * @param uri datafile uri in zip file
+   * @param hashAlgorithm Hashing algorithm
+   * @param hash datafile hash
+   * @return DatafileStructure
+   * @throws TLVParserException
+   */
+  public DatafileStructure combineDatafileStructure(String uri, HashAlgorithm hashAlgorithm,
+                                                    DataHash hash) throws TLVParserException {
     DatafileStructure datafileStructure = new DatafileStructure();
     datafileStructure.addData(uri, hashAlgorithm, hash);
     return datafileStructure;
   }
 
+  /**
+   * Create DatafileStructure with several already calculated hashes. First hash is stored as
+   * main hash of datafile, others are stored as additional hashes.
+   *
+   * @param uri datafile uri in zip file
+   * @param hashes datafile hashes
+   * @return DatafileStructure
+   * @throws TLVParserException
+   */
+  public DatafileStructure combineDatafileStructure(String uri, List<DataHash> hashes) throws TLVParserException {
+    DatafileStructure datafileStructure = new DatafileStructure();
+    datafileStructure.addData(uri, hashes);
+    return datafileStructure;
+  }
+
 
   /**
    * Generate DatafileStructure object
@@ -0,0 +1,53 @@
+package ee.guardtime.proov.zip;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+
+/**
+ * Updates CRC32 with contents of byte buffer. On Java 8 and later CRC32.update(ByteBuffer) is used, which
+ * reads direct and mapped buffers in place. On Java 7 bytes of direct buffer are copied through small array.
+ *
+ */
+public class ByteBufferCrc {
+
+  private static final int CHUNK_SIZE = 8192;
+  private static final Method UPDATE_BUFFER = getUpdateBuffer();
+
+  /**
+   * Update CRC with remaining bytes of buffer. Buffer position is moved to its limit.
+   *
+   * @param crc CRC to update
+   * @param buffer bytes to add
+   */
+  public static void update(CRC32 crc, ByteBuffer buffer) {
+    if (buffer.hasArray()) {
+      crc.update(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+      buffer.position(buffer.limit());
+      return;
+    }
+    if (UPDATE_BUFFER != null) {
+      try {
+        UPDATE_BUFFER.invoke(crc, buffer);
+        return;
+      } catch (IllegalAccessException | InvocationTargetException e) {
+        throw new IllegalStateException("CRC32 update failed", e);
+      }
+    }
+    byte[] chunk = new byte[Math.min(CHUNK_SIZE, buffer.remaining())];
+    while (buffer.hasRemaining()) {
+      int n = Math.min(chunk.length, buffer.remaining());
+      buffer.get(chunk, 0, n);
+      crc.update(chunk, 0, n);
+    }
+  }
+
+  private static Method getUpdateBuffer() {
+    try {
+      return CRC32.class.getMethod("update", ByteBuffer.class);
+    } catch (NoSuchMethodException e) {
+      return null;
+    }
+  }
+}
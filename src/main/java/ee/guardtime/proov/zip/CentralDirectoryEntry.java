@@ -0,0 +1,86 @@
+package ee.guardtime.proov.zip;
+
+/**
+ * Entry of ZIP central directory. Contains everything needed to locate entry data
+ * in archive and to write the same entry into central directory of another archive.
+ *
+ */
+public class CentralDirectoryEntry {
+
+  static final int FLAG_DATA_DESCRIPTOR = 0x8;
+  static final int FLAG_UTF8 = 0x800;
+
+  String name;
+  int versionMadeBy;
+  int versionNeeded;
+  int flags;
+  int method;
+  long dosTime;
+  long crc;
+  long compressedSize;
+  long size;
+  long localHeaderOffset;
+  byte[] extra = new byte[0];
+  byte[] comment = new byte[0];
+  int internalAttributes;
+  long externalAttributes;
+
+  CentralDirectoryEntry() {
+  }
+
+  CentralDirectoryEntry(CentralDirectoryEntry entry) {
+    this.name = entry.name;
+    this.versionMadeBy = entry.versionMadeBy;
+    this.versionNeeded = entry.versionNeeded;
+    this.flags = entry.flags;
+    this.method = entry.method;
+    this.dosTime = entry.dosTime;
+    this.crc = entry.crc;
+    this.compressedSize = entry.compressedSize;
+    this.size = entry.size;
+    this.localHeaderOffset = entry.localHeaderOffset;
+    this.extra = entry.extra;
+    this.comment = entry.comment;
+    this.internalAttributes = entry.internalAttributes;
+    this.externalAttributes = entry.externalAttributes;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public int getMethod() {
+    return method;
+  }
+
+  public long getCrc() {
+    return crc;
+  }
+
+  public long getCompressedSize() {
+    return compressedSize;
+  }
+
+  public long getSize() {
+    return size;
+  }
+
+  public long getLocalHeaderOffset() {
+    return localHeaderOffset;
+  }
+
+  public boolean hasDataDescriptor() {
+    return (flags & FLAG_DATA_DESCRIPTOR) != 0;
+  }
+
+  @Override
+  public String toString() {
+    return "CentralDirectoryEntry{" +
+      "name='" + name + '\'' +
+      ", method=" + method +
+      ", compressedSize=" + compressedSize +
+      ", size=" + size +
+      ", localHeaderOffset=" + localHeaderOffset +
+      '}';
+  }
+}
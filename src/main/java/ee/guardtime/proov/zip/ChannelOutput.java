@@ -0,0 +1,187 @@
+package ee.guardtime.proov.zip;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.CRC32;
+import java.util.zip.ZipException;
+
+/**
+ * Output of ZipWriter. Small writes (headers, deflated blocks) are collected into one large direct
+ * buffer, so they cost one channel write per buffer. Writes larger than buffer go to channel directly
+ * and entries copied from other archives are transferred channel to channel, without copying them through
+ * heap. Files added as stored entries are read into the same buffer, so their CRC is calculated in one pass
+ * from the bytes which are written.
+ * Direct buffers are taken from shared pool and returned into it when output is closed, so writing lots
+ * of small archives does not allocate new direct buffer for each of them.
+ *
+ */
+class ChannelOutput extends OutputStream {
+
+  static final int BUFFER_SIZE = 1024 * 1024;
+  static final int BUFFER_POOL_SIZE = 2 * Runtime.getRuntime().availableProcessors();
+
+  private static final BlockingQueue<ByteBuffer> BUFFER_POOL = new ArrayBlockingQueue<>(BUFFER_POOL_SIZE);
+
+  private final WritableByteChannel channel;
+  private final OutputStream stream;
+  private final ByteBuffer buffer;
+  private final byte[] single = new byte[1];
+  private boolean closed;
+
+  /**
+   * @param channel channel to write to
+   * @param stream stream behind channel which has to be flushed together with channel, or null
+   */
+  ChannelOutput(WritableByteChannel channel, OutputStream stream) {
+    this.channel = channel;
+    this.stream = stream;
+    ByteBuffer pooled = BUFFER_POOL.poll();
+    this.buffer = pooled != null ? pooled : ByteBuffer.allocateDirect(BUFFER_SIZE);
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    single[0] = (byte) b;
+    write(single, 0, 1);
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    checkOpen();
+    if (len > buffer.remaining()) {
+      flushBuffer();
+    }
+    if (len >= buffer.capacity()) {
+      writeFully(ByteBuffer.wrap(b, off, len));
+    } else {
+      buffer.put(b, off, len);
+    }
+  }
+
+  /**
+   * Transfer region of file into output without copying it through heap
+   *
+   * @param source file to copy from
+   * @param position position of region in source
+   * @param count length of region
+   * @throws IOException
+   */
+  void transferFrom(FileChannel source, long position, long count) throws IOException {
+    checkOpen();
+    flushBuffer();
+    long transferred = 0;
+    while (transferred < count) {
+      long n = source.transferTo(position + transferred, count - transferred, channel);
+      if (n <= 0) {
+        throw new ZipException("Unexpected end of source file");
+      }
+      transferred += n;
+    }
+  }
+
+  /**
+   * Copy region of file into output through buffer and update CRC with every copied block
+   *
+   * @param source file to copy from
+   * @param position position of region in source
+   * @param count length of region
+   * @param crc CRC to update with copied bytes
+   * @throws IOException
+   */
+  void copyFrom(FileChannel source, long position, long count, CRC32 crc) throws IOException {
+    checkOpen();
+    long copied = 0;
+    while (copied < count) {
+      if (!buffer.hasRemaining()) {
+        flushBuffer();
+      }
+      int start = buffer.position();
+      buffer.limit((int) Math.min(buffer.capacity(), start + count - copied));
+      int n = source.read(buffer, position + copied);
+      buffer.limit(buffer.capacity());
+      if (n <= 0) {
+        throw new ZipException("Unexpected end of source file");
+      }
+      ByteBuffer block = buffer.duplicate();
+      block.position(start);
+      block.limit(start + n);
+      ByteBufferCrc.update(crc, block);
+      copied += n;
+    }
+  }
+
+  /**
+   * Output is seekable when it writes into file channel
+   *
+   * @return true if writeAt can be used
+   */
+  boolean isSeekable() {
+    return channel instanceof FileChannel;
+  }
+
+  /**
+   * Overwrite bytes already written into file channel. Buffer is flushed first.
+   *
+   * @param position position in file
+   * @param data bytes to write
+   * @throws IOException
+   */
+  void writeAt(long position, ByteBuffer data) throws IOException {
+    checkOpen();
+    flushBuffer();
+    long offset = position - data.position();
+    while (data.hasRemaining()) {
+      ((FileChannel) channel).write(data, offset + data.position());
+    }
+  }
+
+  @Override
+  public void flush() throws IOException {
+    checkOpen();
+    flushBuffer();
+    if (stream != null) {
+      stream.flush();
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (closed) {
+      return;
+    }
+    try {
+      flush();
+      channel.close();
+    } finally {
+      closed = true;
+      buffer.clear();
+      BUFFER_POOL.offer(buffer);
+    }
+  }
+
+  /**
+   * Buffer of closed output is back in pool and can be used by other output
+   */
+  private void checkOpen() throws ZipException {
+    if (closed) {
+      throw new ZipException("ZIP output already closed");
+    }
+  }
+
+  private void flushBuffer() throws IOException {
+    buffer.flip();
+    writeFully(buffer);
+    buffer.clear();
+  }
+
+  private void writeFully(ByteBuffer data) throws IOException {
+    while (data.hasRemaining()) {
+      channel.write(data);
+    }
+  }
+}
@@ -0,0 +1,24 @@
+package ee.guardtime.proov.zip;
+
+/**
+ * Chooses how new ZIP entry is compressed. Policy gets entry name and first block of entry data,
+ * so choice can be made by file extension, by content of the block or by hint known to caller.
+ *
+ */
+public interface CompressionPolicy {
+
+  /**
+   * Entry is written without compression
+   */
+  int STORED = -2;
+
+  /**
+   * Choose compression of entry
+   *
+   * @param name entry name
+   * @param sample first bytes of entry data
+   * @param sampleLength number of bytes in sample, less than sample size only when entry is shorter
+   * @return STORED, DEFLATE level 0-9 or Deflater.DEFAULT_COMPRESSION
+   */
+  int getCompressionLevel(String name, byte[] sample, int sampleLength);
+}
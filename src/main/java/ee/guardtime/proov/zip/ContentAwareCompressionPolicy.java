@@ -0,0 +1,81 @@
+package ee.guardtime.proov.zip;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.zip.Deflater;
+
+/**
+ * Compression policy which does not spend CPU on data that is already compressed.
+ * Entries with known compressed file extensions (images, video, audio, archives) are stored.
+ * Other entries are stored when byte entropy of their first block is close to 8 bits per byte,
+ * otherwise they are deflated with configured level.
+ *
+ */
+public class ContentAwareCompressionPolicy implements CompressionPolicy {
+
+  public static final Collection<String> DEFAULT_STORED_EXTENSIONS = Arrays.asList(
+    "jpg", "jpeg", "png", "gif", "webp", "heic",
+    "mp4", "m4v", "mov", "mkv", "avi", "webm", "mp3", "m4a", "aac", "ogg", "flac",
+    "zip", "gz", "tgz", "bz2", "xz", "7z", "rar", "jar", "iso",
+    "docx", "xlsx", "pptx", "odt", "ods", "pdf", "ksi");
+  public static final double DEFAULT_ENTROPY_THRESHOLD = 7.5;
+
+  private static final int MIN_PROBE_LENGTH = 4096;
+
+  private final Set<String> storedExtensions = new HashSet<>();
+  private final int level;
+  private final double entropyThreshold;
+
+  public ContentAwareCompressionPolicy() {
+    this(DEFAULT_STORED_EXTENSIONS, Deflater.DEFAULT_COMPRESSION, DEFAULT_ENTROPY_THRESHOLD);
+  }
+
+  /**
+   * @param storedExtensions file extensions of entries which are always stored, without dot
+   * @param level DEFLATE level of compressible entries
+   * @param entropyThreshold entropy in bits per byte above which entry is stored
+   */
+  public ContentAwareCompressionPolicy(Collection<String> storedExtensions, int level, double entropyThreshold) {
+    for (String extension : storedExtensions) {
+      this.storedExtensions.add(extension.toLowerCase(Locale.ROOT));
+    }
+    this.level = level;
+    this.entropyThreshold = entropyThreshold;
+  }
+
+  @Override
+  public int getCompressionLevel(String name, byte[] sample, int sampleLength) {
+    int dot = name.lastIndexOf('.');
+    if (dot >= 0 && dot > name.lastIndexOf('/')
+      && storedExtensions.contains(name.substring(dot + 1).toLowerCase(Locale.ROOT))) {
+      return STORED;
+    }
+    if (sampleLength >= MIN_PROBE_LENGTH && getEntropy(sample, sampleLength) > entropyThreshold) {
+      return STORED;
+    }
+    return level;
+  }
+
+  /**
+   * Calculate Shannon entropy of bytes
+   *
+   * @return entropy in bits per byte, 0 - 8
+   */
+  static double getEntropy(byte[] data, int length) {
+    int[] counts = new int[256];
+    for (int i = 0; i < length; i++) {
+      counts[data[i] & 0xFF]++;
+    }
+    double entropy = 0;
+    for (int count : counts) {
+      if (count > 0) {
+        double p = (double) count / length;
+        entropy -= p * Math.log(p);
+      }
+    }
+    return entropy / Math.log(2);
+  }
+}
@@ -0,0 +1,109 @@
+package ee.guardtime.proov.zip;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+
+/**
+ * ZIP entry compressed in memory before it is written into archive. Entries can be compressed on
+ * several threads at once and written later by one ZipWriter with addDeflatedEntry, sizes and CRC
+ * are known when local header is written. Whole compressed entry is kept in memory, so it is meant
+ * for small files and entry data can not be longer than MAX_SIZE bytes.
+ *
+ */
+public class DeflatedEntry {
+
+  public static final int MAX_SIZE = 4 * 1024 * 1024;
+
+  private static final int SAMPLE_SIZE = 64 * 1024;
+
+  final String name;
+  final int method;
+  final long crc;
+  final long size;
+  final byte[] data;
+
+  private DeflatedEntry(String name, int method, long crc, long size, byte[] data) {
+    this.name = name;
+    this.method = method;
+    this.crc = crc;
+    this.size = size;
+    this.data = data;
+  }
+
+  /**
+   * Read input stream and compress it into entry. First block of input is given to compression policy
+   * as sample, like in ZipService.addFileToZip. Input stream is not closed.
+   *
+   * @param name entry name
+   * @param inputStream entry data
+   * @param compressionPolicy policy choosing compression of entry, null to deflate with default level
+   * @return compressed entry
+   * @throws ZipException if entry data is longer than MAX_SIZE
+   * @throws IOException
+   */
+  public static DeflatedEntry deflate(String name, InputStream inputStream, CompressionPolicy compressionPolicy)
+    throws IOException {
+    byte[] buffer = new byte[SAMPLE_SIZE];
+    int sampleLength = 0;
+    int length;
+    while (sampleLength < buffer.length &&
+      (length = inputStream.read(buffer, sampleLength, buffer.length - sampleLength)) > 0) {
+      sampleLength += length;
+    }
+
+    int level = compressionPolicy == null ? Deflater.DEFAULT_COMPRESSION :
+      compressionPolicy.getCompressionLevel(name, buffer, sampleLength);
+    boolean stored = level == CompressionPolicy.STORED;
+
+    CRC32 crc = new CRC32();
+    ByteArrayOutputStream compressed = new ByteArrayOutputStream(Math.max(32, sampleLength / 2));
+    Deflater deflater = stored ? null : new Deflater(level, true);
+    try {
+      OutputStream out = stored ? compressed : new DeflaterOutputStream(compressed, deflater, 8192);
+      long size = 0;
+      length = sampleLength;
+      do {
+        if (size + length > MAX_SIZE) {
+          throw new ZipException("Entry " + name + " is larger than " + MAX_SIZE + " bytes");
+        }
+        crc.update(buffer, 0, length);
+        out.write(buffer, 0, length);
+        size += length;
+      } while ((length = inputStream.read(buffer)) > 0);
+      out.close();
+      return new DeflatedEntry(name, stored ? ZipEntry.STORED : ZipEntry.DEFLATED, crc.getValue(), size,
+        compressed.toByteArray());
+    } finally {
+      if (deflater != null) {
+        deflater.end();
+      }
+    }
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public int getMethod() {
+    return method;
+  }
+
+  public long getCrc() {
+    return crc;
+  }
+
+  public long getSize() {
+    return size;
+  }
+
+  public long getCompressedSize() {
+    return data.length;
+  }
+}
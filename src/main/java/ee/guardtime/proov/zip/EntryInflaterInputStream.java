@@ -0,0 +1,45 @@
+package ee.guardtime.proov.zip;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Inflater stream for raw DEFLATE data of ZIP entry. Inflater without ZLIB header
+ * may need one extra dummy byte after the end of compressed data.
+ *
+ */
+class EntryInflaterInputStream extends InflaterInputStream {
+
+  private boolean eof;
+  private boolean closed;
+
+  EntryInflaterInputStream(InputStream in, int size) {
+    super(in, new Inflater(true), size);
+  }
+
+  @Override
+  protected void fill() throws IOException {
+    if (eof) {
+      throw new EOFException("Unexpected end of ZLIB input stream");
+    }
+    len = in.read(buf, 0, buf.length);
+    if (len == -1) {
+      buf[0] = 0;
+      len = 1;
+      eof = true;
+    }
+    inf.setInput(buf, 0, len);
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (!closed) {
+      closed = true;
+      inf.end();
+      super.close();
+    }
+  }
+}
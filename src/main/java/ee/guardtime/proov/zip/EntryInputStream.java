@@ -0,0 +1,60 @@
+package ee.guardtime.proov.zip;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Input stream over part of file channel. Uses positional reads, so several streams
+ * can read from the same channel at the same time.
+ *
+ */
+class EntryInputStream extends InputStream {
+
+  private final FileChannel channel;
+  private long position;
+  private long remaining;
+  private final byte[] single = new byte[1];
+
+  EntryInputStream(FileChannel channel, long position, long length) {
+    this.channel = channel;
+    this.position = position;
+    this.remaining = length;
+  }
+
+  @Override
+  public int read() throws IOException {
+    return read(single, 0, 1) == 1 ? single[0] & 0xFF : -1;
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException {
+    if (remaining <= 0) {
+      return -1;
+    }
+    if (len == 0) {
+      return 0;
+    }
+    int n = channel.read(ByteBuffer.wrap(b, off, (int) Math.min(len, remaining)), position);
+    if (n < 0) {
+      throw new IOException("Unexpected end of ZIP archive");
+    }
+    position += n;
+    remaining -= n;
+    return n;
+  }
+
+  @Override
+  public long skip(long n) {
+    long skipped = Math.min(Math.max(n, 0), remaining);
+    position += skipped;
+    remaining -= skipped;
+    return skipped;
+  }
+
+  @Override
+  public int available() {
+    return (int) Math.min(remaining, Integer.MAX_VALUE);
+  }
+}
@@ -0,0 +1,150 @@
+package ee.guardtime.proov.zip;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.Deflater;
+import java.util.zip.ZipException;
+
+/**
+ * Deflates one ZIP entry on several threads, in the same way as pigz does. Input is split into
+ * blocks, every block is deflated separately with last 32 KB of previous block as dictionary
+ * and ended with sync flush, only last block is finished. Concatenated blocks form one standard
+ * raw DEFLATE stream. Blocks are written into output stream in input order.
+ * Entry shorter than one block is deflated on calling thread.
+ *
+ */
+class ParallelDeflater {
+
+  static final int BLOCK_SIZE = 128 * 1024;
+  static final int MAX_BLOCKS_IN_FLIGHT = 16;
+
+  private static final int DICTIONARY_SIZE = 32 * 1024;
+
+  private final ExecutorService executor;
+  private final int level;
+  private final OutputStream out;
+  private final Queue<Future<byte[]>> blocks = new ArrayDeque<>();
+
+  private byte[] block = new byte[BLOCK_SIZE];
+  private int blockLength;
+  private byte[] previousBlock;
+  private long bytesWritten;
+
+  ParallelDeflater(ExecutorService executor, int level, OutputStream out) {
+    this.executor = executor;
+    this.level = level;
+    this.out = out;
+  }
+
+  void write(byte[] b, int off, int len) throws IOException {
+    while (len > 0) {
+      if (blockLength == block.length) {
+        submit(false);
+      }
+      int n = Math.min(len, block.length - blockLength);
+      System.arraycopy(b, off, block, blockLength, n);
+      blockLength += n;
+      off += n;
+      len -= n;
+    }
+  }
+
+  /**
+   * Deflate last block and write all blocks into output stream
+   *
+   * @return number of compressed bytes written for entry
+   * @throws IOException
+   */
+  long finish() throws IOException {
+    if (previousBlock == null) {
+      writeBlock(new BlockTask(level, null, block, blockLength, true).call());
+    } else {
+      submit(true);
+      while (!blocks.isEmpty()) {
+        writeBlock(take());
+      }
+    }
+    return bytesWritten;
+  }
+
+  private void submit(boolean last) throws IOException {
+    blocks.add(executor.submit(new BlockTask(level, previousBlock, block, blockLength, last)));
+    previousBlock = block;
+    block = new byte[BLOCK_SIZE];
+    blockLength = 0;
+
+    while (blocks.size() >= MAX_BLOCKS_IN_FLIGHT) {
+      writeBlock(take());
+    }
+  }
+
+  private byte[] take() throws IOException {
+    try {
+      return blocks.remove().get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while deflating ZIP entry");
+    } catch (ExecutionException e) {
+      throw new ZipException("Unable to deflate ZIP entry: " + e.getCause());
+    }
+  }
+
+  private void writeBlock(byte[] deflated) throws IOException {
+    out.write(deflated);
+    bytesWritten += deflated.length;
+  }
+
+  private static class BlockTask implements Callable<byte[]> {
+    private final int level;
+    private final byte[] previousBlock;
+    private final byte[] data;
+    private final int length;
+    private final boolean last;
+
+    BlockTask(int level, byte[] previousBlock, byte[] data, int length, boolean last) {
+      this.level = level;
+      this.previousBlock = previousBlock;
+      this.data = data;
+      this.length = length;
+      this.last = last;
+    }
+
+    @Override
+    public byte[] call() {
+      Deflater deflater = new Deflater(level, true);
+      try {
+        if (previousBlock != null) {
+          deflater.setDictionary(previousBlock, previousBlock.length - DICTIONARY_SIZE, DICTIONARY_SIZE);
+        }
+        deflater.setInput(data, 0, length);
+
+        ByteArrayOutputStream deflated = new ByteArrayOutputStream(length / 2 + 64);
+        byte[] buffer = new byte[8192];
+        if (last) {
+          deflater.finish();
+          while (!deflater.finished()) {
+            int n = deflater.deflate(buffer);
+            deflated.write(buffer, 0, n);
+          }
+        } else {
+          int n;
+          do {
+            n = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+            deflated.write(buffer, 0, n);
+          } while (n == buffer.length);
+        }
+        return deflated.toByteArray();
+      } finally {
+        deflater.end();
+      }
+    }
+  }
+}
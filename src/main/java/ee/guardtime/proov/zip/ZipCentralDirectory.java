@@ -0,0 +1,229 @@
+package ee.guardtime.proov.zip;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.ZipException;
+
+/**
+ * Reader of ZIP central directory. Only end of archive is read, so reading does not depend
+ * on size of datafiles in archive. ZIP64 end of central directory and ZIP64 extra fields are
+ * supported, so archives and entries over 4 GB and archives with more than 65535 entries can be read.
+ *
+ */
+public class ZipCentralDirectory {
+
+  static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+  static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+  static final int END_OF_CENTRAL_DIRECTORY_SIGNATURE = 0x06054b50;
+  static final int DATA_DESCRIPTOR_SIGNATURE = 0x08074b50;
+  static final int ZIP64_END_OF_CENTRAL_DIRECTORY_SIGNATURE = 0x06064b50;
+  static final int ZIP64_LOCATOR_SIGNATURE = 0x07064b50;
+  static final int ZIP64_EXTRA_ID = 0x0001;
+
+  static final int LOCAL_HEADER_LENGTH = 30;
+  static final int CENTRAL_HEADER_LENGTH = 46;
+  static final int END_OF_CENTRAL_DIRECTORY_LENGTH = 22;
+  static final int ZIP64_END_OF_CENTRAL_DIRECTORY_LENGTH = 56;
+  static final int ZIP64_LOCATOR_LENGTH = 20;
+  static final long ZIP64_MAGIC = 0xFFFFFFFFL;
+  static final int ZIP64_MAGIC_COUNT = 0xFFFF;
+  private static final int MAX_COMMENT_LENGTH = 0xFFFF;
+
+  static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private final List<CentralDirectoryEntry> entries = new ArrayList<>();
+  private long offset;
+  private long length;
+
+  public ZipCentralDirectory(FileChannel channel) throws IOException {
+    long endOffset = findEndOfCentralDirectory(channel);
+    ByteBuffer end = read(channel, endOffset, END_OF_CENTRAL_DIRECTORY_LENGTH);
+
+    long count = end.getShort(10) & 0xFFFF;
+    this.length = end.getInt(12) & 0xFFFFFFFFL;
+    this.offset = end.getInt(16) & 0xFFFFFFFFL;
+
+    if (endOffset >= ZIP64_LOCATOR_LENGTH) {
+      ByteBuffer locator = read(channel, endOffset - ZIP64_LOCATOR_LENGTH, ZIP64_LOCATOR_LENGTH);
+      if (locator.getInt(0) == ZIP64_LOCATOR_SIGNATURE) {
+        ByteBuffer zip64End = read(channel, locator.getLong(8), ZIP64_END_OF_CENTRAL_DIRECTORY_LENGTH);
+        if (zip64End.getInt(0) != ZIP64_END_OF_CENTRAL_DIRECTORY_SIGNATURE) {
+          throw new ZipException("Invalid ZIP64 end of central directory");
+        }
+        count = zip64End.getLong(32);
+        this.length = zip64End.getLong(40);
+        this.offset = zip64End.getLong(48);
+      }
+    }
+    if (length > Integer.MAX_VALUE || count > Integer.MAX_VALUE) {
+      throw new ZipException("Too large central directory");
+    }
+
+    ByteBuffer buffer = ByteBuffer.allocate((int) length).order(ByteOrder.LITTLE_ENDIAN);
+    readFully(channel, buffer, offset);
+    buffer.flip();
+
+    for (int i = 0; i < count; i++) {
+      entries.add(readEntry(buffer));
+    }
+  }
+
+  /**
+   * Return entries in the same order as they are in central directory
+   *
+   * @return list of entries
+   */
+  public List<CentralDirectoryEntry> getEntries() {
+    return entries;
+  }
+
+  /**
+   * Return position of central directory in archive. All entries are located before it.
+   *
+   * @return central directory offset
+   */
+  public long getOffset() {
+    return offset;
+  }
+
+  public long getLength() {
+    return length;
+  }
+
+  /**
+   * Calculate length of local header of entry. Local header extra field can differ from
+   * central directory one, so it is read from archive.
+   *
+   * @param channel archive
+   * @param entry entry
+   * @return length of local header including name and extra field
+   * @throws IOException
+   */
+  public static int getLocalHeaderLength(FileChannel channel, CentralDirectoryEntry entry) throws IOException {
+    ByteBuffer header = ByteBuffer.allocate(LOCAL_HEADER_LENGTH).order(ByteOrder.LITTLE_ENDIAN);
+    readFully(channel, header, entry.getLocalHeaderOffset());
+    if (header.getInt(0) != LOCAL_HEADER_SIGNATURE) {
+      throw new ZipException("Invalid local header of entry " + entry.getName());
+    }
+    return LOCAL_HEADER_LENGTH + (header.getShort(26) & 0xFFFF) + (header.getShort(28) & 0xFFFF);
+  }
+
+  static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+    while (buffer.hasRemaining()) {
+      int n = channel.read(buffer, position + buffer.position());
+      if (n < 0) {
+        throw new ZipException("Unexpected end of ZIP archive");
+      }
+    }
+  }
+
+  private static ByteBuffer read(FileChannel channel, long position, int length) throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+    readFully(channel, buffer, position);
+    return buffer;
+  }
+
+  /**
+   * Find position of end of central directory record
+   */
+  private static long findEndOfCentralDirectory(FileChannel channel) throws IOException {
+    long size = channel.size();
+    if (size < END_OF_CENTRAL_DIRECTORY_LENGTH) {
+      throw new ZipException("Not a ZIP archive");
+    }
+
+    int tailLength = (int) Math.min(size, END_OF_CENTRAL_DIRECTORY_LENGTH + MAX_COMMENT_LENGTH);
+    ByteBuffer tail = ByteBuffer.allocate(tailLength).order(ByteOrder.LITTLE_ENDIAN);
+    readFully(channel, tail, size - tailLength);
+
+    for (int i = tailLength - END_OF_CENTRAL_DIRECTORY_LENGTH; i >= 0; i--) {
+      if (tail.getInt(i) == END_OF_CENTRAL_DIRECTORY_SIGNATURE &&
+        i + END_OF_CENTRAL_DIRECTORY_LENGTH + (tail.getShort(i + 20) & 0xFFFF) == tailLength) {
+        return size - tailLength + i;
+      }
+    }
+    throw new ZipException("End of central directory not found");
+  }
+
+  private static CentralDirectoryEntry readEntry(ByteBuffer buffer) throws ZipException {
+    if (buffer.remaining() < CENTRAL_HEADER_LENGTH || buffer.getInt() != CENTRAL_HEADER_SIGNATURE) {
+      throw new ZipException("Invalid central directory");
+    }
+
+    CentralDirectoryEntry entry = new CentralDirectoryEntry();
+    entry.versionMadeBy = buffer.getShort() & 0xFFFF;
+    entry.versionNeeded = buffer.getShort() & 0xFFFF;
+    entry.flags = buffer.getShort() & 0xFFFF;
+    entry.method = buffer.getShort() & 0xFFFF;
+    entry.dosTime = buffer.getInt() & 0xFFFFFFFFL;
+    entry.crc = buffer.getInt() & 0xFFFFFFFFL;
+    entry.compressedSize = buffer.getInt() & 0xFFFFFFFFL;
+    entry.size = buffer.getInt() & 0xFFFFFFFFL;
+    int nameLength = buffer.getShort() & 0xFFFF;
+    int extraLength = buffer.getShort() & 0xFFFF;
+    int commentLength = buffer.getShort() & 0xFFFF;
+    buffer.getShort(); // disk number start
+    entry.internalAttributes = buffer.getShort() & 0xFFFF;
+    entry.externalAttributes = buffer.getInt() & 0xFFFFFFFFL;
+    entry.localHeaderOffset = buffer.getInt() & 0xFFFFFFFFL;
+
+    byte[] name = new byte[nameLength];
+    buffer.get(name);
+    entry.name = new String(name, UTF8);
+    entry.extra = new byte[extraLength];
+    buffer.get(entry.extra);
+    entry.comment = new byte[commentLength];
+    buffer.get(entry.comment);
+
+    readZip64Extra(entry);
+    return entry;
+  }
+
+  /**
+   * Replace sizes and offset which did not fit into central header with values from ZIP64 extra field
+   */
+  private static void readZip64Extra(CentralDirectoryEntry entry) throws ZipException {
+    if (entry.size != ZIP64_MAGIC && entry.compressedSize != ZIP64_MAGIC && entry.localHeaderOffset != ZIP64_MAGIC) {
+      return;
+    }
+
+    ByteBuffer extra = ByteBuffer.wrap(entry.extra).order(ByteOrder.LITTLE_ENDIAN);
+    while (extra.remaining() >= 4) {
+      int id = extra.getShort() & 0xFFFF;
+      int length = extra.getShort() & 0xFFFF;
+      if (length > extra.remaining()) {
+        break;
+      }
+      if (id != ZIP64_EXTRA_ID) {
+        extra.position(extra.position() + length);
+        continue;
+      }
+
+      ByteBuffer zip64 = extra.slice().order(ByteOrder.LITTLE_ENDIAN);
+      zip64.limit(length);
+      if (entry.size == ZIP64_MAGIC) {
+        entry.size = readZip64Value(zip64, entry);
+      }
+      if (entry.compressedSize == ZIP64_MAGIC) {
+        entry.compressedSize = readZip64Value(zip64, entry);
+      }
+      if (entry.localHeaderOffset == ZIP64_MAGIC) {
+        entry.localHeaderOffset = readZip64Value(zip64, entry);
+      }
+      return;
+    }
+    throw new ZipException("ZIP64 extra field missing from entry " + entry.name);
+  }
+
+  private static long readZip64Value(ByteBuffer zip64, CentralDirectoryEntry entry) throws ZipException {
+    if (zip64.remaining() < 8) {
+      throw new ZipException("Invalid ZIP64 extra field of entry " + entry.name);
+    }
+    return zip64.getLong();
+  }
+}
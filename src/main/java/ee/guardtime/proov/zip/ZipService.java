@@ -4,9 +4,15 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
 import java.util.zip.ZipInputStream;
 import java.util.zip.ZipOutputStream;
 
@@ -17,6 +23,7 @@ import java.util.zip.ZipOutputStream;
 public class ZipService {
 
   private static final int DEFAULT_BUFFER_SIZE = 8192;
+  private static final int SAMPLE_SIZE = 64 * 1024;
 
 
   /**
@@ -24,10 +31,10 @@ public class ZipService {
    *
    * @param destinationOutputStream ZIP file output stream , place where we write to
    * @param originInputStream file inputStream read from
-   * @param entriesToCopy List of entry names from old ZIP archive we need to copy
+   * @param entriesToCopy Collection of entry names from old ZIP archive we need to copy
    * @throws IOException
    */
-  public void copyEntryFromZip2Zip(ZipInputStream originInputStream, ZipOutputStream destinationOutputStream, List<String> entriesToCopy) throws IOException {
+  public void copyEntryFromZip2Zip(ZipInputStream originInputStream, ZipOutputStream destinationOutputStream, Collection<String> entriesToCopy) throws IOException {
     ZipEntry entry;
     while((entry = originInputStream.getNextEntry()) != null) {
       if(entriesToCopy.contains(entry.getName())){
@@ -39,6 +46,29 @@ public class ZipService {
   }
 
 
+  /**
+   * Method for coping entries from one ZIP file to another without decompressing them.
+   * Compressed data of entries is copied as it is.
+   *
+   * @param originChannel ZIP file channel we read from
+   * @param destination ZIP writer, place where we write to
+   * @param entriesToCopy Collection of entry names from old ZIP archive we need to copy, set is used as it is
+   * @return number of copied entries
+   * @throws IOException
+   */
+  public int copyEntryFromZip2Zip(FileChannel originChannel, ZipWriter destination, Collection<String> entriesToCopy) throws IOException {
+    ZipCentralDirectory centralDirectory = new ZipCentralDirectory(originChannel);
+    Set<String> names = entriesToCopy instanceof Set ? (Set<String>) entriesToCopy : new HashSet<>(entriesToCopy);
+    int copied = 0;
+    for (CentralDirectoryEntry entry : centralDirectory.getEntries()) {
+      if (names.contains(entry.getName())) {
+        destination.copyRawEntry(originChannel, entry);
+        copied++;
+      }
+    }
+    return copied;
+  }
+
   /**
    * Unzip all files
    *
@@ -88,6 +118,111 @@ public class ZipService {
 
 
 
+  /**
+   * Add new file to zip file written with ZipWriter
+   *
+   * @param zipWriter zip file writer
+   * @param inputStream new file input stream
+   * @param filename new filename
+   * @return central directory entry of new file
+   * @throws IOException
+   */
+  public CentralDirectoryEntry addFileToZip(ZipWriter zipWriter, InputStream inputStream, String filename) throws IOException {
+    byte[] buffer = new byte[DEFAULT_BUFFER_SIZE];
+
+    final CentralDirectoryEntry entry = zipWriter.putNextEntry(filename);
+
+    int length;
+
+    while ((length = inputStream.read(buffer)) > 0) {
+      zipWriter.write(buffer, 0, length);
+    }
+
+    zipWriter.closeEntry();
+    return entry;
+  }
+
+  /**
+   * Add new file to zip file written with ZipWriter, compression is chosen by policy.
+   * First block of file is read before entry is started and given to policy as sample,
+   * then it is written into entry together with rest of the file, so file is read once.
+   *
+   * @param zipWriter zip file writer
+   * @param inputStream new file input stream
+   * @param filename new filename
+   * @param compressionPolicy policy choosing compression of entry
+   * @return central directory entry of new file
+   * @throws IOException
+   */
+  public CentralDirectoryEntry addFileToZip(ZipWriter zipWriter, InputStream inputStream, String filename,
+                                            CompressionPolicy compressionPolicy) throws IOException {
+    byte[] buffer = new byte[SAMPLE_SIZE];
+
+    int sampleLength = 0;
+    int length;
+    while (sampleLength < buffer.length &&
+      (length = inputStream.read(buffer, sampleLength, buffer.length - sampleLength)) > 0) {
+      sampleLength += length;
+    }
+
+    int level = compressionPolicy.getCompressionLevel(filename, buffer, sampleLength);
+    final CentralDirectoryEntry entry = zipWriter.putNextEntry(filename, level);
+    zipWriter.write(buffer, 0, sampleLength);
+
+    while ((length = inputStream.read(buffer)) > 0) {
+      zipWriter.write(buffer, 0, length);
+    }
+
+    zipWriter.closeEntry();
+    return entry;
+  }
+
+  /**
+   * Add file to zip file written with ZipWriter, compression is chosen by policy. Stored files are
+   * transferred from file channel into archive without copying them through heap, other files are
+   * read with positional reads and deflated.
+   *
+   * @param zipWriter zip file writer
+   * @param source new file channel, position of channel is not used
+   * @param filename new filename
+   * @param compressionPolicy policy choosing compression of entry
+   * @return central directory entry of new file
+   * @throws IOException
+   */
+  public CentralDirectoryEntry addFileToZip(ZipWriter zipWriter, FileChannel source, String filename,
+                                            CompressionPolicy compressionPolicy) throws IOException {
+    long size = source.size();
+    ByteBuffer buffer = ByteBuffer.allocate(SAMPLE_SIZE);
+    readFully(source, buffer, 0, size);
+
+    int level = compressionPolicy.getCompressionLevel(filename, buffer.array(), buffer.position());
+    if (level == CompressionPolicy.STORED) {
+      return zipWriter.addStoredEntry(filename, source, 0, size);
+    }
+
+    final CentralDirectoryEntry entry = zipWriter.putNextEntry(filename, level);
+    long position = 0;
+    while (buffer.position() > 0) {
+      zipWriter.write(buffer.array(), 0, buffer.position());
+      position += buffer.position();
+      buffer.clear();
+      readFully(source, buffer, position, size);
+    }
+    zipWriter.closeEntry();
+    return entry;
+  }
+
+  /**
+   * Read from channel until buffer is full or end of file
+   */
+  private static void readFully(FileChannel source, ByteBuffer buffer, long position, long size) throws IOException {
+    while (buffer.hasRemaining() && position + buffer.position() < size) {
+      if (source.read(buffer, position + buffer.position()) < 0) {
+        break;
+      }
+    }
+  }
+
   /**
    * Method for unziping one entry
    *
@@ -118,6 +253,103 @@ public class ZipService {
   }
 
 
+  /**
+   * Open input stream for reading decompressed data of one entry directly from ZIP file.
+   * Other entries are not read.
+   *
+   * @param channel ZIP file channel
+   * @param entry entry from central directory
+   * @return entry data input stream
+   * @throws IOException
+   */
+  public InputStream getEntryInputStream(FileChannel channel, CentralDirectoryEntry entry) throws IOException {
+    return getEntryInputStream(getStoredEntryInputStream(channel, entry), entry);
+  }
+
+  /**
+   * Open input stream for reading data of one entry as it is stored in ZIP file, without decompressing it
+   *
+   * @param channel ZIP file channel
+   * @param entry entry from central directory
+   * @return stored entry data input stream
+   * @throws IOException
+   */
+  public InputStream getStoredEntryInputStream(FileChannel channel, CentralDirectoryEntry entry) throws IOException {
+    long dataOffset = entry.getLocalHeaderOffset() + ZipCentralDirectory.getLocalHeaderLength(channel, entry);
+    return new EntryInputStream(channel, dataOffset, entry.getCompressedSize());
+  }
+
+  /**
+   * Decompress stored data of one entry
+   *
+   * @param data stored entry data input stream
+   * @param entry entry from central directory
+   * @return entry data input stream
+   * @throws ZipException if compression method is not supported
+   */
+  public InputStream getEntryInputStream(InputStream data, CentralDirectoryEntry entry) throws ZipException {
+    switch (entry.getMethod()) {
+      case ZipEntry.STORED:
+        return data;
+      case ZipEntry.DEFLATED:
+        return new EntryInflaterInputStream(data, DEFAULT_BUFFER_SIZE);
+      default:
+        throw new ZipException("Unsupported compression method " + entry.getMethod() + " of entry " + entry.getName());
+    }
+  }
+
+  /**
+   * Method for unziping one entry directly from ZIP file
+   *
+   * @param channel ZIP file channel
+   * @param entry entry from central directory
+   * @return FileReference = file data + filename
+   * @throws IOException
+   */
+  public FileReference unzipOneEntry(FileChannel channel, CentralDirectoryEntry entry) throws IOException {
+    return new FileReference(readEntry(channel, entry), entry.getName());
+  }
+
+  /**
+   * Read content of one entry into array of exact size, entry is not copied through intermediate buffers
+   *
+   * @param channel ZIP file channel
+   * @param entry entry from central directory
+   * @return entry content
+   * @throws IOException
+   */
+  public byte[] readEntry(FileChannel channel, CentralDirectoryEntry entry) throws IOException {
+    return readEntry(channel, entry, Integer.MAX_VALUE - 8);
+  }
+
+  /**
+   * Read content of one entry which can not be larger than given size. Size is checked against central
+   * directory before memory is allocated and entry is not read further than central directory size.
+   *
+   * @param channel ZIP file channel
+   * @param entry entry from central directory
+   * @param maxSize maximum size of entry content
+   * @return entry content
+   * @throws IOException
+   */
+  public byte[] readEntry(FileChannel channel, CentralDirectoryEntry entry, int maxSize) throws IOException {
+    if (entry.getSize() > maxSize) {
+      throw new ZipException("Entry " + entry.getName() + " is too large to be read into memory");
+    }
+    byte[] content = new byte[(int) entry.getSize()];
+    try (InputStream is = getEntryInputStream(channel, entry)) {
+      int offset = 0;
+      int n;
+      while (offset < content.length && (n = is.read(content, offset, content.length - offset)) > 0) {
+        offset += n;
+      }
+      if (offset < content.length || is.read() != -1) {
+        throw new ZipException("Size of entry " + entry.getName() + " does not match central directory");
+      }
+    }
+    return content;
+  }
+
   private static long copyLarge(InputStream input, OutputStream output, byte[] buffer) throws IOException {
     long count;
     int n;
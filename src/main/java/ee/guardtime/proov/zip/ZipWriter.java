@@ -0,0 +1,804 @@
+package ee.guardtime.proov.zip;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+
+/**
+ * ZIP archive writer. Works like ZipOutputStream for new entries, but in addition entries
+ * can be copied from another archive as they are, without decompressing and compressing again.
+ * New entries are deflated or stored. Sizes and CRC of deflated entries are written in data descriptor
+ * after entry data, so entry data is written in one pass also when output is not seekable. Stored entry
+ * can not have data descriptor, so it is kept in memory until it is closed and written with its sizes in
+ * local header. Stored entry larger than STORED_BUFFER_SIZE is written out and its local header is
+ * updated when entry is closed, or it is deflated without compression when output is not seekable.
+ * With deflate executor entries longer than one block are deflated on several threads.
+ * ZIP64 records are written when entry sizes or offsets exceed 4 GB or archive has more than
+ * 65535 entries. Only central directory entries are kept in memory, not entry data.
+ * Entries compressed in memory on other threads can be written with their sizes in local header.
+ * Output goes to channel through one large direct buffer. Entries copied from other archives are
+ * transferred channel to channel, stored entries added from files are read once into output buffer.
+ * Central directory entries are only collected while entries are written, central directory is written
+ * by finish().
+ *
+ */
+public class ZipWriter extends OutputStream {
+
+  private static final int VERSION_DEFLATED = 20;
+  private static final int VERSION_STORED = 10;
+  private static final int VERSION_ZIP64 = 45;
+  private static final int COPY_BUFFER_SIZE = 64 * 1024;
+  private static final int LOCAL_ZIP64_EXTRA_LENGTH = 20;
+
+  public static final int STORED_BUFFER_SIZE = 1024 * 1024;
+
+  private final ChannelOutput out;
+  private final FileChannel channel;
+  private final File journal;
+  private final long origin;
+  private final List<CentralDirectoryEntry> entries = new ArrayList<>();
+  private final Set<String> names = new HashSet<>();
+  private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+  private final CRC32 crc = new CRC32();
+  private final byte[] deflateBuffer = new byte[8192];
+  private final byte[] single = new byte[1];
+
+  private ExecutorService deflateExecutor;
+  private ParallelDeflater parallelDeflater;
+  private long written;
+  private CentralDirectoryEntry current;
+  private ByteArrayOutputStream storedData;
+  private boolean finished;
+
+  /**
+   * Write new archive into output stream. File output stream is written through its channel.
+   *
+   * @param out output stream
+   */
+  public ZipWriter(OutputStream out) {
+    if (out instanceof FileOutputStream) {
+      FileChannel fileChannel = ((FileOutputStream) out).getChannel();
+      this.out = new ChannelOutput(fileChannel, null);
+      this.origin = getPosition(fileChannel);
+    } else {
+      this.out = new ChannelOutput(Channels.newChannel(out), out);
+      this.origin = 0;
+    }
+    this.channel = null;
+    this.journal = null;
+  }
+
+  /**
+   * Open existing archive for appending. New entries are written over old central directory
+   * and new central directory containing old and new entries is written by finish().
+   * Until finish() is done archive has no valid central directory.
+   *
+   * @param channel archive opened for reading and writing
+   * @throws IOException
+   */
+  public ZipWriter(FileChannel channel) throws IOException {
+    this(channel, null);
+  }
+
+  /**
+   * Open existing archive for appending with journal. Old central directory is copied into journal file
+   * before it is overwritten and journal is deleted when finish() is done. If appending is interrupted,
+   * recoverAppend restores archive from journal as it was before appending.
+   *
+   * @param channel archive opened for reading and writing
+   * @param journal journal file, null to append without journal
+   * @throws IOException
+   */
+  public ZipWriter(FileChannel channel, File journal) throws IOException {
+    ZipCentralDirectory centralDirectory = new ZipCentralDirectory(channel);
+    if (journal != null) {
+      writeJournal(channel, centralDirectory.getOffset(), journal);
+    }
+    for (CentralDirectoryEntry entry : centralDirectory.getEntries()) {
+      entries.add(entry);
+      names.add(entry.getName());
+    }
+
+    channel.position(centralDirectory.getOffset());
+    this.out = new ChannelOutput(channel, null);
+    this.channel = channel;
+    this.journal = journal;
+    this.origin = 0;
+    this.written = centralDirectory.getOffset();
+  }
+
+  /**
+   * Restore archive whose appending was interrupted before finish(). Archive is truncated to its old
+   * length and old central directory is written back from journal. Journal is deleted.
+   *
+   * @param archive archive file
+   * @param journal journal file given to ZipWriter
+   * @return true if archive was restored, false if there was no journal
+   * @throws IOException
+   */
+  public static boolean recoverAppend(File archive, File journal) throws IOException {
+    if (!journal.exists()) {
+      return false;
+    }
+
+    try (FileInputStream journalInput = new FileInputStream(journal);
+         FileOutputStream archiveOutput = new FileOutputStream(archive, true)) {
+      FileChannel journalChannel = journalInput.getChannel();
+      FileChannel archiveChannel = archiveOutput.getChannel();
+      ByteBuffer header = buffer(8);
+      while (header.hasRemaining()) {
+        if (journalChannel.read(header) < 0) {
+          throw new ZipException("Truncated append journal");
+        }
+      }
+      long offset = header.getLong(0);
+      long length = journalChannel.size() - 8;
+
+      archiveChannel.truncate(offset);
+      long transferred = 0;
+      while (transferred < length) {
+        long n = journalChannel.transferTo(8 + transferred, length - transferred, archiveChannel);
+        if (n <= 0) {
+          throw new ZipException("Unexpected end of append journal");
+        }
+        transferred += n;
+      }
+      archiveChannel.force(true);
+    }
+    Files.delete(journal.toPath());
+    return true;
+  }
+
+  /**
+   * Copy everything from central directory offset to end of archive into journal. Journal is written into
+   * temporary file first, so journal file exists only when it is complete.
+   *
+   */
+  private static void writeJournal(FileChannel channel, long offset, File journal) throws IOException {
+    File temporary = new File(journal.getPath() + ".tmp");
+    try (FileOutputStream journalOutput = new FileOutputStream(temporary)) {
+      FileChannel journalChannel = journalOutput.getChannel();
+      ByteBuffer header = buffer(8);
+      header.putLong(offset);
+      header.flip();
+      while (header.hasRemaining()) {
+        journalChannel.write(header);
+      }
+      long length = channel.size() - offset;
+      long transferred = 0;
+      while (transferred < length) {
+        long n = channel.transferTo(offset + transferred, length - transferred, journalChannel);
+        if (n <= 0) {
+          throw new ZipException("Unexpected end of archive");
+        }
+        transferred += n;
+      }
+      journalChannel.force(true);
+    }
+    Files.move(temporary.toPath(), journal.toPath(), StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /**
+   * Set executor for deflating entries in parallel. Entries are split into blocks of 128 KB, blocks are
+   * deflated on executor and joined into one DEFLATE stream, so archive stays readable by any ZIP reader.
+   * Executor is not shut down by this writer.
+   *
+   * @param deflateExecutor executor for deflating blocks, null to deflate on calling thread
+   */
+  public void setDeflateExecutor(ExecutorService deflateExecutor) {
+    this.deflateExecutor = deflateExecutor;
+  }
+
+  /**
+   * Begin writing new entry deflated with default level
+   *
+   * @param name entry name
+   * @return central directory entry, sizes and CRC are filled when entry is closed
+   * @throws IOException
+   */
+  public CentralDirectoryEntry putNextEntry(String name) throws IOException {
+    return putNextEntry(name, Deflater.DEFAULT_COMPRESSION);
+  }
+
+  /**
+   * Begin writing new entry
+   *
+   * @param name entry name
+   * @param level CompressionPolicy.STORED, DEFLATE level 0-9 or Deflater.DEFAULT_COMPRESSION
+   * @return central directory entry, sizes and CRC are filled when entry is closed
+   * @throws IOException
+   */
+  public CentralDirectoryEntry putNextEntry(String name, int level) throws IOException {
+    closeEntry();
+    checkName(name);
+
+    boolean stored = level == CompressionPolicy.STORED;
+    if (!stored && deflateExecutor != null) {
+      parallelDeflater = new ParallelDeflater(deflateExecutor, level, out);
+    } else if (!stored) {
+      deflater.setLevel(level);
+    }
+
+    CentralDirectoryEntry entry = new CentralDirectoryEntry();
+    entry.name = name;
+    entry.versionMadeBy = VERSION_DEFLATED;
+    entry.versionNeeded = stored ? VERSION_STORED : VERSION_DEFLATED;
+    entry.flags = stored ? CentralDirectoryEntry.FLAG_UTF8
+      : CentralDirectoryEntry.FLAG_DATA_DESCRIPTOR | CentralDirectoryEntry.FLAG_UTF8;
+    entry.method = stored ? ZipEntry.STORED : ZipEntry.DEFLATED;
+    entry.dosTime = javaToDosTime(System.currentTimeMillis());
+    entry.localHeaderOffset = written;
+
+    if (stored) {
+      storedData = new ByteArrayOutputStream();
+    } else {
+      writeLocalHeader(entry);
+    }
+    current = entry;
+    return entry;
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    single[0] = (byte) b;
+    write(single, 0, 1);
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    if (current == null) {
+      throw new ZipException("No current ZIP entry");
+    }
+    if (len == 0) {
+      return;
+    }
+    crc.update(b, off, len);
+    current.size += len;
+    if (storedData != null) {
+      if (storedData.size() + len <= STORED_BUFFER_SIZE) {
+        storedData.write(b, off, len);
+        return;
+      }
+      spillStoredData();
+    }
+    if (current.method == ZipEntry.STORED) {
+      out.write(b, off, len);
+      written += len;
+      return;
+    }
+    if (parallelDeflater != null) {
+      parallelDeflater.write(b, off, len);
+      return;
+    }
+    deflater.setInput(b, off, len);
+    while (!deflater.needsInput()) {
+      deflate();
+    }
+  }
+
+  /**
+   * Close current entry and write its data descriptor, or local header of stored entry
+   *
+   * @throws IOException
+   */
+  public void closeEntry() throws IOException {
+    if (current == null) {
+      return;
+    }
+
+    current.crc = crc.getValue();
+    if (storedData != null) {
+      current.compressedSize = current.size;
+      writeLocalHeader(current);
+      storedData.writeTo(out);
+      written += storedData.size();
+      storedData = null;
+    } else if (current.method == ZipEntry.STORED) {
+      current.compressedSize = current.size;
+      updateLocalHeader(current);
+    } else if (parallelDeflater != null) {
+      current.compressedSize = parallelDeflater.finish();
+      written += current.compressedSize;
+      parallelDeflater = null;
+    } else {
+      deflater.finish();
+      while (!deflater.finished()) {
+        deflate();
+      }
+      current.compressedSize = deflater.getBytesWritten();
+    }
+
+    if (current.hasDataDescriptor()) {
+      writeDataDescriptor(current);
+    }
+    entries.add(current);
+
+    deflater.reset();
+    crc.reset();
+    current = null;
+  }
+
+  /**
+   * Add region of file as stored entry. Data is read once into output buffer and CRC is calculated from
+   * the same bytes which are written. Sizes are known before entry is started, CRC is written into local
+   * header after data, so entry has no data descriptor. When output is not seekable, entry is written
+   * like entries started with putNextEntry.
+   *
+   * @param name entry name
+   * @param source file to add
+   * @param position start of region in file
+   * @param count length of region
+   * @return central directory entry of new entry
+   * @throws IOException
+   */
+  public CentralDirectoryEntry addStoredEntry(String name, FileChannel source, long position, long count)
+    throws IOException {
+    if (!out.isSeekable()) {
+      return writeStoredEntry(name, source, position, count);
+    }
+    closeEntry();
+    checkName(name);
+
+    CentralDirectoryEntry entry = new CentralDirectoryEntry();
+    entry.name = name;
+    entry.versionMadeBy = VERSION_DEFLATED;
+    entry.versionNeeded = VERSION_STORED;
+    entry.flags = CentralDirectoryEntry.FLAG_UTF8;
+    entry.method = ZipEntry.STORED;
+    entry.dosTime = javaToDosTime(System.currentTimeMillis());
+    entry.size = count;
+    entry.compressedSize = count;
+    entry.localHeaderOffset = written;
+
+    writeLocalHeader(entry);
+    CRC32 entryCrc = new CRC32();
+    out.copyFrom(source, position, count, entryCrc);
+    written += count;
+    entry.crc = entryCrc.getValue();
+    updateLocalCrc(entry);
+    entries.add(entry);
+    return entry;
+  }
+
+  /**
+   * Write region of file through putNextEntry, stored entry larger than STORED_BUFFER_SIZE is deflated
+   * without compression
+   */
+  private CentralDirectoryEntry writeStoredEntry(String name, FileChannel source, long position, long count)
+    throws IOException {
+    CentralDirectoryEntry entry = putNextEntry(name, CompressionPolicy.STORED);
+    byte[] buffer = new byte[COPY_BUFFER_SIZE];
+    ByteBuffer wrapped = ByteBuffer.wrap(buffer);
+    long offset = 0;
+    while (offset < count) {
+      wrapped.clear();
+      wrapped.limit((int) Math.min(buffer.length, count - offset));
+      int n = source.read(wrapped, position + offset);
+      if (n <= 0) {
+        throw new ZipException("Unexpected end of source file");
+      }
+      write(buffer, 0, n);
+      offset += n;
+    }
+    closeEntry();
+    return entry;
+  }
+
+  /**
+   * Write entry which is already compressed in memory. Sizes and CRC are written into local header,
+   * so entry has no data descriptor. Entry is never larger than DeflatedEntry.MAX_SIZE.
+   *
+   * @param deflatedEntry compressed entry
+   * @return central directory entry of new entry
+   * @throws IOException
+   */
+  public CentralDirectoryEntry addDeflatedEntry(DeflatedEntry deflatedEntry) throws IOException {
+    closeEntry();
+    checkName(deflatedEntry.name);
+
+    boolean stored = deflatedEntry.method == ZipEntry.STORED;
+    CentralDirectoryEntry entry = new CentralDirectoryEntry();
+    entry.name = deflatedEntry.name;
+    entry.versionMadeBy = VERSION_DEFLATED;
+    entry.versionNeeded = stored ? VERSION_STORED : VERSION_DEFLATED;
+    entry.flags = CentralDirectoryEntry.FLAG_UTF8;
+    entry.method = deflatedEntry.method;
+    entry.dosTime = javaToDosTime(System.currentTimeMillis());
+    entry.crc = deflatedEntry.crc;
+    entry.size = deflatedEntry.size;
+    entry.compressedSize = deflatedEntry.data.length;
+    entry.localHeaderOffset = written;
+
+    writeLocalHeader(entry);
+    writeBytes(deflatedEntry.data);
+    entries.add(entry);
+    return entry;
+  }
+
+  /**
+   * Copy entry from another archive without decompressing it. Local header and
+   * compressed data are copied as they are.
+   *
+   * @param source archive to copy from
+   * @param entry entry of source archive central directory
+   * @throws IOException
+   */
+  public void copyRawEntry(FileChannel source, CentralDirectoryEntry entry) throws IOException {
+    closeEntry();
+    checkName(entry.getName());
+
+    CentralDirectoryEntry copy = new CentralDirectoryEntry(entry);
+    copy.localHeaderOffset = written;
+
+    int headerLength = ZipCentralDirectory.getLocalHeaderLength(source, entry);
+    transfer(source, entry.getLocalHeaderOffset(), headerLength + entry.getCompressedSize());
+    if (entry.hasDataDescriptor()) {
+      writeDataDescriptor(copy);
+    }
+    entries.add(copy);
+  }
+
+  /**
+   * Write central directory. Underlying stream is left open.
+   *
+   * @throws IOException
+   */
+  public void finish() throws IOException {
+    if (finished) {
+      return;
+    }
+    closeEntry();
+
+    long centralDirectoryOffset = written;
+    for (CentralDirectoryEntry entry : entries) {
+      writeCentralHeader(entry);
+    }
+    long centralDirectoryLength = written - centralDirectoryOffset;
+
+    boolean zip64 = entries.size() >= ZipCentralDirectory.ZIP64_MAGIC_COUNT
+      || centralDirectoryOffset >= ZipCentralDirectory.ZIP64_MAGIC
+      || centralDirectoryLength >= ZipCentralDirectory.ZIP64_MAGIC;
+    if (zip64) {
+      writeZip64End(centralDirectoryOffset, centralDirectoryLength);
+    }
+
+    int count = zip64 ? ZipCentralDirectory.ZIP64_MAGIC_COUNT : entries.size();
+    ByteBuffer end = buffer(ZipCentralDirectory.END_OF_CENTRAL_DIRECTORY_LENGTH);
+    end.putInt(ZipCentralDirectory.END_OF_CENTRAL_DIRECTORY_SIGNATURE);
+    end.putShort((short) 0);
+    end.putShort((short) 0);
+    end.putShort((short) count);
+    end.putShort((short) count);
+    end.putInt((int) (zip64 ? ZipCentralDirectory.ZIP64_MAGIC : centralDirectoryLength));
+    end.putInt((int) (zip64 ? ZipCentralDirectory.ZIP64_MAGIC : centralDirectoryOffset));
+    end.putShort((short) 0);
+    writeBuffer(end);
+
+    out.flush();
+    if (channel != null) {
+      channel.truncate(written);
+    }
+    if (journal != null) {
+      channel.force(true);
+      Files.delete(journal.toPath());
+    }
+    deflater.end();
+    finished = true;
+  }
+
+  @Override
+  public void flush() throws IOException {
+    out.flush();
+  }
+
+  @Override
+  public void close() throws IOException {
+    finish();
+    out.close();
+  }
+
+  /**
+   * Return entries written so far
+   *
+   * @return list of entries
+   */
+  public List<CentralDirectoryEntry> getEntries() {
+    return entries;
+  }
+
+  private void checkName(String name) throws ZipException {
+    if (finished) {
+      throw new ZipException("ZIP archive already finished");
+    }
+    if (!names.add(name)) {
+      throw new ZipException("duplicate entry: " + name);
+    }
+  }
+
+  private void deflate() throws IOException {
+    int len = deflater.deflate(deflateBuffer, 0, deflateBuffer.length);
+    if (len > 0) {
+      out.write(deflateBuffer, 0, len);
+      written += len;
+    }
+  }
+
+  /**
+   * Write out stored entry which does not fit into memory. In seekable output local header gets
+   * ZIP64 extra field as placeholder for sizes, which are not known yet. Otherwise entry is changed
+   * into deflated entry without compression, which can have data descriptor.
+   */
+  private void spillStoredData() throws IOException {
+    byte[] data = storedData.toByteArray();
+    storedData = null;
+    if (out.isSeekable()) {
+      writeLocalHeader(current, true);
+      writeBytes(data);
+      return;
+    }
+
+    current.method = ZipEntry.DEFLATED;
+    current.versionNeeded = VERSION_DEFLATED;
+    current.flags |= CentralDirectoryEntry.FLAG_DATA_DESCRIPTOR;
+    writeLocalHeader(current);
+    deflater.setLevel(Deflater.NO_COMPRESSION);
+    deflater.setInput(data);
+    while (!deflater.needsInput()) {
+      deflate();
+    }
+  }
+
+  /**
+   * Write CRC and sizes of stored entry into its local header, which was written with placeholders
+   * by spillStoredData
+   */
+  private void updateLocalHeader(CentralDirectoryEntry entry) throws IOException {
+    boolean zip64 = entry.size >= ZipCentralDirectory.ZIP64_MAGIC;
+    long headerOffset = origin + entry.localHeaderOffset;
+    if (zip64) {
+      entry.versionNeeded = Math.max(entry.versionNeeded, VERSION_ZIP64);
+      ByteBuffer version = buffer(2);
+      version.putShort((short) entry.versionNeeded);
+      version.flip();
+      out.writeAt(headerOffset + 4, version);
+    }
+
+    ByteBuffer fields = buffer(12);
+    fields.putInt((int) entry.crc);
+    fields.putInt((int) (zip64 ? ZipCentralDirectory.ZIP64_MAGIC : entry.compressedSize));
+    fields.putInt((int) (zip64 ? ZipCentralDirectory.ZIP64_MAGIC : entry.size));
+    fields.flip();
+    out.writeAt(headerOffset + 14, fields);
+
+    ByteBuffer sizes = buffer(16);
+    sizes.putLong(entry.size);
+    sizes.putLong(entry.compressedSize);
+    sizes.flip();
+    out.writeAt(headerOffset + ZipCentralDirectory.LOCAL_HEADER_LENGTH
+      + entry.name.getBytes(ZipCentralDirectory.UTF8).length + 4, sizes);
+  }
+
+  /**
+   * Write CRC of stored entry into its local header, which was written with correct sizes by addStoredEntry
+   */
+  private void updateLocalCrc(CentralDirectoryEntry entry) throws IOException {
+    ByteBuffer fields = buffer(4);
+    fields.putInt((int) entry.crc);
+    fields.flip();
+    out.writeAt(origin + entry.localHeaderOffset + 14, fields);
+  }
+
+  private static long getPosition(FileChannel channel) {
+    try {
+      return channel.position();
+    } catch (IOException e) {
+      return 0;
+    }
+  }
+
+  private void transfer(FileChannel source, long position, long count) throws IOException {
+    out.transferFrom(source, position, count);
+    written += count;
+  }
+
+  private void writeLocalHeader(CentralDirectoryEntry entry) throws IOException {
+    writeLocalHeader(entry, false);
+  }
+
+  /**
+   * Write local header, sizes which do not fit into 4 bytes are written into ZIP64 extra field
+   *
+   * @param entry entry
+   * @param zip64Extra true to write ZIP64 extra field also when sizes fit into local header
+   */
+  private void writeLocalHeader(CentralDirectoryEntry entry, boolean zip64Extra) throws IOException {
+    boolean descriptor = entry.hasDataDescriptor();
+    boolean zip64 = !descriptor && (entry.size >= ZipCentralDirectory.ZIP64_MAGIC
+      || entry.compressedSize >= ZipCentralDirectory.ZIP64_MAGIC);
+    if (zip64) {
+      entry.versionNeeded = Math.max(entry.versionNeeded, VERSION_ZIP64);
+    }
+
+    byte[] name = entry.name.getBytes(ZipCentralDirectory.UTF8);
+    ByteBuffer header = buffer(ZipCentralDirectory.LOCAL_HEADER_LENGTH);
+    header.putInt(ZipCentralDirectory.LOCAL_HEADER_SIGNATURE);
+    header.putShort((short) entry.versionNeeded);
+    header.putShort((short) entry.flags);
+    header.putShort((short) entry.method);
+    header.putInt((int) entry.dosTime);
+    if (descriptor) {
+      header.putInt(0);
+      header.putInt(0);
+      header.putInt(0);
+    } else {
+      header.putInt((int) entry.crc);
+      header.putInt((int) (zip64 ? ZipCentralDirectory.ZIP64_MAGIC : entry.compressedSize));
+      header.putInt((int) (zip64 ? ZipCentralDirectory.ZIP64_MAGIC : entry.size));
+    }
+    header.putShort((short) name.length);
+    header.putShort((short) (zip64 || zip64Extra ? LOCAL_ZIP64_EXTRA_LENGTH : 0));
+    writeBuffer(header);
+    writeBytes(name);
+    if (zip64 || zip64Extra) {
+      ByteBuffer extra = buffer(LOCAL_ZIP64_EXTRA_LENGTH);
+      extra.putShort((short) ZipCentralDirectory.ZIP64_EXTRA_ID);
+      extra.putShort((short) (LOCAL_ZIP64_EXTRA_LENGTH - 4));
+      extra.putLong(entry.size);
+      extra.putLong(entry.compressedSize);
+      writeBuffer(extra);
+    }
+  }
+
+  /**
+   * Write data descriptor, sizes are 8 bytes long when entry does not fit into 4 GB
+   */
+  private void writeDataDescriptor(CentralDirectoryEntry entry) throws IOException {
+    boolean zip64 = entry.compressedSize >= ZipCentralDirectory.ZIP64_MAGIC
+      || entry.size >= ZipCentralDirectory.ZIP64_MAGIC;
+    ByteBuffer descriptor = buffer(zip64 ? 24 : 16);
+    descriptor.putInt(ZipCentralDirectory.DATA_DESCRIPTOR_SIGNATURE);
+    descriptor.putInt((int) entry.crc);
+    if (zip64) {
+      descriptor.putLong(entry.compressedSize);
+      descriptor.putLong(entry.size);
+      entry.versionNeeded = Math.max(entry.versionNeeded, VERSION_ZIP64);
+    } else {
+      descriptor.putInt((int) entry.compressedSize);
+      descriptor.putInt((int) entry.size);
+    }
+    writeBuffer(descriptor);
+  }
+
+  private void writeCentralHeader(CentralDirectoryEntry entry) throws IOException {
+    boolean zip64Size = entry.size >= ZipCentralDirectory.ZIP64_MAGIC;
+    boolean zip64CompressedSize = entry.compressedSize >= ZipCentralDirectory.ZIP64_MAGIC;
+    boolean zip64Offset = entry.localHeaderOffset >= ZipCentralDirectory.ZIP64_MAGIC;
+    byte[] extra = getCentralExtra(entry, zip64Size, zip64CompressedSize, zip64Offset);
+    boolean zip64 = zip64Size || zip64CompressedSize || zip64Offset;
+
+    byte[] name = entry.name.getBytes(ZipCentralDirectory.UTF8);
+    ByteBuffer header = buffer(ZipCentralDirectory.CENTRAL_HEADER_LENGTH);
+    header.putInt(ZipCentralDirectory.CENTRAL_HEADER_SIGNATURE);
+    header.putShort((short) (zip64 ? Math.max(entry.versionMadeBy, VERSION_ZIP64) : entry.versionMadeBy));
+    header.putShort((short) (zip64 ? Math.max(entry.versionNeeded, VERSION_ZIP64) : entry.versionNeeded));
+    header.putShort((short) entry.flags);
+    header.putShort((short) entry.method);
+    header.putInt((int) entry.dosTime);
+    header.putInt((int) entry.crc);
+    header.putInt((int) (zip64CompressedSize ? ZipCentralDirectory.ZIP64_MAGIC : entry.compressedSize));
+    header.putInt((int) (zip64Size ? ZipCentralDirectory.ZIP64_MAGIC : entry.size));
+    header.putShort((short) name.length);
+    header.putShort((short) extra.length);
+    header.putShort((short) entry.comment.length);
+    header.putShort((short) 0);
+    header.putShort((short) entry.internalAttributes);
+    header.putInt((int) entry.externalAttributes);
+    header.putInt((int) (zip64Offset ? ZipCentralDirectory.ZIP64_MAGIC : entry.localHeaderOffset));
+    writeBuffer(header);
+    writeBytes(name);
+    writeBytes(extra);
+    writeBytes(entry.comment);
+  }
+
+  /**
+   * Build central header extra field. ZIP64 field of copied entry is dropped and new one is added
+   * with values which do not fit into central header, in order size, compressed size, offset.
+   */
+  private static byte[] getCentralExtra(CentralDirectoryEntry entry, boolean zip64Size, boolean zip64CompressedSize,
+                                        boolean zip64Offset) {
+    ByteBuffer extra = buffer(entry.extra.length + 4 + 3 * 8);
+    ByteBuffer fields = ByteBuffer.wrap(entry.extra).order(ByteOrder.LITTLE_ENDIAN);
+    while (fields.remaining() >= 4) {
+      int start = fields.position();
+      int id = fields.getShort() & 0xFFFF;
+      int length = Math.min(fields.getShort() & 0xFFFF, fields.remaining());
+      fields.position(fields.position() + length);
+      if (id != ZipCentralDirectory.ZIP64_EXTRA_ID) {
+        extra.put(entry.extra, start, 4 + length);
+      }
+    }
+
+    if (zip64Size || zip64CompressedSize || zip64Offset) {
+      extra.putShort((short) ZipCentralDirectory.ZIP64_EXTRA_ID);
+      extra.putShort((short) (8 * ((zip64Size ? 1 : 0) + (zip64CompressedSize ? 1 : 0) + (zip64Offset ? 1 : 0))));
+      if (zip64Size) {
+        extra.putLong(entry.size);
+      }
+      if (zip64CompressedSize) {
+        extra.putLong(entry.compressedSize);
+      }
+      if (zip64Offset) {
+        extra.putLong(entry.localHeaderOffset);
+      }
+    }
+    return Arrays.copyOf(extra.array(), extra.position());
+  }
+
+  private void writeZip64End(long centralDirectoryOffset, long centralDirectoryLength) throws IOException {
+    long zip64EndOffset = written;
+    ByteBuffer zip64End = buffer(ZipCentralDirectory.ZIP64_END_OF_CENTRAL_DIRECTORY_LENGTH);
+    zip64End.putInt(ZipCentralDirectory.ZIP64_END_OF_CENTRAL_DIRECTORY_SIGNATURE);
+    zip64End.putLong(ZipCentralDirectory.ZIP64_END_OF_CENTRAL_DIRECTORY_LENGTH - 12);
+    zip64End.putShort((short) VERSION_ZIP64);
+    zip64End.putShort((short) VERSION_ZIP64);
+    zip64End.putInt(0);
+    zip64End.putInt(0);
+    zip64End.putLong(entries.size());
+    zip64End.putLong(entries.size());
+    zip64End.putLong(centralDirectoryLength);
+    zip64End.putLong(centralDirectoryOffset);
+    writeBuffer(zip64End);
+
+    ByteBuffer locator = buffer(ZipCentralDirectory.ZIP64_LOCATOR_LENGTH);
+    locator.putInt(ZipCentralDirectory.ZIP64_LOCATOR_SIGNATURE);
+    locator.putInt(0);
+    locator.putLong(zip64EndOffset);
+    locator.putInt(1);
+    writeBuffer(locator);
+  }
+
+  private static ByteBuffer buffer(int length) {
+    return ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+  }
+
+  private void writeBuffer(ByteBuffer buffer) throws IOException {
+    writeBytes(buffer.array());
+  }
+
+  private void writeBytes(byte[] bytes) throws IOException {
+    out.write(bytes);
+    written += bytes.length;
+  }
+
+  private static long javaToDosTime(long time) {
+    Calendar calendar = Calendar.getInstance();
+    calendar.setTimeInMillis(time);
+    int year = calendar.get(Calendar.YEAR);
+    if (year < 1980) {
+      return (1 << 21) | (1 << 16);
+    }
+    return (long) (year - 1980) << 25 | (calendar.get(Calendar.MONTH) + 1) << 21 |
+      calendar.get(Calendar.DAY_OF_MONTH) << 16 | calendar.get(Calendar.HOUR_OF_DAY) << 11 |
+      calendar.get(Calendar.MINUTE) << 5 | calendar.get(Calendar.SECOND) >> 1;
+  }
+}
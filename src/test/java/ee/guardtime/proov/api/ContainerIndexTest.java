@@ -0,0 +1,159 @@
+package ee.guardtime.proov.api;
+
+import com.guardtime.ksi.hashing.DataHash;
+import com.guardtime.ksi.hashing.HashAlgorithm;
+import com.guardtime.ksi.tlv.TLVParserException;
+import ee.guardtime.proov.GuardtimeTests;
+import ee.guardtime.proov.ksi.StubSigner;
+import ee.guardtime.proov.tlv.ManifestWriter;
+import ee.guardtime.proov.zip.ZipService;
+import ee.guardtime.proov.zip.ZipWriter;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.ForkJoinPool;
+import java.util.zip.ZipException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+/**
+ * Package: ee.guardtime.proov.api
+ */
+public class ContainerIndexTest extends GuardtimeTests {
+
+  @Test
+  public void testReadIndex() throws Exception {
+    final File zip = File.createTempFile("index_", ".zip");
+    Files.copy(this.getClass().getClassLoader().getResourceAsStream("0zip.zip"), zip.toPath(),
+      StandardCopyOption.REPLACE_EXISTING);
+
+    ContainerIndex containerIndex;
+    try (FileInputStream fis = new FileInputStream(zip)) {
+      containerIndex = new ContainerIndex(fis.getChannel());
+    }
+
+    assertEquals(6, containerIndex.getEntryNames().size());
+    assertEquals(Arrays.asList("/META-INF/signature1.ksi", "/META-INF/signature2.ksi"), containerIndex.getSignatureUris());
+    assertEquals(Collections.singletonList("test.a"), containerIndex.getSignedFiles().get("/META-INF/signature1.ksi"));
+    assertEquals(Collections.singletonList("test.b"), containerIndex.getSignedFiles().get("/META-INF/signature2.ksi"));
+    assertEquals("/META-INF/manifest2.tlv", containerIndex.getSignedManifests().get("/META-INF/signature2.ksi"));
+    assertEquals(2, containerIndex.getManifests().size());
+    assertNotNull(containerIndex.getEntry("test.b"));
+    assertNull(containerIndex.getEntry("test.c"));
+    zip.delete();
+  }
+
+  @Test
+  public void testOversizedManifest() throws Exception {
+    File zip = copyWithEntry("/META-INF/manifest3.tlv", new byte[ContainerIndex.MAX_TLV_ENTRY_SIZE + 1]);
+    try (FileInputStream fis = new FileInputStream(zip)) {
+      new ContainerIndex(fis.getChannel());
+      fail("Oversized manifest was read");
+    } catch (ZipException e) {
+      assertEquals("Entry /META-INF/manifest3.tlv is too large to be read into memory", e.getMessage());
+    } finally {
+      zip.delete();
+    }
+  }
+
+  @Test
+  public void testSignatureInTwoManifests() throws Exception {
+    File original = copyResource();
+    byte[] manifest;
+    try (FileChannel channel = FileChannel.open(original.toPath(), StandardOpenOption.READ)) {
+      manifest = new ZipService().readEntry(channel, new ContainerIndex(channel).getEntry("/META-INF/manifest1.tlv"));
+    } finally {
+      original.delete();
+    }
+
+    File zip = copyWithEntry("/META-INF/manifest3.tlv", manifest);
+    try (FileInputStream fis = new FileInputStream(zip)) {
+      new ContainerIndex(fis.getChannel());
+      fail("Signature referenced by two manifests was accepted");
+    } catch (TLVParserException e) {
+      assertEquals("Signature /META-INF/signature1.ksi is referenced by more than one manifest", e.getMessage());
+    } finally {
+      zip.delete();
+    }
+  }
+
+  @Test
+  public void testDeepSegmentChain() throws Exception {
+    int depth = 20000;
+    DataHash hash = new DataHash(HashAlgorithm.SHA2_256, new byte[32]);
+    File zip = File.createTempFile("index_segments_", ".zip");
+    try (ZipWriter zipWriter = new ZipWriter(new FileOutputStream(zip))) {
+      ManifestWriter manifestWriter = new ManifestWriter("/META-INF/signature1.ksi");
+      manifestWriter.addSegment("/META-INF/segment1-1.tlv", hash);
+      zipWriter.putNextEntry("/META-INF/manifest1.tlv");
+      manifestWriter.writeTo(zipWriter);
+      zipWriter.closeEntry();
+      for (int i = 1; i <= depth; i++) {
+        ManifestWriter segmentWriter = new ManifestWriter();
+        if (i < depth) {
+          segmentWriter.addSegment("/META-INF/segment1-" + (i + 1) + ".tlv", hash);
+        } else {
+          segmentWriter.addDatafile("test.txt", Collections.singletonList(hash));
+        }
+        zipWriter.putNextEntry("/META-INF/segment1-" + i + ".tlv");
+        segmentWriter.writeTo(zipWriter);
+        zipWriter.closeEntry();
+      }
+      zipWriter.finish();
+    }
+
+    try (FileInputStream fis = new FileInputStream(zip)) {
+      ContainerIndex containerIndex = new ContainerIndex(fis.getChannel());
+      assertEquals(depth, containerIndex.getSignedSegments().get("/META-INF/signature1.ksi").size());
+      assertEquals(Collections.singletonList("test.txt"), containerIndex.getSignedFiles().get("/META-INF/signature1.ksi"));
+    }
+
+    ForkJoinPool pool = new ForkJoinPool(1);
+    try {
+      VerificationReport report = new ContainerVerifier(new StubSigner(), pool).verify(zip);
+      SignatureReport signatureReport = report.getSignatureReports().get(0);
+      assertEquals(SignatureReport.Status.SIGNATURE_MISSING, signatureReport.getStatus());
+      assertEquals(depth, signatureReport.getInvalidSegments().size());
+    } finally {
+      pool.shutdown();
+      zip.delete();
+    }
+  }
+
+  private File copyResource() throws Exception {
+    File zip = File.createTempFile("index_", ".zip");
+    Files.copy(this.getClass().getClassLoader().getResourceAsStream("0zip.zip"), zip.toPath(),
+      StandardCopyOption.REPLACE_EXISTING);
+    return zip;
+  }
+
+  private File copyWithEntry(String name, byte[] content) throws Exception {
+    File original = copyResource();
+    File copy = File.createTempFile("index_copy_", ".zip");
+    try (FileChannel channel = FileChannel.open(original.toPath(), StandardOpenOption.READ);
+         ZipWriter zipWriter = new ZipWriter(new FileOutputStream(copy))) {
+      ContainerIndex containerIndex = new ContainerIndex(channel);
+      for (String entryName : containerIndex.getEntryNames()) {
+        zipWriter.copyRawEntry(channel, containerIndex.getEntry(entryName));
+      }
+      zipWriter.putNextEntry(name);
+      zipWriter.write(content);
+      zipWriter.closeEntry();
+      zipWriter.finish();
+    } finally {
+      original.delete();
+    }
+    return copy;
+  }
+}
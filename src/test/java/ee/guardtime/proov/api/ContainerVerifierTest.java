@@ -0,0 +1,381 @@
+package ee.guardtime.proov.api;
+
+import com.guardtime.ksi.exceptions.KSIException;
+import com.guardtime.ksi.hashing.DataHash;
+import com.guardtime.ksi.hashing.HashAlgorithm;
+import com.guardtime.ksi.tlv.TLVElement;
+import ee.guardtime.proov.GuardtimeTests;
+import ee.guardtime.proov.ksi.SignatureVerifier;
+import ee.guardtime.proov.tlv.ManifestWriter;
+import ee.guardtime.proov.tlv.TLVService;
+import ee.guardtime.proov.zip.CentralDirectoryEntry;
+import ee.guardtime.proov.zip.CompressionPolicy;
+import ee.guardtime.proov.zip.ZipCentralDirectory;
+import ee.guardtime.proov.zip.ZipWriter;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.zip.ZipEntry;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Package: ee.guardtime.proov.api
+ */
+public class ContainerVerifierTest extends GuardtimeTests {
+
+  /**
+   * Stand-in for KSI verification, signature is TLV with signed hash imprint.
+   */
+  private static final SignatureVerifier STUB_VERIFIER = new SignatureVerifier() {
+    @Override
+    public boolean verify(byte[] signature, DataHash signedHash) throws KSIException {
+      return Arrays.equals(TLVElement.create(signature).getContent(), signedHash.getImprint());
+    }
+  };
+
+  private ForkJoinPool pool;
+  private List<File> tempFiles = new ArrayList<>();
+
+  @Before
+  public void setUp() {
+    pool = new ForkJoinPool(4);
+  }
+
+  @After
+  public void tearDown() {
+    pool.shutdown();
+    for (File file : tempFiles) {
+      file.delete();
+    }
+  }
+
+  private static ZipContainerServiceImpl createContainerService() {
+    return new ZipContainerServiceImpl() {
+      @Override
+      protected byte[] signFile(DataHash manifestDataHash) throws KSIException {
+        TLVElement signature = new TLVElement(false, false, 0x800);
+        signature.setContent(manifestDataHash.getImprint());
+        return signature.getEncoded();
+      }
+    };
+  }
+
+  private File createContainer(boolean batchSigning) throws Exception {
+    ZipContainerServiceImpl containerService = createContainerService();
+    containerService.setBatchSigning(batchSigning);
+
+    File container = createTempFile("verify_", ".zip");
+    containerService.initialize(null, container);
+    containerService.addFileAndSign(Arrays.asList(HashAlgorithm.SHA2_256, HashAlgorithm.SHA2_512),
+      new ByteArrayInputStream("aaaa".getBytes()), "test.a");
+
+    List<File> files = new ArrayList<>();
+    for (int i = 0; i < 20; i++) {
+      File file = createTempFile("datafile_" + i + "_", ".txt");
+      java.nio.file.Files.write(file.toPath(), ("datafile " + i).getBytes());
+      files.add(file);
+    }
+    containerService.addFilesAndSign(HashAlgorithm.SHA2_256, files);
+    containerService.finish();
+    return container;
+  }
+
+  /**
+   * Container with one signature over files which do not fit into one manifest
+   */
+  private File createSegmentedContainer() throws Exception {
+    ZipContainerServiceImpl containerService = createContainerService();
+    containerService.setSegmentedManifests(true);
+
+    char[] longName = new char[200];
+    Arrays.fill(longName, 'x');
+    List<File> files = new ArrayList<>();
+    for (int i = 0; i < 300; i++) {
+      File file = createTempFile(new String(longName) + i + "_", ".txt");
+      java.nio.file.Files.write(file.toPath(), ("datafile " + i).getBytes());
+      files.add(file);
+    }
+
+    File container = createTempFile("verify_segmented_", ".zip");
+    containerService.initialize(null, container);
+    containerService.addFilesAndSign(HashAlgorithm.SHA2_256, files);
+    containerService.finish();
+
+    assertEquals(1, containerService.getSignatureUris().size());
+    assertEquals(300, containerService.getSignedFiles().get("/META-INF/signature1.ksi").size());
+    assertEquals(Arrays.asList("/META-INF/segment1-1.tlv", "/META-INF/segment1-2.tlv"),
+      containerService.getSignedSegments().get("/META-INF/signature1.ksi"));
+    return container;
+  }
+
+  /**
+   * Copy container replacing content of some entries, null content removes entry.
+   * Replacements which are not in container are added as new entries.
+   */
+  private File rewriteContainer(File container, Map<String, byte[]> replacements) throws Exception {
+    File copy = createTempFile("verify_copy_", ".zip");
+    try (FileChannel channel = FileChannel.open(container.toPath(), StandardOpenOption.READ);
+         ZipWriter zipWriter = new ZipWriter(new FileOutputStream(copy))) {
+      ContainerIndex containerIndex = new ContainerIndex(channel);
+      for (String name : containerIndex.getEntryNames()) {
+        if (!replacements.containsKey(name)) {
+          zipWriter.copyRawEntry(channel, containerIndex.getEntry(name));
+        } else if (replacements.get(name) != null) {
+          zipWriter.putNextEntry(name);
+          zipWriter.write(replacements.get(name));
+          zipWriter.closeEntry();
+        }
+      }
+      for (Map.Entry<String, byte[]> replacement : replacements.entrySet()) {
+        if (containerIndex.getEntry(replacement.getKey()) == null && replacement.getValue() != null) {
+          zipWriter.putNextEntry(replacement.getKey());
+          zipWriter.write(replacement.getValue());
+          zipWriter.closeEntry();
+        }
+      }
+      zipWriter.finish();
+    }
+    return copy;
+  }
+
+  private File createTempFile(String prefix, String suffix) throws Exception {
+    File file = File.createTempFile(prefix, suffix);
+    tempFiles.add(file);
+    return file;
+  }
+
+  @Test
+  public void testVerifyValidContainer() throws Exception {
+    File container = createContainer(false);
+    VerificationReport report = new ContainerVerifier(STUB_VERIFIER, pool).verify(container);
+
+    assertTrue(report.toString(), report.isOk());
+    assertEquals(2, report.getSignatureReports().size());
+    assertEquals("/META-INF/signature1.ksi", report.getSignatureReports().get(0).getSignatureUri());
+    assertEquals("/META-INF/manifest1.tlv", report.getSignatureReports().get(0).getManifestUri());
+    assertTrue(report.getUnsignedEntries().isEmpty());
+  }
+
+  @Test
+  public void testVerifyBatchSignedContainer() throws Exception {
+    File container = createContainer(true);
+    VerificationReport report = new ContainerVerifier(STUB_VERIFIER, pool).verify(container);
+    assertTrue(report.toString(), report.isOk());
+  }
+
+  @Test
+  public void testVerifyModifiedDatafile() throws Exception {
+    File container = rewriteContainer(createContainer(false),
+      Collections.singletonMap("test.a", "bbbb".getBytes()));
+    VerificationReport report = new ContainerVerifier(STUB_VERIFIER, pool).verify(container);
+
+    assertFalse(report.isOk());
+    SignatureReport signatureReport = report.getSignatureReports().get(0);
+    assertEquals(SignatureReport.Status.DATAFILE_HASH_MISMATCH, signatureReport.getStatus());
+    assertEquals(Collections.singletonList("test.a"), signatureReport.getInvalidDatafiles());
+    assertTrue(report.getSignatureReports().get(1).isOk());
+  }
+
+  @Test
+  public void testVerifyCorruptDatafile() throws Exception {
+    File container = createContainer(false);
+    try (FileChannel channel = FileChannel.open(container.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+      CentralDirectoryEntry entry = new ContainerIndex(channel).getEntry("test.a");
+      assertEquals(ZipEntry.DEFLATED, entry.getMethod());
+      long dataOffset = entry.getLocalHeaderOffset() + ZipCentralDirectory.getLocalHeaderLength(channel, entry);
+      byte[] garbage = new byte[(int) entry.getCompressedSize()];
+      Arrays.fill(garbage, (byte) 0xFF);
+      channel.write(ByteBuffer.wrap(garbage), dataOffset);
+    }
+    VerificationReport report = new ContainerVerifier(STUB_VERIFIER, pool).verify(container);
+
+    assertEquals(2, report.getSignatureReports().size());
+    SignatureReport signatureReport = report.getSignatureReports().get(0);
+    assertEquals(SignatureReport.Status.DATAFILE_HASH_MISMATCH, signatureReport.getStatus());
+    assertEquals(Collections.singletonList("test.a"), signatureReport.getInvalidDatafiles());
+    assertNotNull(signatureReport.getDatafileErrors().get("test.a"));
+    assertTrue(report.getSignatureReports().get(1).isOk());
+  }
+
+  @Test
+  public void testVerifyInvalidDatafileReference() throws Exception {
+    // manifest with datafile which has hash but no URI
+    ByteArrayOutputStream manifest = new ByteArrayOutputStream();
+    byte[] signatureUri = "/META-INF/signature1.ksi\0".getBytes();
+    manifest.write(new byte[]{0x0, (byte) (4 + signatureUri.length + 2 + 35)});
+    manifest.write(new byte[]{(byte) 0x80, 0x10, 0x0, (byte) signatureUri.length});
+    manifest.write(signatureUri);
+    manifest.write(new byte[]{0x1, 35, 0x4, 33, 0x1});
+    manifest.write(new byte[32]);
+    TLVElement signature = new TLVElement(false, false, 0x800);
+    signature.setContent(new TLVService().calculateHash(HashAlgorithm.SHA2_256,
+      new ByteArrayInputStream(manifest.toByteArray())).getImprint());
+
+    Map<String, byte[]> replacements = new java.util.HashMap<>();
+    replacements.put("/META-INF/manifest1.tlv", manifest.toByteArray());
+    replacements.put("/META-INF/signature1.ksi", signature.getEncoded());
+    VerificationReport report = new ContainerVerifier(STUB_VERIFIER, pool)
+      .verify(rewriteContainer(createContainer(false), replacements));
+
+    assertEquals(2, report.getSignatureReports().size());
+    SignatureReport signatureReport = report.getSignatureReports().get(0);
+    assertEquals(SignatureReport.Status.MANIFEST_INVALID, signatureReport.getStatus());
+    assertNotNull(signatureReport.getMessage());
+    assertTrue(report.getSignatureReports().get(1).isOk());
+  }
+
+  @Test
+  public void testVerifyMissingEntries() throws Exception {
+    File container = createContainer(false);
+    Map<String, byte[]> replacements = new java.util.HashMap<>();
+    replacements.put("test.a", null);
+    replacements.put("/META-INF/signature2.ksi", null);
+    VerificationReport report = new ContainerVerifier(STUB_VERIFIER, pool).verify(rewriteContainer(container, replacements));
+
+    assertEquals(SignatureReport.Status.DATAFILE_MISSING, report.getSignatureReports().get(0).getStatus());
+    assertEquals(Collections.singletonList("test.a"), report.getSignatureReports().get(0).getMissingDatafiles());
+    assertEquals(SignatureReport.Status.SIGNATURE_MISSING, report.getSignatureReports().get(1).getStatus());
+  }
+
+  @Test
+  public void testVerifyInvalidSignatureAndUnsignedEntry() throws Exception {
+    File container = createContainer(false);
+    TLVElement wrongSignature = new TLVElement(false, false, 0x800);
+    wrongSignature.setContent(new byte[33]);
+    Map<String, byte[]> replacements = new java.util.HashMap<>();
+    replacements.put("/META-INF/signature1.ksi", wrongSignature.getEncoded());
+    replacements.put("extra.txt", "extra".getBytes());
+
+    VerificationReport report = new ContainerVerifier(STUB_VERIFIER, pool).verify(rewriteContainer(container, replacements));
+    assertEquals(SignatureReport.Status.SIGNATURE_INVALID, report.getSignatureReports().get(0).getStatus());
+    assertTrue(report.getSignatureReports().get(1).isOk());
+    assertEquals(Collections.singletonList("extra.txt"), report.getUnsignedEntries());
+  }
+
+  @Test
+  public void testVerifyMultipleContainers() throws Exception {
+    File valid = createContainer(false);
+    File modified = rewriteContainer(createContainer(true), Collections.singletonMap("test.a", "bbbb".getBytes()));
+    File broken = createTempFile("broken_", ".zip");
+    java.nio.file.Files.write(broken.toPath(), "not a zip".getBytes());
+
+    List<VerificationReport> reports = new ContainerVerifier(STUB_VERIFIER, pool)
+      .verify(Arrays.asList(valid, modified, broken));
+
+    assertEquals(3, reports.size());
+    assertEquals(valid, reports.get(0).getContainer());
+    assertTrue(reports.get(0).isOk());
+    assertFalse(reports.get(1).isOk());
+    assertFalse(reports.get(2).isOk());
+    assertNotNull(reports.get(2).getError());
+  }
+
+  @Test
+  public void testVerifySegmentedContainer() throws Exception {
+    File container = createSegmentedContainer();
+    VerificationReport report = new ContainerVerifier(STUB_VERIFIER, pool).verify(container);
+
+    assertTrue(report.toString(), report.isOk());
+    assertEquals(1, report.getSignatureReports().size());
+    assertTrue(report.getUnsignedEntries().isEmpty());
+
+    ZipContainerServiceImpl containerService = createContainerService();
+    containerService.initializeForAppend(null, container);
+    assertEquals(300, containerService.getSignedFiles().get("/META-INF/signature1.ksi").size());
+    containerService.addFileAndSign(HashAlgorithm.SHA2_256, new ByteArrayInputStream("aaaa".getBytes()), "test.a");
+    containerService.finish();
+
+    report = new ContainerVerifier(STUB_VERIFIER, pool).verify(container);
+    assertTrue(report.toString(), report.isOk());
+    assertEquals("/META-INF/manifest2.tlv", report.getSignatureReports().get(1).getManifestUri());
+  }
+
+  @Test
+  public void testVerifyModifiedSegments() throws Exception {
+    File container = createSegmentedContainer();
+
+    ManifestWriter segment = new ManifestWriter();
+    segment.addDatafile("test.a", Collections.singletonList(new DataHash(HashAlgorithm.SHA2_256, new byte[32])));
+    ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+    segment.writeTo(encoded);
+    VerificationReport report = new ContainerVerifier(STUB_VERIFIER, pool).verify(rewriteContainer(container,
+      Collections.singletonMap("/META-INF/segment1-2.tlv", encoded.toByteArray())));
+    SignatureReport signatureReport = report.getSignatureReports().get(0);
+    assertEquals(SignatureReport.Status.SEGMENT_HASH_MISMATCH, signatureReport.getStatus());
+    assertEquals(Collections.singletonList("/META-INF/segment1-2.tlv"), signatureReport.getInvalidSegments());
+
+    report = new ContainerVerifier(STUB_VERIFIER, pool).verify(rewriteContainer(container,
+      Collections.singletonMap("/META-INF/segment1-1.tlv", (byte[]) null)));
+    assertEquals(SignatureReport.Status.SEGMENT_MISSING, report.getSignatureReports().get(0).getStatus());
+  }
+
+  @Test
+  public void testVerifyWithDigestCache() throws Exception {
+    DigestCache digestCache = new DigestCache();
+    CompressionPolicy storeAll = new CompressionPolicy() {
+      @Override
+      public int getCompressionLevel(String name, byte[] sample, int sampleLength) {
+        return STORED;
+      }
+    };
+    ZipContainerServiceImpl containerService = createContainerService();
+    containerService.setCompressionPolicy(storeAll);
+    containerService.setDigestCache(digestCache);
+    File container = createTempFile("verify_cache_", ".zip");
+    containerService.initialize(null, container);
+    containerService.addFileAndSign(HashAlgorithm.SHA2_256, new ByteArrayInputStream("aaaa".getBytes()), "test.a");
+    containerService.finish();
+    assertEquals(1, digestCache.size());
+
+    // entries copied by finish() keep their name, size and CRC
+    containerService = createContainerService();
+    containerService.setCompressionPolicy(storeAll);
+    containerService.setDigestCache(digestCache);
+    containerService.initializeFromExisting(null, container);
+    containerService.addFileAndSign(HashAlgorithm.SHA2_256, new ByteArrayInputStream("cccc".getBytes()), "test.c");
+    containerService.finish();
+    assertEquals(2, digestCache.size());
+
+    ContainerVerifier verifier = new ContainerVerifier(STUB_VERIFIER, pool, digestCache);
+    assertTrue(verifier.verify(container).isOk());
+    assertEquals(2, digestCache.size());
+
+    // hashes calculated on cache miss are put into cache
+    DigestCache emptyCache = new DigestCache();
+    assertTrue(new ContainerVerifier(STUB_VERIFIER, pool, emptyCache).verify(container).isOk());
+    assertEquals(2, emptyCache.size());
+
+    // entry data is changed in place, name, size and CRC in central directory stay the same
+    try (FileChannel channel = FileChannel.open(container.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+      CentralDirectoryEntry entry = new ContainerIndex(channel).getEntry("test.a");
+      long dataOffset = entry.getLocalHeaderOffset() + ZipCentralDirectory.getLocalHeaderLength(channel, entry);
+      channel.write(ByteBuffer.wrap("bbbb".getBytes()), dataOffset);
+    }
+    // cached entry is not read again
+    assertTrue(verifier.verify(container).isOk());
+    assertFalse(new ContainerVerifier(STUB_VERIFIER, pool).verify(container).isOk());
+
+    // hashes of bytes which do not match CRC of entry are not cached
+    emptyCache.clear();
+    assertFalse(new ContainerVerifier(STUB_VERIFIER, pool, emptyCache).verify(container).isOk());
+    assertEquals(1, emptyCache.size());
+  }
+}
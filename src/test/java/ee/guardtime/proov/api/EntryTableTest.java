@@ -0,0 +1,54 @@
+package ee.guardtime.proov.api;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Package: ee.guardtime.proov.api
+ */
+public class EntryTableTest {
+
+  @Test
+  public void testRemoveSignature() {
+    EntryTable entryTable = new EntryTable();
+    entryTable.addAll(Arrays.asList("a.txt", "b.txt", "c.txt", "unsigned.txt", "/META-INF/manifest1.tlv", "/META-INF/signature1.ksi",
+      "/META-INF/manifest2.tlv", "/META-INF/signature2.ksi"));
+    entryTable.addSignature("/META-INF/signature1.ksi", Arrays.asList("/META-INF/manifest1.tlv", "a.txt", "b.txt"));
+    entryTable.addSignature("/META-INF/signature2.ksi", Arrays.asList("/META-INF/manifest2.tlv", "b.txt", "c.txt"));
+
+    assertEquals(2, entryTable.getReferenceCount("b.txt"));
+    assertEquals(1, entryTable.getReferenceCount("a.txt"));
+    assertEquals(0, entryTable.getReferenceCount("/META-INF/signature1.ksi"));
+    assertEquals(2, entryTable.getSignatures("b.txt").size());
+
+    assertEquals(Arrays.asList("/META-INF/signature1.ksi", "/META-INF/manifest1.tlv", "a.txt"),
+      entryTable.removeSignature("/META-INF/signature1.ksi"));
+    assertEquals(5, entryTable.size());
+    assertFalse(entryTable.contains("a.txt"));
+    assertTrue(entryTable.contains("b.txt"));
+    assertEquals(Collections.singleton("/META-INF/signature2.ksi"), entryTable.getSignatures("b.txt"));
+
+    assertEquals(4, entryTable.removeSignature("/META-INF/signature2.ksi").size());
+    assertEquals(1, entryTable.size());
+    assertTrue(entryTable.contains("unsigned.txt"));
+  }
+
+  @Test
+  public void testEntriesKeepOrder() {
+    EntryTable entryTable = new EntryTable();
+    entryTable.add("c.txt");
+    entryTable.add("a.txt");
+    entryTable.add("b.txt");
+    entryTable.add("a.txt");
+
+    assertEquals(Arrays.asList("c.txt", "a.txt", "b.txt"), Arrays.asList(entryTable.getNames().toArray()));
+    assertTrue(entryTable.removeSignature("/META-INF/signature1.ksi").isEmpty());
+    assertEquals(3, entryTable.size());
+  }
+}
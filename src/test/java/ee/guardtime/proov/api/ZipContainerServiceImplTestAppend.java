@@ -0,0 +1,100 @@
+package ee.guardtime.proov.api;
+
+import com.guardtime.ksi.hashing.HashAlgorithm;
+import ee.guardtime.proov.ContainerServiceException;
+import ee.guardtime.proov.GuardtimeTests;
+import ee.guardtime.proov.ksi.StubSigner;
+import ee.guardtime.proov.zip.FileReference;
+import ee.guardtime.proov.zip.ZipService;
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.zip.ZipFile;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Package: ee.guardtime.proov.api
+ */
+public class ZipContainerServiceImplTestAppend extends GuardtimeTests {
+
+  private ZipContainerServiceImpl getStubSigningContainerService() {
+    ZipContainerServiceImpl containerService = new ZipContainerServiceImpl();
+    containerService.setSigner(new StubSigner());
+    return containerService;
+  }
+
+  private File getOldZip() throws IOException {
+    InputStream originalInputStream = this.getClass().getClassLoader().getResourceAsStream("0zip.zip");
+    final File oldzip = File.createTempFile("oldzip_", ".zip");
+    Files.copy(originalInputStream, oldzip.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    return oldzip;
+  }
+
+  @Test
+  public void testAppendInPlace() throws IOException {
+    final File oldzip = getOldZip();
+    final long oldLength = oldzip.length();
+
+    ZipContainerServiceImpl zipContainerServiceImpl = getStubSigningContainerService();
+    zipContainerServiceImpl.initializeForAppend(null, oldzip);
+
+    final FileReference fileReference = getFileReference("test.c");
+    zipContainerServiceImpl.addFileAndSign(HashAlgorithm.SHA2_256,
+      new ByteArrayInputStream(fileReference.getContent()), fileReference.getFilename());
+    zipContainerServiceImpl.finish();
+
+    assertTrue(oldzip.length() > oldLength);
+    assertFalse(new File(oldzip.getPath() + ZipContainerServiceImpl.APPEND_JOURNAL_SUFFIX).exists());
+
+    ZipService zipService = new ZipService();
+    List<FileReference> fileReferences = zipService.unzipFileMultiple(new FileInputStream(oldzip));
+    assertEquals(9, fileReferences.size());
+    assertEquals("test.c", fileReferences.get(6).getFilename());
+    assertEquals("/META-INF/manifest3.tlv", fileReferences.get(7).getFilename());
+    assertEquals("/META-INF/signature3.ksi", fileReferences.get(8).getFilename());
+
+    try (ZipFile zipFile = new ZipFile(oldzip)) {
+      assertEquals(9, zipFile.size());
+      assertEquals("ccccccccc", new String(IOUtils.toByteArray(zipFile.getInputStream(zipFile.getEntry("test.c")))));
+    }
+  }
+
+  @Test(expected = ContainerServiceException.class)
+  public void testRemoveSignatureInAppendMode() throws IOException {
+    ZipContainerServiceImpl zipContainerServiceImpl = getStubSigningContainerService();
+    zipContainerServiceImpl.initializeForAppend(null, getOldZip());
+    zipContainerServiceImpl.removeSignature("/META-INF/signature1.ksi");
+  }
+
+  @Test
+  public void testAppendAfterRemoveSignature() throws IOException {
+    final File oldzip = getOldZip();
+
+    ZipContainerServiceImpl zipContainerServiceImpl = new ZipContainerServiceImpl();
+    zipContainerServiceImpl.initializeFromExisting(null, oldzip);
+    zipContainerServiceImpl.removeSignature("/META-INF/signature1.ksi");
+    zipContainerServiceImpl.finish();
+
+    zipContainerServiceImpl = getStubSigningContainerService();
+    zipContainerServiceImpl.initializeForAppend(null, oldzip);
+    zipContainerServiceImpl.addFileAndSign(HashAlgorithm.SHA2_256, new ByteArrayInputStream("aaaa".getBytes()), "test.a");
+    zipContainerServiceImpl.finish();
+
+    try (ZipFile zipFile = new ZipFile(oldzip)) {
+      assertEquals(6, zipFile.size());
+      assertNotNull(zipFile.getEntry("/META-INF/signature3.ksi"));
+    }
+  }
+}
@@ -0,0 +1,570 @@
+package ee.guardtime.proov.api;
+
+import com.guardtime.ksi.exceptions.KSIException;
+import com.guardtime.ksi.hashing.DataHash;
+import com.guardtime.ksi.hashing.HashAlgorithm;
+import com.guardtime.ksi.tlv.TLVElement;
+import ee.guardtime.proov.ContainerServiceException;
+import ee.guardtime.proov.GuardtimeTests;
+import ee.guardtime.proov.ksi.AggregatingSigner;
+import ee.guardtime.proov.ksi.RecordingSigner;
+import ee.guardtime.proov.ksi.Signer;
+import ee.guardtime.proov.ksi.StubSigner;
+import ee.guardtime.proov.tlv.AggregateSignatureStructure;
+import ee.guardtime.proov.tlv.TLVService;
+import ee.guardtime.proov.zip.FileReference;
+import ee.guardtime.proov.zip.ZipService;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Package: ee.guardtime.proov.api
+ */
+public class ZipContainerServiceImplTestAsync extends GuardtimeTests {
+
+  /**
+   * Counts signing requests in flight, signatures are made by StubSigner.
+   */
+  private static class InFlightCountingSigner implements Signer {
+
+    private final Signer signer = new StubSigner(50, TimeUnit.MILLISECONDS);
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger maxInFlight = new AtomicInteger();
+
+    @Override
+    public byte[] sign(DataHash dataHash) throws KSIException {
+      int current = inFlight.incrementAndGet();
+      synchronized (maxInFlight) {
+        maxInFlight.set(Math.max(maxInFlight.get(), current));
+      }
+      try {
+        return signer.sign(dataHash);
+      } finally {
+        inFlight.decrementAndGet();
+      }
+    }
+  }
+
+  private static ZipContainerServiceImpl createContainerService() {
+    ZipContainerServiceImpl containerService = new ZipContainerServiceImpl();
+    containerService.setSigner(new StubSigner(50, TimeUnit.MILLISECONDS));
+    return containerService;
+  }
+
+  @Test
+  public void testAddFileAndSignAsync() throws Exception {
+    InFlightCountingSigner signer = new InFlightCountingSigner();
+    ZipContainerServiceImpl containerService = new ZipContainerServiceImpl();
+    containerService.setSigner(signer);
+    containerService.setMaxInFlightSignatures(3);
+
+    final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+    containerService.initialize(null, outputStream);
+
+    List<Future<String>> futures = new ArrayList<>();
+    for (int i = 0; i < 10; i++) {
+      ByteArrayInputStream inputStream = new ByteArrayInputStream(("file" + i).getBytes());
+      futures.add(containerService.addFileAndSignAsync(HashAlgorithm.SHA2_256, inputStream, "file" + i + ".txt"));
+    }
+
+    containerService.finish();
+
+    for (int i = 0; i < futures.size(); i++) {
+      assertTrue(futures.get(i).isDone());
+      assertEquals("/META-INF/signature" + (i + 1) + ".ksi", futures.get(i).get());
+    }
+    assertTrue(signer.maxInFlight.get() <= 3);
+    assertTrue(signer.maxInFlight.get() > 1);
+
+    ZipService zipService = new ZipService();
+    List<FileReference> files = zipService.unzipFileMultiple(new ByteArrayInputStream(outputStream.toByteArray()));
+    assertEquals(30, files.size());
+  }
+
+  @Test
+  public void testAddFilesAndSignAsync() throws Exception {
+    ZipContainerServiceImpl containerService = createContainerService();
+
+    final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+    containerService.initialize(null, outputStream);
+
+    List<java.io.File> fileList = new ArrayList<>();
+    fileList.add(getTempFileSmall());
+    fileList.add(getTempFileSmall());
+
+    Future<List<String>> future = containerService.addFilesAndSignAsync(HashAlgorithm.SHA2_256, fileList);
+    containerService.finish();
+
+    assertEquals(1, future.get().size());
+
+    ZipService zipService = new ZipService();
+    List<FileReference> files = zipService.unzipFileMultiple(new ByteArrayInputStream(outputStream.toByteArray()));
+    assertEquals(4, files.size());
+    for (FileReference file : files) {
+      if ("/META-INF/signature1.ksi".equals(file.getFilename())) {
+        assertEquals(37, file.getContent().length);
+      }
+    }
+    for (java.io.File file : fileList) {
+      file.delete();
+    }
+  }
+
+  @Test
+  public void testBatchSigningWithAggregateSignatures() throws Exception {
+    ZipContainerServiceImpl containerService = createContainerService();
+    containerService.setBatchSigning(true);
+
+    final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+    containerService.initialize(null, outputStream);
+
+    List<java.io.File> fileList = new ArrayList<>();
+    for (int i = 0; i < 2000; i++) {
+      fileList.add(getTempFileSmall());
+    }
+
+    Future<List<String>> future = containerService.addFilesAndSignAsync(HashAlgorithm.SHA2_256, fileList);
+    containerService.finish();
+
+    assertTrue(future.get().size() > 1);
+    assertEquals(future.get(), containerService.getSignatureUris());
+
+    ZipService zipService = new ZipService();
+    List<FileReference> files = zipService.unzipFileMultiple(new ByteArrayInputStream(outputStream.toByteArray()));
+    assertEquals(2000 + 2 * future.get().size(), files.size());
+
+    Map<String, byte[]> entries = new HashMap<>();
+    for (FileReference file : files) {
+      entries.put(file.getFilename(), file.getContent());
+    }
+
+    TLVService tlvService = new TLVService();
+    Set<DataHash> rootHashes = new HashSet<>();
+    for (String signatureUri : future.get()) {
+      String manifestUri = containerService.getSignedManifests().get(signatureUri);
+      DataHash manifestHash = tlvService.calculateHash(HashAlgorithm.SHA2_256,
+        new ByteArrayInputStream(entries.get(manifestUri)));
+      AggregateSignatureStructure signature = new AggregateSignatureStructure(TLVElement.create(entries.get(signatureUri)));
+      rootHashes.add(signature.getRootHash(manifestHash));
+    }
+    assertEquals(1, rootHashes.size());
+    for (java.io.File file : fileList) {
+      file.delete();
+    }
+  }
+
+  @Test
+  public void testSigningFailureOnFinish() throws Exception {
+    final AtomicInteger signed = new AtomicInteger();
+    ZipContainerServiceImpl containerService = new ZipContainerServiceImpl() {
+      @Override
+      protected byte[] signFile(DataHash manifestDataHash) throws KSIException {
+        if (signed.getAndIncrement() == 0) {
+          throw new IllegalStateException("Signing failed");
+        }
+        return new StubSigner().sign(manifestDataHash);
+      }
+    };
+    ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+    containerService.initialize(null, outputStream);
+    Future<String> failed = containerService.addFileAndSignAsync(HashAlgorithm.SHA2_256,
+      new ByteArrayInputStream("aaaa".getBytes()), "test.a");
+    try {
+      failed.get();
+      fail("Signing should fail");
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof IllegalStateException);
+    }
+
+    // failed request does not fail later requests nor finish
+    Future<String> succeeded = containerService.addFileAndSignAsync(HashAlgorithm.SHA2_256,
+      new ByteArrayInputStream("bbbb".getBytes()), "test.b");
+    containerService.finish();
+    assertEquals("/META-INF/signature2.ksi", succeeded.get());
+    assertEquals(Collections.singletonList("/META-INF/signature2.ksi"), containerService.getSignatureUris());
+
+    ZipService zipService = new ZipService();
+    List<String> names = new ArrayList<>();
+    for (FileReference file : zipService.unzipFileMultiple(new ByteArrayInputStream(outputStream.toByteArray()))) {
+      names.add(file.getFilename());
+    }
+    assertTrue(names.contains("test.a"));
+    assertFalse(names.contains("/META-INF/signature1.ksi"));
+    assertTrue(names.contains("/META-INF/signature2.ksi"));
+  }
+
+  @Test
+  public void testSynchronousSigningFailure() throws Exception {
+    ZipContainerServiceImpl containerService = new ZipContainerServiceImpl() {
+      @Override
+      protected byte[] signFile(DataHash manifestDataHash) {
+        throw new IllegalStateException("Signing failed");
+      }
+    };
+    containerService.initialize(null, new ByteArrayOutputStream());
+    try {
+      containerService.addFileAndSign(HashAlgorithm.SHA2_256, new ByteArrayInputStream("aaaa".getBytes()), "test.a");
+      fail("Signing should fail");
+    } catch (IllegalStateException e) {
+      // expected
+    }
+    assertTrue(containerService.getSignatureUris().isEmpty());
+    assertTrue(containerService.getSignedFiles().isEmpty());
+    containerService.finish();
+  }
+
+  @Test
+  public void testParallelHashing() throws Exception {
+    List<java.io.File> fileList = new ArrayList<>();
+    for (int i = 0; i < 40; i++) {
+      java.io.File file = java.io.File.createTempFile("hash_" + i + "_", ".txt");
+      java.nio.file.Files.write(file.toPath(), ("content of file " + i).getBytes());
+      fileList.add(file);
+    }
+
+    ByteArrayOutputStream sequential = new ByteArrayOutputStream();
+    ZipContainerServiceImpl containerService = createContainerService();
+    containerService.initialize(null, sequential);
+    containerService.addFilesAndSign(HashAlgorithm.SHA2_256, fileList);
+    containerService.finish();
+
+    ByteArrayOutputStream parallel = new ByteArrayOutputStream();
+    ForkJoinPool pool = new ForkJoinPool(4);
+    containerService = createContainerService();
+    containerService.setHashingExecutor(pool);
+    containerService.setHashingLookahead(3);
+    containerService.initialize(null, parallel);
+    containerService.addFilesAndSign(HashAlgorithm.SHA2_256, fileList);
+    containerService.finish();
+    pool.shutdown();
+
+    ZipService zipService = new ZipService();
+    List<FileReference> expected = zipService.unzipFileMultiple(new ByteArrayInputStream(sequential.toByteArray()));
+    List<FileReference> actual = zipService.unzipFileMultiple(new ByteArrayInputStream(parallel.toByteArray()));
+    assertEquals(expected.size(), actual.size());
+    for (int i = 0; i < expected.size(); i++) {
+      assertEquals(expected.get(i).getFilename(), actual.get(i).getFilename());
+      assertArrayEquals(expected.get(i).getContent(), actual.get(i).getContent());
+    }
+    for (java.io.File file : fileList) {
+      file.delete();
+    }
+  }
+
+  @Test
+  public void testDatafileChangedAfterHashing() throws Exception {
+    final File file = File.createTempFile("hash_changed_", ".txt");
+    Files.write(file.toPath(), "original content".getBytes());
+
+    ZipContainerServiceImpl containerService = createContainerService();
+    containerService.setHashingExecutor(new AbstractExecutorService() {
+      @Override
+      public void execute(Runnable command) {
+        command.run();
+        try {
+          Files.write(file.toPath(), "changed content".getBytes());
+        } catch (IOException e) {
+          throw new IllegalStateException(e);
+        }
+      }
+
+      @Override
+      public void shutdown() {
+      }
+
+      @Override
+      public List<Runnable> shutdownNow() {
+        return Collections.emptyList();
+      }
+
+      @Override
+      public boolean isShutdown() {
+        return false;
+      }
+
+      @Override
+      public boolean isTerminated() {
+        return false;
+      }
+
+      @Override
+      public boolean awaitTermination(long timeout, TimeUnit unit) {
+        return true;
+      }
+    });
+    containerService.initialize(null, new ByteArrayOutputStream());
+    try {
+      containerService.addFilesAndSign(HashAlgorithm.SHA2_256, Collections.singletonList(file));
+      fail("Datafile changed after hashing was signed");
+    } catch (ContainerServiceException e) {
+      assertEquals("Datafile " + file.getName() + " changed while it was added to container", e.getMessage());
+    } finally {
+      file.delete();
+    }
+  }
+
+  @Test
+  public void testMultipleHashAlgorithms() throws Exception {
+    ZipContainerServiceImpl containerService = createContainerService();
+    ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+    containerService.initialize(null, outputStream);
+    containerService.addFileAndSign(java.util.Arrays.asList(HashAlgorithm.SHA2_256, HashAlgorithm.SHA2_512),
+      new ByteArrayInputStream("aaaa".getBytes()), "test.a");
+    containerService.finish();
+
+    ZipService zipService = new ZipService();
+    List<FileReference> files = zipService.unzipFileMultiple(new ByteArrayInputStream(outputStream.toByteArray()));
+    TLVService tlvService = new TLVService();
+    for (FileReference file : files) {
+      if ("/META-INF/manifest1.tlv".equals(file.getFilename())) {
+        ee.guardtime.proov.tlv.ManifestStructure manifest =
+          new ee.guardtime.proov.tlv.ManifestStructure(TLVElement.create(file.getContent()));
+        ee.guardtime.proov.tlv.DatafileStructure datafile = manifest.getDatafiles().get(0);
+        assertEquals(tlvService.calculateHash(HashAlgorithm.SHA2_256, new ByteArrayInputStream("aaaa".getBytes())),
+          datafile.getHash());
+        assertEquals(tlvService.calculateHash(HashAlgorithm.SHA2_512, new ByteArrayInputStream("aaaa".getBytes())),
+          datafile.getHash(HashAlgorithm.SHA2_512));
+      }
+    }
+  }
+
+  @Test(expected = ContainerServiceException.class)
+  public void testHashingLookahead() {
+    new ZipContainerServiceImpl().setHashingLookahead(0);
+  }
+
+  @Test(expected = ContainerServiceException.class)
+  public void testMaxInFlightSignatures() {
+    new ZipContainerServiceImpl().setMaxInFlightSignatures(0);
+  }
+
+  @Test
+  public void testSigner() throws Exception {
+    StubSigner stubSigner = new StubSigner(20, TimeUnit.MILLISECONDS);
+    RecordingSigner recordingSigner = new RecordingSigner(stubSigner);
+    ZipContainerServiceImpl containerService = new ZipContainerServiceImpl();
+    containerService.setSigner(recordingSigner);
+
+    final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+    containerService.initialize(null, outputStream);
+    for (int i = 0; i < 5; i++) {
+      ByteArrayInputStream inputStream = new ByteArrayInputStream(("file" + i).getBytes());
+      containerService.addFileAndSignAsync(HashAlgorithm.SHA2_256, inputStream, "file" + i + ".txt");
+    }
+    containerService.finish();
+
+    assertEquals(5, recordingSigner.getSignatureCount());
+    assertEquals(0, recordingSigner.getFailureCount());
+    assertTrue(recordingSigner.getMaxSigningNanos() >= TimeUnit.MILLISECONDS.toNanos(20));
+
+    Map<String, byte[]> entries = new HashMap<>();
+    for (FileReference file : new ZipService().unzipFileMultiple(new ByteArrayInputStream(outputStream.toByteArray()))) {
+      entries.put(file.getFilename(), file.getContent());
+    }
+    for (int i = 1; i <= 5; i++) {
+      DataHash manifestHash = new TLVService().calculateHash(HashAlgorithm.SHA2_256,
+        new ByteArrayInputStream(entries.get("/META-INF/manifest" + i + ".tlv")));
+      assertTrue(recordingSigner.getSignedHashes().contains(manifestHash));
+      assertTrue(stubSigner.verify(entries.get("/META-INF/signature" + i + ".ksi"), manifestHash));
+    }
+  }
+
+  @Test
+  public void testConcurrentWriter() throws Exception {
+    final ZipContainerServiceImpl containerService = new ZipContainerServiceImpl();
+    containerService.setSigner(new StubSigner(5, TimeUnit.MILLISECONDS));
+    final File container = File.createTempFile("concurrent_", ".zip");
+    containerService.initialize(null, container);
+    final ConcurrentContainerWriter writer = new ConcurrentContainerWriter(containerService, 8);
+
+    final int threads = 8;
+    final int filesPerThread = 25;
+    final Set<String> signatureUris = Collections.synchronizedSet(new HashSet<String>());
+    List<Thread> producers = new ArrayList<>();
+    final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+    for (int t = 0; t < threads; t++) {
+      final int thread = t;
+      producers.add(new Thread(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            for (int i = 0; i < filesPerThread; i++) {
+              String filename = "file" + thread + "-" + i + ".txt";
+              signatureUris.add(writer.addFileAndSign(HashAlgorithm.SHA2_256,
+                new ByteArrayInputStream(filename.getBytes()), filename));
+            }
+          } catch (Throwable e) {
+            errors.add(e);
+          }
+        }
+      }));
+    }
+    for (Thread producer : producers) {
+      producer.start();
+    }
+    for (Thread producer : producers) {
+      producer.join();
+    }
+    writer.finish();
+
+    assertTrue(errors.toString(), errors.isEmpty());
+    assertEquals(threads * filesPerThread, signatureUris.size());
+    for (int i = 1; i <= threads * filesPerThread; i++) {
+      assertTrue(signatureUris.contains("/META-INF/signature" + i + ".ksi"));
+    }
+
+    ForkJoinPool pool = new ForkJoinPool(2);
+    try {
+      VerificationReport report = new ContainerVerifier(new StubSigner(), pool).verify(container);
+      assertTrue(report.toString(), report.isOk());
+      assertEquals(threads * filesPerThread, report.getSignatureReports().size());
+      assertTrue(report.getUnsignedEntries().isEmpty());
+    } finally {
+      pool.shutdown();
+      container.delete();
+    }
+  }
+
+  @Test(expected = ContainerServiceException.class)
+  public void testConcurrentWriterFinished() throws Exception {
+    ZipContainerServiceImpl containerService = new ZipContainerServiceImpl();
+    containerService.setSigner(new StubSigner());
+    containerService.initialize(null, new ByteArrayOutputStream());
+    ConcurrentContainerWriter writer = new ConcurrentContainerWriter(containerService);
+    writer.finish();
+    writer.addFileAndSign(HashAlgorithm.SHA2_256, new ByteArrayInputStream("a".getBytes()), "a.txt");
+  }
+
+  @Test
+  public void testMetrics() throws Exception {
+    File oldzip = File.createTempFile("oldzip_", ".zip");
+    Files.copy(this.getClass().getClassLoader().getResourceAsStream("0zip.zip"), oldzip.toPath(),
+      StandardCopyOption.REPLACE_EXISTING);
+    CollectingContainerMetrics metrics = new CollectingContainerMetrics();
+
+    ZipContainerServiceImpl containerService = new ZipContainerServiceImpl();
+    containerService.setSigner(new StubSigner());
+    containerService.setMetrics(metrics);
+    containerService.initializeFromExisting(null, oldzip);
+    containerService.removeSignature("/META-INF/signature1.ksi");
+    containerService.addFileAndSign(HashAlgorithm.SHA2_256, new ByteArrayInputStream("aaaa".getBytes()), "test.d");
+    containerService.finish();
+
+    Map<String, Long> values = metrics.getMetrics();
+    assertEquals(4L, (long) values.get("container.hashing.bytes"));
+    assertEquals(4L, (long) values.get("container.compression.bytes.in"));
+    assertEquals(1L, (long) values.get("container.signing.count"));
+    assertEquals(0L, (long) values.get("container.signing.failures"));
+    assertEquals(1L, (long) values.get("container.signing.latency.le.inf"));
+    assertEquals(3L, (long) values.get("container.copy.entries"));
+    assertEquals(oldzip.length(), (long) values.get("container.temp.bytes"));
+    assertEquals(oldzip.length(), (long) values.get("container.move.bytes"));
+    oldzip.delete();
+  }
+
+  @Test
+  public void testBulkContainers() throws Exception {
+    RecordingSigner recordingSigner = new RecordingSigner(new StubSigner(20, TimeUnit.MILLISECONDS));
+    File directory = Files.createTempDirectory("bulk_").toFile();
+    List<ContainerJob> jobs = new ArrayList<>();
+    for (int i = 0; i < 40; i++) {
+      File datafile = new File(directory, "file" + i + ".txt");
+      Files.write(datafile.toPath(), ("content " + i).getBytes());
+      jobs.add(new ContainerJob(new File(directory, "container" + i + ".zip"),
+        Collections.singletonList(datafile)));
+    }
+    jobs.add(new ContainerJob(new File(directory, "missing.zip"),
+      Collections.singletonList(new File(directory, "missing.txt"))));
+
+    List<ContainerJobResult> results;
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    try (AggregatingSigner signer = new AggregatingSigner(recordingSigner, 10, TimeUnit.MILLISECONDS)) {
+      BulkContainerFactory factory = new BulkContainerFactory(signer, executor, 16);
+      results = factory.createContainers(jobs);
+    } finally {
+      executor.shutdown();
+    }
+
+    assertEquals(jobs.size(), results.size());
+    assertTrue(recordingSigner.getSignatureCount() < 40);
+    ForkJoinPool pool = new ForkJoinPool(2);
+    try {
+      ContainerVerifier verifier = new ContainerVerifier(new StubSigner(), pool);
+      for (int i = 0; i < 40; i++) {
+        ContainerJobResult result = results.get(i);
+        assertTrue(result.toString(), result.isOk());
+        assertEquals(jobs.get(i), result.getJob());
+        assertEquals(Collections.singletonList("/META-INF/signature1.ksi"), result.getSignatureUris());
+        VerificationReport report = verifier.verify(jobs.get(i).getOutput());
+        assertTrue(report.toString(), report.isOk());
+      }
+    } finally {
+      pool.shutdown();
+    }
+
+    ContainerJobResult failed = results.get(40);
+    assertFalse(failed.isOk());
+    assertTrue(failed.getSignatureUris().isEmpty());
+    assertFalse(new File(directory, "missing.zip").exists());
+
+    for (File file : directory.listFiles()) {
+      file.delete();
+    }
+    directory.delete();
+  }
+
+  @Test
+  public void testBulkContainerRuntimeFailure() throws Exception {
+    Signer signer = new Signer() {
+      @Override
+      public byte[] sign(DataHash dataHash) {
+        throw new IllegalStateException("Signer broken");
+      }
+    };
+    File directory = Files.createTempDirectory("bulk_").toFile();
+    File datafile = new File(directory, "file.txt");
+    Files.write(datafile.toPath(), "content".getBytes());
+    List<ContainerJob> jobs = new ArrayList<>();
+    for (int i = 0; i < 2; i++) {
+      jobs.add(new ContainerJob(new File(directory, "container" + i + ".zip"), Collections.singletonList(datafile)));
+    }
+
+    List<ContainerJobResult> results = new BulkContainerFactory(signer, null, 2).createContainers(jobs);
+
+    assertEquals(2, results.size());
+    for (ContainerJobResult result : results) {
+      assertFalse(result.isOk());
+      assertTrue(result.getError(), result.getError().contains("Signer broken"));
+      assertFalse(result.getJob().getOutput().exists());
+    }
+    datafile.delete();
+    directory.delete();
+  }
+}
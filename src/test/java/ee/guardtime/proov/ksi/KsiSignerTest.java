@@ -0,0 +1,124 @@
+package ee.guardtime.proov.ksi;
+
+import com.guardtime.ksi.exceptions.KSIException;
+import com.guardtime.ksi.hashing.DataHash;
+import com.guardtime.ksi.hashing.HashAlgorithm;
+import com.guardtime.ksi.service.client.KSIServiceCredentials;
+import com.guardtime.ksi.service.client.http.HttpClientSettings;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+/**
+ * Package: ee.guardtime.proov.ksi
+ */
+public class KsiSignerTest {
+
+  private HttpServer server;
+  private final AtomicInteger signingRequests = new AtomicInteger();
+  private final AtomicInteger publicationsRequests = new AtomicInteger();
+  private HttpClientSettings httpClientSettings;
+
+  @Before
+  public void setUp() throws IOException {
+    // stub aggregator, counts requests and answers with empty response
+    server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    server.createContext("/gt-signingservice", new CountingHandler(signingRequests));
+    server.createContext("/ksi-publications.bin", new CountingHandler(publicationsRequests));
+    server.start();
+
+    String baseUri = "http://localhost:" + server.getAddress().getPort();
+    httpClientSettings = new HttpClientSettings(baseUri + "/gt-signingservice",
+      baseUri + "/gt-extendingservice",
+      baseUri + "/ksi-publications.bin",
+      new KSIServiceCredentials("anon", "anon"));
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    KsiSigner.shutdown();
+    server.stop(0);
+  }
+
+  @Test
+  public void testSignerIsShared() throws Exception {
+    KsiSigner signer = KsiSigner.getInstance(httpClientSettings);
+    assertSame(signer, KsiSigner.getInstance(httpClientSettings));
+
+    // settings are compared by value
+    HttpClientSettings sameSettings = new HttpClientSettings(httpClientSettings.getSigningUrl().toString(),
+      httpClientSettings.getExtendingUrl().toString(),
+      httpClientSettings.getPublicationsFileUrl().toString(),
+      new KSIServiceCredentials("anon", "anon"));
+    assertSame(signer, KsiSigner.getInstance(sameSettings));
+
+    HttpClientSettings otherCredentials = new HttpClientSettings(httpClientSettings.getSigningUrl().toString(),
+      httpClientSettings.getExtendingUrl().toString(),
+      httpClientSettings.getPublicationsFileUrl().toString(),
+      new KSIServiceCredentials("anon", "other"));
+    assertNotSame(signer, KsiSigner.getInstance(otherCredentials));
+
+    HttpClientSettings otherSettings = new HttpClientSettings("http://localhost/a", "http://localhost/b",
+      "http://localhost/c", new KSIServiceCredentials("anon", "anon"));
+    assertNotSame(signer, KsiSigner.getInstance(otherSettings));
+
+    // shared signer stays in registry when one of its users closes it
+    signer.close();
+    assertSame(signer, KsiSigner.getInstance(httpClientSettings));
+
+    KsiSigner.shutdown();
+    assertNotSame(signer, KsiSigner.getInstance(httpClientSettings));
+  }
+
+  @Test
+  public void testOneRoundTripPerSignature() throws Exception {
+    DataHash dataHash = new DataHash(HashAlgorithm.SHA2_256, new byte[32]);
+    KsiSigner signer = KsiSigner.getInstance(httpClientSettings);
+
+    for (int i = 0; i < 3; i++) {
+      try {
+        signer.sign(dataHash);
+        fail("Stub aggregator does not return valid signatures");
+      } catch (KSIException e) {
+        // expected
+      }
+    }
+
+    assertEquals(3, signingRequests.get());
+    assertEquals(0, publicationsRequests.get());
+  }
+
+  private static class CountingHandler implements HttpHandler {
+
+    private final AtomicInteger counter;
+
+    CountingHandler(AtomicInteger counter) {
+      this.counter = counter;
+    }
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+      counter.incrementAndGet();
+      try (InputStream is = exchange.getRequestBody()) {
+        while (is.read() != -1) {
+          // drain request
+        }
+      }
+      exchange.sendResponseHeaders(200, -1);
+      exchange.close();
+    }
+  }
+}
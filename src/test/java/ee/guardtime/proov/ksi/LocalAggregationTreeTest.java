@@ -0,0 +1,104 @@
+package ee.guardtime.proov.ksi;
+
+import com.guardtime.ksi.hashing.DataHash;
+import com.guardtime.ksi.hashing.DataHasher;
+import com.guardtime.ksi.hashing.HashAlgorithm;
+import com.guardtime.ksi.hashing.HashException;
+import ee.guardtime.proov.tlv.HashChainLink;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Package: ee.guardtime.proov.ksi
+ */
+public class LocalAggregationTreeTest {
+
+  private List<DataHash> getLeaves(int count) throws HashException {
+    List<DataHash> leaves = new ArrayList<>();
+    for (int i = 0; i < count; i++) {
+      leaves.add(new DataHasher(HashAlgorithm.SHA2_256).addData(("manifest" + i).getBytes()).getHash());
+    }
+    return leaves;
+  }
+
+  @Test
+  public void testSingleLeaf() throws HashException {
+    List<DataHash> leaves = getLeaves(1);
+    LocalAggregationTree tree = new LocalAggregationTree(leaves);
+
+    assertEquals(HashChainLink.hashLeaf(leaves.get(0)), tree.getRootHash());
+    assertTrue(tree.getChain(0).isEmpty());
+    assertEquals(tree.getRootHash(), HashChainLink.calculateRootHash(leaves.get(0), tree.getChain(0)));
+  }
+
+  @Test
+  public void testTwoLeaves() throws HashException {
+    List<DataHash> leaves = getLeaves(2);
+    LocalAggregationTree tree = new LocalAggregationTree(leaves);
+
+    assertEquals(HashChainLink.hashNodes(HashChainLink.hashLeaf(leaves.get(0)), HashChainLink.hashLeaf(leaves.get(1))),
+      tree.getRootHash());
+    assertEquals(1, tree.getChain(0).size());
+    assertEquals(false, tree.getChain(0).get(0).isSiblingLeft());
+    assertEquals(true, tree.getChain(1).get(0).isSiblingLeft());
+  }
+
+  @Test
+  public void testEveryChainLeadsToRoot() throws HashException {
+    for (int count = 1; count <= 17; count++) {
+      List<DataHash> leaves = getLeaves(count);
+      LocalAggregationTree tree = new LocalAggregationTree(leaves);
+
+      for (int i = 0; i < count; i++) {
+        assertEquals(tree.getRootHash(), HashChainLink.calculateRootHash(leaves.get(i), tree.getChain(i)));
+      }
+    }
+  }
+
+  @Test
+  public void testOrderMatters() throws HashException {
+    List<DataHash> leaves = getLeaves(5);
+    DataHash rootHash = new LocalAggregationTree(leaves).getRootHash();
+
+    Collections.reverse(leaves);
+    assertNotEquals(rootHash, new LocalAggregationTree(leaves).getRootHash());
+  }
+
+  @Test
+  public void testInnerNodeIsNotLeaf() throws HashException {
+    List<DataHash> leaves = getLeaves(4);
+    LocalAggregationTree tree = new LocalAggregationTree(leaves);
+
+    // parent of first two leaves with rest of the first chain does not lead to root
+    DataHash innerNode = HashChainLink.hashNodes(HashChainLink.hashLeaf(leaves.get(0)),
+      HashChainLink.hashLeaf(leaves.get(1)));
+    List<HashChainLink> rest = tree.getChain(0).subList(1, tree.getChain(0).size());
+    assertNotEquals(tree.getRootHash(), HashChainLink.calculateRootHash(innerNode, rest));
+  }
+
+  @Test
+  public void testLeafLinkStartsNextTree() throws HashException {
+    List<DataHash> leaves = getLeaves(3);
+    LocalAggregationTree tree = new LocalAggregationTree(leaves);
+    List<DataHash> outerLeaves = getLeaves(2);
+    outerLeaves.set(1, tree.getRootHash());
+    LocalAggregationTree outerTree = new LocalAggregationTree(outerLeaves);
+
+    List<HashChainLink> joined = new ArrayList<>(tree.getChain(2));
+    joined.add(HashChainLink.leaf());
+    joined.addAll(outerTree.getChain(1));
+    assertEquals(outerTree.getRootHash(), HashChainLink.calculateRootHash(leaves.get(2), joined));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testEmptyTree() throws HashException {
+    new LocalAggregationTree(new ArrayList<DataHash>());
+  }
+}
@@ -0,0 +1,65 @@
+package ee.guardtime.proov.ksi;
+
+import com.guardtime.ksi.KSI;
+import com.guardtime.ksi.exceptions.KSIException;
+import com.guardtime.ksi.hashing.DataHash;
+import com.guardtime.ksi.hashing.DataHasher;
+import com.guardtime.ksi.hashing.HashAlgorithm;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Package: ee.guardtime.proov.ksi
+ */
+public class RecordingSignerTest {
+
+  @Test
+  public void testRecordSignatures() throws KSIException {
+    DataHash first = new DataHasher(HashAlgorithm.SHA2_256).addData("first".getBytes()).getHash();
+    DataHash second = new DataHasher(HashAlgorithm.SHA2_256).addData("second".getBytes()).getHash();
+    StubSigner stubSigner = new StubSigner();
+    RecordingSigner recordingSigner = new RecordingSigner(stubSigner);
+
+    byte[] signature = recordingSigner.sign(first);
+    recordingSigner.sign(second);
+
+    assertTrue(stubSigner.verify(signature, first));
+    assertFalse(stubSigner.verify(signature, second));
+    assertEquals(Arrays.asList(first, second), recordingSigner.getSignedHashes());
+    assertEquals(0, recordingSigner.getFailureCount());
+  }
+
+  @Test
+  public void testStubSignatureRejectedByKsiVerifier() throws KSIException {
+    DataHash dataHash = new DataHasher(HashAlgorithm.SHA2_256).addData("data".getBytes()).getHash();
+    byte[] signature = new StubSigner().sign(dataHash);
+
+    // rejected by element type, KSI client is not used
+    assertFalse(new KsiSignatureVerifier((KSI) null).verify(signature, dataHash));
+  }
+
+  @Test
+  public void testRecordFailures() {
+    RecordingSigner recordingSigner = new RecordingSigner(new Signer() {
+      @Override
+      public byte[] sign(DataHash dataHash) throws KSIException {
+        throw new KSIException("Aggregator not available");
+      }
+    });
+
+    try {
+      recordingSigner.sign(new DataHasher(HashAlgorithm.SHA2_256).addData("data".getBytes()).getHash());
+      fail();
+    } catch (KSIException e) {
+      assertEquals("Aggregator not available", e.getMessage());
+    }
+    assertEquals(1, recordingSigner.getFailureCount());
+    assertEquals(0, recordingSigner.getSignatureCount());
+  }
+}
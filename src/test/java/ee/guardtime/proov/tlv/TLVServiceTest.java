@@ -11,10 +11,19 @@ import org.junit.Test;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.FileNotFoundException;
 import java.io.InputStream;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 /**
  * Package: ee.guardtime.proov.tlv
@@ -141,4 +150,280 @@ public class TLVServiceTest {
       "signatureUri='null'}", newManifestStructure.toString());
 
   }
+
+  @Test
+  public void testHashingInputStream() throws Exception {
+    InputStream is = this.getClass().getClassLoader().getResourceAsStream("test.a");
+    HashingInputStream hashingInputStream = new HashingInputStream(is, HashAlgorithm.SHA2_256);
+
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buffer = new byte[2];
+    int len;
+    while ((len = hashingInputStream.read(buffer)) > 0) {
+      out.write(buffer, 0, len);
+    }
+
+    assertEquals("aaaa", new String(out.toByteArray()));
+    assertEquals("SHA-256:[61BE55A8E2F6B4E172338BDDF184D6DBEE29C98853E0A0485ECEE7F27B9AF0B4]",
+      hashingInputStream.getHash().toString());
+  }
+
+  @Test
+  public void testCalculateHashFromFile() throws Exception {
+    byte[] content = new byte[3 * 1024 * 1024 + 17];
+    new java.util.Random(1).nextBytes(content);
+    java.io.File file = java.io.File.createTempFile("hash_", ".tmp");
+    try {
+      java.nio.file.Files.write(file.toPath(), content);
+      TLVService tlvService = new TLVService();
+      for (HashAlgorithm hashAlgorithm : new HashAlgorithm[]{HashAlgorithm.SHA2_256, HashAlgorithm.SHA2_512, HashAlgorithm.RIPEMD_160}) {
+        assertEquals(tlvService.calculateHash(hashAlgorithm, new ByteArrayInputStream(content)),
+          tlvService.calculateHash(hashAlgorithm, file.toPath()));
+      }
+      List<HashAlgorithm> hashAlgorithms = java.util.Arrays.asList(HashAlgorithm.SHA2_512, HashAlgorithm.SHA2_256);
+      assertEquals(tlvService.calculateHashes(hashAlgorithms, new ByteArrayInputStream(content)),
+        tlvService.calculateHashes(hashAlgorithms, file.toPath()));
+
+      // CRC is calculated from the same mapped regions, or from the same buffer for small files
+      for (int size : new int[]{content.length, 1000}) {
+        CRC32 expectedCrc = new CRC32();
+        expectedCrc.update(content, 0, size);
+        CRC32 crc = new CRC32();
+        try (java.io.FileInputStream fis = new java.io.FileInputStream(file)) {
+          assertEquals(tlvService.calculateHashes(hashAlgorithms, new ByteArrayInputStream(content, 0, size)),
+            tlvService.calculateHashes(hashAlgorithms, fis.getChannel(), size, crc));
+        }
+        assertEquals(expectedCrc.getValue(), crc.getValue());
+      }
+      try (java.io.FileInputStream fis = new java.io.FileInputStream(file)) {
+        tlvService.calculateHashes(hashAlgorithms, fis.getChannel(), content.length + 1, new CRC32());
+        fail("File shorter than size was hashed");
+      } catch (EOFException e) {
+        // expected
+      }
+
+      java.nio.file.Files.write(file.toPath(), "aaaa".getBytes());
+      assertEquals("SHA-256:[61BE55A8E2F6B4E172338BDDF184D6DBEE29C98853E0A0485ECEE7F27B9AF0B4]",
+        tlvService.calculateHash(HashAlgorithm.SHA2_256, file.toPath()).toString());
+    } finally {
+      file.delete();
+    }
+  }
+
+  @Test
+  public void testMultipleHashes() throws Exception {
+    List<HashAlgorithm> hashAlgorithms = java.util.Arrays.asList(HashAlgorithm.SHA2_256, HashAlgorithm.SHA2_512,
+      HashAlgorithm.RIPEMD_160);
+    TLVService tlvService = new TLVService();
+    InputStream is = this.getClass().getClassLoader().getResourceAsStream("test.a");
+    List<DataHash> hashes = tlvService.calculateHashes(hashAlgorithms, is);
+
+    assertEquals(3, hashes.size());
+    for (int i = 0; i < hashes.size(); i++) {
+      assertEquals(tlvService.calculateHash(hashAlgorithms.get(i), new ByteArrayInputStream("aaaa".getBytes())),
+        hashes.get(i));
+    }
+
+    DatafileStructure datafileStructure = tlvService.combineDatafileStructure("test.a", hashes);
+    assertEquals(ManifestWriter.getDatafileLength("test.a", hashAlgorithms),
+      datafileStructure.getRootElement().getEncoded().length);
+
+    DatafileStructure parsed = new DatafileStructure(TLVElement.create(datafileStructure.getRootElement().getEncoded()));
+    assertEquals(HashAlgorithm.SHA2_256, parsed.getHashAlgorithm());
+    assertEquals(hashes.get(0), parsed.getHash());
+    assertEquals(hashes, parsed.getHashes());
+    assertEquals(hashes.get(1), parsed.getHash(HashAlgorithm.SHA2_512));
+    assertEquals(null, parsed.getHash(HashAlgorithm.SHA2_384));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testMultipleHashesWithSameAlgorithm() throws Exception {
+    new MultiDataHasher(java.util.Arrays.asList(HashAlgorithm.SHA2_256, HashAlgorithm.SHA2_256));
+  }
+
+  @Test
+  public void testManifestWriter() throws Exception {
+    TLVService tlvService = new TLVService();
+    DataHash sha256 = tlvService.calculateHash(HashAlgorithm.SHA2_256, new ByteArrayInputStream("aaaa".getBytes()));
+    DataHash sha512 = tlvService.calculateHash(HashAlgorithm.SHA2_512, new ByteArrayInputStream("aaaa".getBytes()));
+    StringBuilder longName = new StringBuilder();
+    for (int i = 0; i < 300; i++) {
+      longName.append('x');
+    }
+
+    List<String> uris = java.util.Arrays.asList("test.a", "\u00f5un.txt", longName.toString());
+    for (int count : new int[]{1, 2, 150}) {
+      ManifestStructure manifestStructure = tlvService.createEmptyManifest("/META-INF/signature1.ksi");
+      ManifestWriter manifestWriter = new ManifestWriter("/META-INF/signature1.ksi");
+      for (int i = 0; i < count; i++) {
+        String uri = uris.get(i % uris.size()) + i;
+        List<DataHash> hashes = i % 2 == 0 ? Collections.singletonList(sha256) : java.util.Arrays.asList(sha256, sha512);
+        manifestStructure.addDatafile(tlvService.combineDatafileStructure(uri, hashes));
+        manifestWriter.addDatafile(uri, hashes);
+
+        List<HashAlgorithm> hashAlgorithms = new java.util.ArrayList<>();
+        for (DataHash hash : hashes) {
+          hashAlgorithms.add(hash.getAlgorithm());
+        }
+        assertEquals(tlvService.combineDatafileStructure(uri, hashes).getRootElement().getEncoded().length,
+          ManifestWriter.getDatafileLength(uri, hashAlgorithms));
+      }
+
+      ByteArrayOutputStream expected = new ByteArrayOutputStream();
+      manifestStructure.writeTo(expected);
+      ByteArrayOutputStream actual = new ByteArrayOutputStream();
+      DataHash manifestHash = manifestWriter.writeTo(actual);
+
+      assertEquals(manifestStructure.getContentLength(), manifestWriter.getContentLength());
+      assertArrayEquals(expected.toByteArray(), actual.toByteArray());
+      assertEquals(tlvService.calculateHash(HashAlgorithm.SHA2_256, new ByteArrayInputStream(expected.toByteArray())),
+        manifestHash);
+    }
+  }
+
+  @Test
+  public void testLazyManifest() throws Exception {
+    TLVService tlvService = new TLVService();
+    DataHash sha256 = tlvService.calculateHash(HashAlgorithm.SHA2_256, new ByteArrayInputStream("aaaa".getBytes()));
+    DataHash sha512 = tlvService.calculateHash(HashAlgorithm.SHA2_512, new ByteArrayInputStream("aaaa".getBytes()));
+
+    for (int count : new int[]{1, 300}) {
+      ManifestWriter manifestWriter = new ManifestWriter("/META-INF/signature7.ksi");
+      for (int i = 0; i < count; i++) {
+        manifestWriter.addDatafile("file" + i + ".txt",
+          i % 2 == 0 ? Collections.singletonList(sha256) : java.util.Arrays.asList(sha512, sha256));
+      }
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      DataHash manifestHash = manifestWriter.writeTo(out);
+
+      LazyManifest manifest = new LazyManifest(out.toByteArray());
+      ManifestStructure manifestStructure = manifest.toManifestStructure();
+      assertEquals("/META-INF/signature7.ksi", manifest.getSignatureUri());
+      assertEquals(count, manifest.getDatafileCount());
+      assertEquals(manifestHash, manifest.getHash(HashAlgorithm.SHA2_256));
+      for (int i = 0; i < count; i++) {
+        DatafileStructure datafileStructure = manifestStructure.getDatafiles().get(i);
+        assertEquals(datafileStructure.getUri(), manifest.getDatafileUris().get(i));
+        assertEquals(datafileStructure.getHash(), manifest.getDatafileHash(i));
+        assertEquals(datafileStructure.getHashes(), manifest.getDatafile(i).getHashes());
+      }
+    }
+  }
+
+  @Test
+  public void testManifestSegments() throws Exception {
+    TLVService tlvService = new TLVService();
+    DataHash sha256 = tlvService.calculateHash(HashAlgorithm.SHA2_256, new ByteArrayInputStream("aaaa".getBytes()));
+
+    ManifestWriter segmentWriter = new ManifestWriter();
+    segmentWriter.addDatafile("test.a", Collections.singletonList(sha256));
+    ByteArrayOutputStream segmentOut = new ByteArrayOutputStream();
+    DataHash segmentHash = segmentWriter.writeTo(segmentOut);
+
+    ManifestWriter manifestWriter = new ManifestWriter("/META-INF/signature1.ksi");
+    int length = manifestWriter.getContentLength();
+    manifestWriter.addSegment("/META-INF/segment1-1.tlv", segmentHash);
+    assertEquals(ManifestWriter.getSegmentLength("/META-INF/segment1-1.tlv", HashAlgorithm.SHA2_256),
+      manifestWriter.getContentLength() - length);
+    assertFalse(manifestWriter.isEmpty());
+    ByteArrayOutputStream manifestOut = new ByteArrayOutputStream();
+    manifestWriter.writeTo(manifestOut);
+
+    LazyManifest segment = new LazyManifest(segmentOut.toByteArray());
+    assertNull(segment.getSignatureUri());
+    assertFalse(segment.isSegmented());
+    assertEquals("test.a", segment.getDatafileUri(0));
+
+    LazyManifest manifest = new LazyManifest(manifestOut.toByteArray());
+    assertEquals("/META-INF/signature1.ksi", manifest.getSignatureUri());
+    assertTrue(manifest.isSegmented());
+    assertEquals(0, manifest.getDatafileCount());
+    assertEquals(1, manifest.getSegmentCount());
+    assertEquals("/META-INF/segment1-1.tlv", manifest.getSegmentUri(0));
+    assertEquals(segmentHash, manifest.getSegmentHash(0));
+    assertEquals(segmentHash, segment.getHash(HashAlgorithm.SHA2_256));
+  }
+
+  @Test(expected = TLVParserException.class)
+  public void testSegmentedManifestRejectedByManifestStructure() throws Exception {
+    ManifestWriter manifestWriter = new ManifestWriter("/META-INF/signature1.ksi");
+    manifestWriter.addSegment("/META-INF/segment1-1.tlv",
+      new TLVService().calculateHash(HashAlgorithm.SHA2_256, new ByteArrayInputStream("aaaa".getBytes())));
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    manifestWriter.writeTo(out);
+
+    new ManifestStructure(TLVElement.create(out.toByteArray()));
+  }
+
+  @Test(expected = TLVParserException.class)
+  public void testSegmentReferenceInPlainManifest() throws Exception {
+    ManifestWriter manifestWriter = new ManifestWriter("/META-INF/signature1.ksi");
+    manifestWriter.addSegment("/META-INF/segment1-1.tlv",
+      new TLVService().calculateHash(HashAlgorithm.SHA2_256, new ByteArrayInputStream("aaaa".getBytes())));
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    manifestWriter.writeTo(out);
+    byte[] encoded = out.toByteArray();
+    encoded[0] = (byte) (encoded[0] & ~0x1F);
+
+    new LazyManifest(encoded);
+  }
+
+  @Test(expected = TLVParserException.class)
+  public void testLazyManifestTruncated() throws Exception {
+    ManifestWriter manifestWriter = new ManifestWriter("/META-INF/signature1.ksi");
+    manifestWriter.addDatafile("test.a", Collections.singletonList(
+      new TLVService().calculateHash(HashAlgorithm.SHA2_256, new ByteArrayInputStream("aaaa".getBytes()))));
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    manifestWriter.writeTo(out);
+    byte[] encoded = out.toByteArray();
+    new LazyManifest(java.util.Arrays.copyOf(encoded, encoded.length - 1));
+  }
+
+  @Test
+  public void testAggregateSignatureStructure() throws KSIException {
+    DataHash manifestHash = new DataHasher(HashAlgorithm.SHA2_256).addData("manifest".getBytes()).getHash();
+    DataHash siblingHash = new DataHasher(HashAlgorithm.SHA2_256).addData("sibling".getBytes()).getHash();
+    List<HashChainLink> links = Collections.singletonList(new HashChainLink(true, siblingHash));
+
+    TLVElement ksiSignature = new TLVElement(false, false, 0x800);
+    ksiSignature.setContent(new byte[]{1, 2, 3});
+
+    AggregateSignatureStructure structure = new AggregateSignatureStructure(links, ksiSignature.getEncoded());
+
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    structure.writeTo(out);
+
+    TLVElement element = TLVElement.create(out.toByteArray());
+    assertTrue(AggregateSignatureStructure.isAggregateSignature(element));
+
+    AggregateSignatureStructure newStructure = new AggregateSignatureStructure(element);
+    assertArrayEquals(ksiSignature.getEncoded(), newStructure.getKsiSignature());
+    assertEquals(HashChainLink.hashNodes(siblingHash, HashChainLink.hashLeaf(manifestHash)),
+      newStructure.getRootHash(manifestHash));
+  }
+
+  @Test
+  public void testJoinAggregateSignatureStructure() throws KSIException {
+    DataHash manifestHash = new DataHasher(HashAlgorithm.SHA2_256).addData("manifest".getBytes()).getHash();
+    DataHash siblingHash = new DataHasher(HashAlgorithm.SHA2_256).addData("sibling".getBytes()).getHash();
+    DataHash outerSiblingHash = new DataHasher(HashAlgorithm.SHA2_256).addData("outer".getBytes()).getHash();
+
+    TLVElement ksiSignature = new TLVElement(false, false, 0x800);
+    ksiSignature.setContent(new byte[]{1, 2, 3});
+    AggregateSignatureStructure outer = new AggregateSignatureStructure(
+      Collections.singletonList(new HashChainLink(false, outerSiblingHash)), ksiSignature.getEncoded());
+    final ByteArrayOutputStream outerOut = new ByteArrayOutputStream();
+    outer.writeTo(outerOut);
+
+    AggregateSignatureStructure joined = AggregateSignatureStructure.join(
+      Collections.singletonList(new HashChainLink(true, siblingHash)), outerOut.toByteArray());
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    joined.writeTo(out);
+    AggregateSignatureStructure newStructure = new AggregateSignatureStructure(TLVElement.create(out.toByteArray()));
+
+    DataHash innerRoot = HashChainLink.hashNodes(siblingHash, HashChainLink.hashLeaf(manifestHash));
+    assertArrayEquals(ksiSignature.getEncoded(), newStructure.getKsiSignature());
+    assertEquals(3, newStructure.getLinks().size());
+    assertEquals(outer.getRootHash(innerRoot), newStructure.getRootHash(manifestHash));
+  }
 }
@@ -1,21 +1,39 @@
 package ee.guardtime.proov.zip;
 
 import ee.guardtime.proov.GuardtimeTests;
+import org.apache.commons.io.IOUtils;
+import org.junit.Ignore;
 import org.junit.Test;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.Objects;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.CRC32;
 import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipFile;
 import java.util.zip.ZipInputStream;
 import java.util.zip.ZipOutputStream;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
 
 /**
  * Package: ee.guardtime.proov
@@ -81,4 +99,413 @@ public class ZipServiceTest extends GuardtimeTests {
     assertEquals("bbbbbb", new String(fileReference.getContent()));
 
   }
+
+  @Test
+  public void testZipWriter() throws Exception {
+    final File zip = File.createTempFile("zipwriter_", ".zip");
+    ZipService zipService = new ZipService();
+
+    try (ZipWriter zipWriter = new ZipWriter(new FileOutputStream(zip))) {
+      zipService.addFileToZip(zipWriter, new ByteArrayInputStream("aaaa".getBytes()), "test.a");
+      zipService.addFileToZip(zipWriter, new ByteArrayInputStream(new byte[0]), "/META-INF/empty");
+    }
+
+    try (ZipFile zipFile = new ZipFile(zip)) {
+      assertEquals(2, zipFile.size());
+      assertEquals("aaaa", new String(IOUtils.toByteArray(zipFile.getInputStream(zipFile.getEntry("test.a")))));
+      assertEquals(0, zipFile.getEntry("/META-INF/empty").getSize());
+    }
+
+    List<FileReference> fileReferences = zipService.unzipFileMultiple(new FileInputStream(zip));
+    assertEquals(2, fileReferences.size());
+    assertEquals("aaaa", new String(fileReferences.get(0).getContent()));
+    zip.delete();
+  }
+
+  @Test
+  public void testCompressionPolicy() throws Exception {
+    final File zip = File.createTempFile("zipwriter_", ".zip");
+    ZipService zipService = new ZipService();
+    CompressionPolicy compressionPolicy = new ContentAwareCompressionPolicy();
+
+    byte[] random = new byte[200 * 1024];
+    new Random(1).nextBytes(random);
+    byte[] text = new byte[200 * 1024];
+    for (int i = 0; i < text.length; i++) {
+      text[i] = (byte) ('a' + i % 7);
+    }
+
+    try (ZipWriter zipWriter = new ZipWriter(new FileOutputStream(zip))) {
+      zipService.addFileToZip(zipWriter, new ByteArrayInputStream(random), "random.bin", compressionPolicy);
+      zipService.addFileToZip(zipWriter, new ByteArrayInputStream(text), "text.txt", compressionPolicy);
+      zipService.addFileToZip(zipWriter, new ByteArrayInputStream("aaaa".getBytes()), "photo.JPG", compressionPolicy);
+      zipService.addFileToZip(zipWriter, new ByteArrayInputStream(new byte[0]), "empty.bin", compressionPolicy);
+    }
+
+    try (ZipFile zipFile = new ZipFile(zip)) {
+      assertEquals(ZipEntry.STORED, zipFile.getEntry("random.bin").getMethod());
+      assertEquals(random.length, zipFile.getEntry("random.bin").getCompressedSize());
+      assertEquals(ZipEntry.DEFLATED, zipFile.getEntry("text.txt").getMethod());
+      assertEquals(ZipEntry.STORED, zipFile.getEntry("photo.JPG").getMethod());
+      assertArrayEquals(random, IOUtils.toByteArray(zipFile.getInputStream(zipFile.getEntry("random.bin"))));
+      assertArrayEquals(text, IOUtils.toByteArray(zipFile.getInputStream(zipFile.getEntry("text.txt"))));
+      assertEquals("aaaa", new String(IOUtils.toByteArray(zipFile.getInputStream(zipFile.getEntry("photo.JPG")))));
+    }
+
+    try (FileInputStream fis = new FileInputStream(zip)) {
+      ZipCentralDirectory centralDirectory = new ZipCentralDirectory(fis.getChannel());
+      CentralDirectoryEntry entry = centralDirectory.getEntries().get(0);
+      assertArrayEquals(random, zipService.readEntry(fis.getChannel(), entry));
+      assertEquals(0, zipService.readEntry(fis.getChannel(), centralDirectory.getEntries().get(3)).length);
+    }
+    zip.delete();
+  }
+
+  @Test
+  public void testStoredEntryRoundTrip() throws Exception {
+    byte[] small = new byte[100 * 1024];
+    new Random(1).nextBytes(small);
+    byte[] large = new byte[ZipWriter.STORED_BUFFER_SIZE + 5];
+    new Random(2).nextBytes(large);
+
+    // not seekable, stored entry larger than buffer is deflated without compression
+    ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+    try (ZipWriter zipWriter = writeStoredEntries(new ZipWriter(outputStream), small, large)) {
+      assertEquals(ZipEntry.STORED, zipWriter.getEntries().get(0).getMethod());
+      assertFalse(zipWriter.getEntries().get(0).hasDataDescriptor());
+      assertEquals(ZipEntry.DEFLATED, zipWriter.getEntries().get(1).getMethod());
+    }
+    assertStoredEntries(new ByteArrayInputStream(outputStream.toByteArray()), small, large);
+
+    List<FileReference> files = new ZipService().unzipFileMultiple(new ByteArrayInputStream(outputStream.toByteArray()));
+    assertArrayEquals(small, files.get(0).getContent());
+    assertArrayEquals(large, files.get(1).getContent());
+
+    // seekable, local header of large stored entry is updated when entry is closed
+    final File zip = File.createTempFile("zipwriter_", ".zip");
+    try (ZipWriter zipWriter = writeStoredEntries(new ZipWriter(new FileOutputStream(zip)), small, large)) {
+      assertEquals(ZipEntry.STORED, zipWriter.getEntries().get(1).getMethod());
+      assertFalse(zipWriter.getEntries().get(1).hasDataDescriptor());
+    }
+    assertStoredEntries(new FileInputStream(zip), small, large);
+    try (ZipFile zipFile = new ZipFile(zip)) {
+      assertEquals(ZipEntry.STORED, zipFile.getEntry("large.bin").getMethod());
+      assertArrayEquals(large, IOUtils.toByteArray(zipFile.getInputStream(zipFile.getEntry("large.bin"))));
+    }
+    zip.delete();
+  }
+
+  private static ZipWriter writeStoredEntries(ZipWriter zipWriter, byte[] small, byte[] large) throws IOException {
+    zipWriter.putNextEntry("small.bin", CompressionPolicy.STORED);
+    zipWriter.write(small);
+    zipWriter.putNextEntry("large.bin", CompressionPolicy.STORED);
+    zipWriter.write(large, 0, 1000);
+    zipWriter.write(large, 1000, large.length - 1000);
+    zipWriter.putNextEntry("empty.bin", CompressionPolicy.STORED);
+    zipWriter.closeEntry();
+    return zipWriter;
+  }
+
+  private static void assertStoredEntries(InputStream inputStream, byte[] small, byte[] large) throws IOException {
+    try (ZipInputStream zis = new ZipInputStream(inputStream)) {
+      assertEquals("small.bin", zis.getNextEntry().getName());
+      assertArrayEquals(small, IOUtils.toByteArray(zis));
+      assertEquals("large.bin", zis.getNextEntry().getName());
+      assertArrayEquals(large, IOUtils.toByteArray(zis));
+      assertEquals("empty.bin", zis.getNextEntry().getName());
+      assertEquals(0, IOUtils.toByteArray(zis).length);
+    }
+  }
+
+  @Test
+  public void testDeflatedEntry() throws Exception {
+    byte[] random = new byte[100 * 1024];
+    new Random(1).nextBytes(random);
+    byte[] text = new byte[100 * 1024];
+    for (int i = 0; i < text.length; i++) {
+      text[i] = (byte) ('a' + i % 7);
+    }
+
+    DeflatedEntry deflatedText = DeflatedEntry.deflate("text.txt", new ByteArrayInputStream(text), null);
+    DeflatedEntry storedRandom = DeflatedEntry.deflate("random.bin", new ByteArrayInputStream(random),
+      new ContentAwareCompressionPolicy());
+    DeflatedEntry empty = DeflatedEntry.deflate("empty.txt", new ByteArrayInputStream(new byte[0]), null);
+    assertEquals(ZipEntry.DEFLATED, deflatedText.getMethod());
+    assertTrue(deflatedText.getCompressedSize() < text.length / 10);
+    assertEquals(ZipEntry.STORED, storedRandom.getMethod());
+    assertEquals(random.length, storedRandom.getCompressedSize());
+
+    ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+    try (ZipWriter zipWriter = new ZipWriter(outputStream)) {
+      zipWriter.addDeflatedEntry(deflatedText);
+      zipWriter.addDeflatedEntry(storedRandom);
+      zipWriter.addDeflatedEntry(empty);
+    }
+
+    // sizes are in local headers, so also stored entry can be read with ZipInputStream
+    try (ZipInputStream zis = new ZipInputStream(new ByteArrayInputStream(outputStream.toByteArray()))) {
+      assertEquals("text.txt", zis.getNextEntry().getName());
+      assertArrayEquals(text, IOUtils.toByteArray(zis));
+      ZipEntry entry = zis.getNextEntry();
+      assertEquals("random.bin", entry.getName());
+      assertEquals(random.length, entry.getSize());
+      assertArrayEquals(random, IOUtils.toByteArray(zis));
+      assertEquals("empty.txt", zis.getNextEntry().getName());
+      assertEquals(0, IOUtils.toByteArray(zis).length);
+    }
+  }
+
+  @Test(expected = ZipException.class)
+  public void testDeflatedEntryTooLarge() throws Exception {
+    DeflatedEntry.deflate("large.bin", new ByteArrayInputStream(new byte[DeflatedEntry.MAX_SIZE + 1]), null);
+  }
+
+  @Test
+  public void testParallelDeflate() throws Exception {
+    final File zip = File.createTempFile("zipwriter_", ".zip");
+    ZipService zipService = new ZipService();
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+
+    Random random = new Random(1);
+    byte[] text = new byte[3 * 1024 * 1024 + 17];
+    for (int i = 0; i < text.length; i++) {
+      text[i] = (byte) ('a' + random.nextInt(4));
+    }
+    byte[] blocks = Arrays.copyOf(text, 2 * 128 * 1024);
+
+    try (ZipWriter zipWriter = new ZipWriter(new FileOutputStream(zip))) {
+      zipWriter.setDeflateExecutor(executor);
+      zipService.addFileToZip(zipWriter, new ByteArrayInputStream(text), "text.txt");
+      zipService.addFileToZip(zipWriter, new ByteArrayInputStream(blocks), "blocks.txt");
+      zipService.addFileToZip(zipWriter, new ByteArrayInputStream("aaaa".getBytes()), "test.a");
+      zipService.addFileToZip(zipWriter, new ByteArrayInputStream(new byte[0]), "empty");
+    } finally {
+      executor.shutdown();
+    }
+
+    try (ZipFile zipFile = new ZipFile(zip)) {
+      assertTrue(zipFile.getEntry("text.txt").getCompressedSize() < text.length / 3);
+      assertArrayEquals(text, IOUtils.toByteArray(zipFile.getInputStream(zipFile.getEntry("text.txt"))));
+    }
+
+    try (ZipInputStream zipInputStream = new ZipInputStream(new FileInputStream(zip))) {
+      assertEquals("text.txt", zipInputStream.getNextEntry().getName());
+      assertArrayEquals(text, IOUtils.toByteArray(zipInputStream));
+      assertEquals("blocks.txt", zipInputStream.getNextEntry().getName());
+      assertArrayEquals(blocks, IOUtils.toByteArray(zipInputStream));
+      assertEquals("test.a", zipInputStream.getNextEntry().getName());
+      assertEquals("aaaa", new String(IOUtils.toByteArray(zipInputStream)));
+      assertEquals("empty", zipInputStream.getNextEntry().getName());
+      assertEquals(0, IOUtils.toByteArray(zipInputStream).length);
+    }
+    zip.delete();
+  }
+
+  @Test
+  public void testAddFileFromChannel() throws Exception {
+    final File zip = File.createTempFile("zipwriter_", ".zip");
+    final File randomFile = File.createTempFile("random_", ".bin");
+    final File textFile = File.createTempFile("text_", ".txt");
+    ZipService zipService = new ZipService();
+
+    byte[] random = new byte[3 * 1024 * 1024 + 5];
+    new Random(1).nextBytes(random);
+    Files.write(randomFile.toPath(), random);
+    byte[] text = new byte[100 * 1024 + 5];
+    Arrays.fill(text, (byte) 'a');
+    Files.write(textFile.toPath(), text);
+
+    CRC32 randomCrc = new CRC32();
+    randomCrc.update(random);
+    try (ZipWriter zipWriter = new ZipWriter(new FileOutputStream(zip));
+         FileInputStream randomInput = new FileInputStream(randomFile);
+         FileInputStream textInput = new FileInputStream(textFile)) {
+      CompressionPolicy compressionPolicy = new ContentAwareCompressionPolicy();
+      CentralDirectoryEntry entry =
+        zipService.addFileToZip(zipWriter, randomInput.getChannel(), "random.bin", compressionPolicy);
+      assertEquals(randomCrc.getValue(), entry.getCrc());
+      zipService.addFileToZip(zipWriter, textInput.getChannel(), "text.txt", compressionPolicy);
+    }
+
+    try (ZipFile zipFile = new ZipFile(zip)) {
+      assertEquals(ZipEntry.STORED, zipFile.getEntry("random.bin").getMethod());
+      assertEquals(ZipEntry.DEFLATED, zipFile.getEntry("text.txt").getMethod());
+      assertArrayEquals(random, IOUtils.toByteArray(zipFile.getInputStream(zipFile.getEntry("random.bin"))));
+      assertArrayEquals(text, IOUtils.toByteArray(zipFile.getInputStream(zipFile.getEntry("text.txt"))));
+    }
+
+    // CRC of stored file is written into local header after data, so entry has no data descriptor
+    try (FileInputStream fis = new FileInputStream(zip)) {
+      assertFalse(new ZipCentralDirectory(fis.getChannel()).getEntries().get(0).hasDataDescriptor());
+    }
+    try (ZipInputStream zis = new ZipInputStream(new FileInputStream(zip))) {
+      ZipEntry entry = zis.getNextEntry();
+      assertEquals("random.bin", entry.getName());
+      assertEquals(random.length, entry.getSize());
+      assertArrayEquals(random, IOUtils.toByteArray(zis));
+      assertEquals("text.txt", zis.getNextEntry().getName());
+      assertArrayEquals(text, IOUtils.toByteArray(zis));
+    }
+
+    // output which is not seekable gets file through putNextEntry
+    ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    try (ZipWriter zipWriter = new ZipWriter(bos);
+         FileInputStream randomInput = new FileInputStream(randomFile)) {
+      CentralDirectoryEntry entry = zipWriter.addStoredEntry("random.bin", randomInput.getChannel(), 0, random.length);
+      assertEquals(randomCrc.getValue(), entry.getCrc());
+    }
+    try (ZipInputStream zis = new ZipInputStream(new ByteArrayInputStream(bos.toByteArray()))) {
+      assertEquals("random.bin", zis.getNextEntry().getName());
+      assertArrayEquals(random, IOUtils.toByteArray(zis));
+    }
+    zip.delete();
+    randomFile.delete();
+    textFile.delete();
+  }
+
+  @Test
+  public void testZip64EntryCount() throws Exception {
+    final File zip = File.createTempFile("zip64_", ".zip");
+    ZipService zipService = new ZipService();
+
+    try (ZipWriter zipWriter = new ZipWriter(new FileOutputStream(zip))) {
+      for (int i = 0; i < 70000; i++) {
+        zipWriter.putNextEntry("file" + i, CompressionPolicy.STORED);
+      }
+      zipService.addFileToZip(zipWriter, new ByteArrayInputStream("aaaa".getBytes()), "test.a");
+    }
+
+    try (RandomAccessFile file = new RandomAccessFile(zip, "rw")) {
+      assertEquals(70001, new ZipCentralDirectory(file.getChannel()).getEntries().size());
+      try (ZipWriter zipWriter = new ZipWriter(file.getChannel())) {
+        zipService.addFileToZip(zipWriter, new ByteArrayInputStream("bbbb".getBytes()), "test.b");
+      }
+    }
+
+    try (ZipFile zipFile = new ZipFile(zip)) {
+      assertEquals(70002, zipFile.size());
+      assertEquals("aaaa", new String(IOUtils.toByteArray(zipFile.getInputStream(zipFile.getEntry("test.a")))));
+      assertEquals("bbbb", new String(IOUtils.toByteArray(zipFile.getInputStream(zipFile.getEntry("test.b")))));
+    }
+    zip.delete();
+  }
+
+  @Test
+  @Ignore
+  public void testZip64LargeEntry() throws Exception {
+    final File zip = File.createTempFile("zip64_", ".zip");
+    ZipService zipService = new ZipService();
+    final long size = 0x100000000L + 1024 * 1024;
+
+    try (ZipWriter zipWriter = new ZipWriter(new FileOutputStream(zip))) {
+      zipWriter.putNextEntry("large.bin", CompressionPolicy.STORED);
+      byte[] buffer = new byte[1024 * 1024];
+      for (long written = 0; written < size; written += buffer.length) {
+        zipWriter.write(buffer);
+      }
+      zipService.addFileToZip(zipWriter, new ByteArrayInputStream("aaaa".getBytes()), "test.a");
+    }
+
+    try (RandomAccessFile file = new RandomAccessFile(zip, "rw")) {
+      List<CentralDirectoryEntry> entries = new ZipCentralDirectory(file.getChannel()).getEntries();
+      assertEquals(size, entries.get(0).getSize());
+      assertEquals(size, entries.get(0).getCompressedSize());
+      assertTrue(entries.get(1).getLocalHeaderOffset() > size);
+      assertEquals("aaaa", new String(zipService.readEntry(file.getChannel(), entries.get(1))));
+
+      try (ZipWriter zipWriter = new ZipWriter(file.getChannel())) {
+        zipService.addFileToZip(zipWriter, new ByteArrayInputStream("bbbb".getBytes()), "test.b");
+      }
+    }
+
+    try (ZipFile zipFile = new ZipFile(zip)) {
+      assertEquals(size, zipFile.getEntry("large.bin").getSize());
+      assertEquals("bbbb", new String(IOUtils.toByteArray(zipFile.getInputStream(zipFile.getEntry("test.b")))));
+    }
+    zip.delete();
+  }
+
+  @Test
+  public void testCopyRawEntryFromZip2Zip() throws IOException {
+    final File oldzip = File.createTempFile("oldzip_", ".zip");
+    Files.copy(this.getClass().getClassLoader().getResourceAsStream("0zip.zip"), oldzip.toPath(),
+      StandardCopyOption.REPLACE_EXISTING);
+    final File newzip = File.createTempFile("newzip_", ".zip");
+
+    ZipService zipService = new ZipService();
+    try (FileInputStream fis = new FileInputStream(oldzip);
+         ZipWriter zipWriter = new ZipWriter(new FileOutputStream(newzip))) {
+      zipService.addFileToZip(zipWriter, new ByteArrayInputStream("cccc".getBytes()), "test.c");
+      zipService.copyEntryFromZip2Zip(fis.getChannel(), zipWriter, Arrays.asList("test.b", "/META-INF/manifest2.tlv"));
+    }
+
+    try (ZipFile zipFile = new ZipFile(newzip)) {
+      assertEquals(3, zipFile.size());
+      assertEquals("bbbbbb", new String(IOUtils.toByteArray(zipFile.getInputStream(zipFile.getEntry("test.b")))));
+      assertEquals("cccc", new String(IOUtils.toByteArray(zipFile.getInputStream(zipFile.getEntry("test.c")))));
+    }
+
+    final List<FileReference> fileReferences = zipService.unzipFileMultiple(new FileInputStream(newzip));
+    assertEquals(3, fileReferences.size());
+    assertEquals("bbbbbb", new String(fileReferences.get(1).getContent()));
+    oldzip.delete();
+    newzip.delete();
+  }
+
+  @Test
+  public void testUnzipOneEntryFromChannel() throws IOException {
+    final File zip = File.createTempFile("zip_", ".zip");
+    Files.copy(this.getClass().getClassLoader().getResourceAsStream("0zip.zip"), zip.toPath(),
+      StandardCopyOption.REPLACE_EXISTING);
+
+    ZipService zipService = new ZipService();
+    try (FileInputStream fis = new FileInputStream(zip)) {
+      ZipCentralDirectory centralDirectory = new ZipCentralDirectory(fis.getChannel());
+      assertEquals(6, centralDirectory.getEntries().size());
+
+      CentralDirectoryEntry entry = centralDirectory.getEntries().get(3);
+      assertEquals("test.b", entry.getName());
+      FileReference fileReference = zipService.unzipOneEntry(fis.getChannel(), entry);
+      assertEquals("test.b", fileReference.getFilename());
+      assertEquals("bbbbbb", new String(fileReference.getContent()));
+    }
+    zip.delete();
+  }
+
+  @Test
+  public void testAppendJournal() throws IOException {
+    final File zip = File.createTempFile("journal_", ".zip");
+    final File journal = new File(zip.getPath() + ".journal");
+    ZipService zipService = new ZipService();
+    try (ZipWriter zipWriter = new ZipWriter(new FileOutputStream(zip))) {
+      zipService.addFileToZip(zipWriter, new ByteArrayInputStream("aaaa".getBytes()), "test.a");
+    }
+    final byte[] original = Files.readAllBytes(zip.toPath());
+
+    // appending is interrupted after old central directory is overwritten
+    try (RandomAccessFile file = new RandomAccessFile(zip, "rw")) {
+      ZipWriter zipWriter = new ZipWriter(file.getChannel(), journal);
+      assertTrue(journal.exists());
+      zipWriter.putNextEntry("test.b");
+      zipWriter.write(new byte[100000]);
+      zipWriter.flush();
+    }
+    assertFalse(Arrays.equals(original, Files.readAllBytes(zip.toPath())));
+
+    assertTrue(ZipWriter.recoverAppend(zip, journal));
+    assertArrayEquals(original, Files.readAllBytes(zip.toPath()));
+    assertFalse(journal.exists());
+    assertFalse(ZipWriter.recoverAppend(zip, journal));
+
+    try (RandomAccessFile file = new RandomAccessFile(zip, "rw");
+         ZipWriter zipWriter = new ZipWriter(file.getChannel(), journal)) {
+      zipService.addFileToZip(zipWriter, new ByteArrayInputStream("bbbb".getBytes()), "test.b");
+    }
+    assertFalse(journal.exists());
+    try (ZipFile zipFile = new ZipFile(zip)) {
+      assertEquals(2, zipFile.size());
+      assertEquals("bbbb", new String(IOUtils.toByteArray(zipFile.getInputStream(zipFile.getEntry("test.b")))));
+    }
+    zip.delete();
+  }
 }